@@ -0,0 +1,152 @@
+package org.icatproject.ids;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The map behind the PreparedCache, SelectionCache and DsInfoCache. Each
+ * value has a weight and the total weight is bounded. Entries are dropped,
+ * least recently used first, when the bound is exceeded or when they reach
+ * the maximum age; an expired entry which has been used more recently than a
+ * younger one is dropped when it is next looked up. A value heavier than the
+ * bound is never held. Lookups are counted as hits or misses.
+ */
+class BoundedCache<K, V> {
+
+    private static class Entry<V> {
+        private final V value;
+        private final long created;
+        private final long weight;
+
+        private Entry(V value, long created, long weight) {
+            this.value = value;
+            this.created = created;
+            this.weight = weight;
+        }
+    }
+
+    private final long maxWeight;
+    private final long maxAgeMillis;
+
+    /* In access order so that the eldest entry is the least recently used */
+    private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+    private long hits;
+    private long misses;
+
+    /**
+     * @param maxWeight    the maximum weight summed over all entries. If zero
+     *                     nothing is held.
+     * @param maxAgeMillis the time after which an entry is dropped
+     */
+    BoundedCache(long maxWeight, long maxAgeMillis) {
+        this.maxWeight = maxWeight;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Return whether a value of the specified weight would be held.
+     */
+    boolean accepts(long weight) {
+        return weight <= maxWeight;
+    }
+
+    /**
+     * Return the value or null if it is not held, counting a hit or a miss.
+     */
+    synchronized V get(K key) {
+        return get(key, value -> true);
+    }
+
+    /**
+     * Return the value if it is held and usable, counting a hit, otherwise
+     * count a miss and return null.
+     */
+    synchronized V get(K key, Predicate<? super V> usable) {
+        V value = peek(key);
+        if (value == null || !usable.test(value)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return value;
+    }
+
+    /**
+     * Return the value or null if it is not held without counting a hit or a
+     * miss.
+     */
+    synchronized V peek(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.created > maxAgeMillis) {
+            remove(key);
+            entry = null;
+        }
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Hold the value, replacing any held for the key, unless it is heavier
+     * than the bound.
+     */
+    synchronized void put(K key, V value, long weight) {
+        if (weight > maxWeight) {
+            return;
+        }
+        remove(key);
+        long now = System.currentTimeMillis();
+        entries.put(key, new Entry<>(value, now, weight));
+        this.weight += weight;
+        Iterator<Entry<V>> iter = entries.values().iterator();
+        while (iter.hasNext()) {
+            Entry<V> entry = iter.next();
+            if (this.weight > maxWeight || now - entry.created > maxAgeMillis) {
+                iter.remove();
+                this.weight -= entry.weight;
+            } else {
+                break;
+            }
+        }
+    }
+
+    synchronized void remove(K key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.weight;
+        }
+    }
+
+    /**
+     * Drop every value which matches the filter.
+     */
+    synchronized void removeIf(Predicate<? super V> filter) {
+        Iterator<Map.Entry<K, Entry<V>>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry<V> entry = iter.next().getValue();
+            if (filter.test(entry.value)) {
+                iter.remove();
+                weight -= entry.weight;
+            }
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+}
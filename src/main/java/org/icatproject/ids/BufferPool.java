@@ -0,0 +1,102 @@
+package org.icatproject.ids;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * A pool of equally sized byte buffers shared by the loops which copy data
+ * between streams, so that large buffers may be used without allocating one
+ * for every download, archive write, file check or read ahead. A buffer must be
+ * released exactly once after use, normally in a finally block by the thread
+ * which acquired it, and must not be used afterwards.
+ * <p>
+ * At most maxPooled idle buffers are kept; when none is idle a new buffer is
+ * allocated (a miss) and when too many are idle a released buffer is left to
+ * the garbage collector.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ConcurrentLinkedDeque<byte[]> pool = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param bufferSize the size of each buffer in bytes
+     * @param maxPooled  the maximum number of idle buffers to keep
+     */
+    public BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    /**
+     * Return a buffer of bufferSize bytes. Its contents are undefined.
+     */
+    public byte[] acquire() {
+        outstanding.incrementAndGet();
+        byte[] buffer = pool.pollFirst();
+        if (buffer != null) {
+            pooled.decrementAndGet();
+            hits.incrementAndGet();
+            return buffer;
+        }
+        misses.incrementAndGet();
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Return a buffer obtained from acquire to the pool.
+     */
+    public void release(byte[] buffer) {
+        outstanding.decrementAndGet();
+        if (buffer.length == bufferSize && pooled.incrementAndGet() <= maxPooled) {
+            /* Most recently used first as it is most likely to be in cache */
+            pool.offerFirst(buffer);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of buffers acquired and not yet released.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * Return the number of idle buffers in the pool.
+     */
+    public int getPooled() {
+        return pool.size();
+    }
+
+    /**
+     * Write the statistics as a JSON object with the specified name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("bufferSize", bufferSize).write("hits", getHits())
+                .write("misses", getMisses()).write("outstanding", getOutstanding()).write("pooled", getPooled())
+                .writeEnd();
+    }
+
+}
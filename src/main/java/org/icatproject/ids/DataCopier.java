@@ -0,0 +1,185 @@
+package org.icatproject.ids;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.icatproject.ids.plugin.MainStorageInterface;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copies the contents of a datafile to an OutputStream. Where the main storage
+ * plugin is able to provide a Path for the datafile the copy is performed with
+ * FileChannel.transferTo which avoids passing the data through a heap buffer
+ * and lets the kernel use sendfile when the target is itself a file or socket
+ * channel. Otherwise the InputStream from the plugin is copied in the
+ * traditional way.
+ */
+public class DataCopier {
+
+    private final static Logger logger = LoggerFactory.getLogger(DataCopier.class);
+
+    /**
+     * Copy a datafile from main storage to the output stream, preferring the
+     * zero-copy route.
+     *
+     * @param mainStorage the main storage plugin
+     * @param location    the location of the datafile
+     * @param createId    the createId of the datafile
+     * @param modId       the modId of the datafile
+     * @param output      the stream to write to. It is not closed.
+     * @param bytes       buffer to use if the data must be copied via a stream
+     *
+     * @return the number of bytes copied
+     *
+     * @throws IOException
+     */
+    public static long copy(MainStorageInterface mainStorage, String location, String createId, String modId,
+                            OutputStream output, byte[] bytes) throws IOException {
+        return copy(mainStorage, location, createId, modId, output, bytes, 0L, null);
+    }
+
+    /**
+     * Copy part of a datafile from main storage to the output stream. If the
+     * plugin supports getPath the file is read from the requested position
+     * without touching the preceding bytes. Otherwise the stream from the
+     * plugin is skipped to the position which is cheap for most plugins.
+     *
+     * @param position the offset of the first byte to copy
+     * @param count    the maximum number of bytes to copy or null to copy to
+     *                 the end of the file
+     *
+     * @return the number of bytes copied
+     *
+     * @throws IOException
+     */
+    public static long copy(MainStorageInterface mainStorage, String location, String createId, String modId,
+                            OutputStream output, byte[] bytes, long position, Long count) throws IOException {
+        Path path = getPath(mainStorage, location, createId, modId);
+        if (path != null) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long n = count == null ? Math.max(0L, channel.size() - position) : count;
+                return transfer(channel, position, n, output);
+            }
+        }
+        try (InputStream stream = mainStorage.get(location, createId, modId)) {
+            skip(stream, position, bytes);
+            if (count == null) {
+                return copy(stream, output, bytes);
+            }
+            return copy(stream, output, bytes, count);
+        }
+    }
+
+    /**
+     * Skip n bytes of the stream, reading them if skip makes no progress.
+     */
+    static void skip(InputStream stream, long n, byte[] bytes) throws IOException {
+        while (n > 0) {
+            long skipped = stream.skip(n);
+            if (skipped <= 0) {
+                int length = stream.read(bytes, 0, (int) Math.min(bytes.length, n));
+                if (length < 0) {
+                    return;
+                }
+                skipped = length;
+            }
+            n -= skipped;
+        }
+    }
+
+    /**
+     * Return the path to a regular file holding the datafile or null if the
+     * plugin does not support getPath.
+     */
+    static Path getPath(MainStorageInterface mainStorage, String location, String createId, String modId) {
+        try {
+            Path path = mainStorage.getPath(location, createId, modId);
+            if (path != null && Files.isRegularFile(path) && Files.isReadable(path)) {
+                return path;
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            logger.debug("getPath not available for " + location + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Copy the whole of the file to the output stream with
+     * FileChannel.transferTo.
+     */
+    static long transfer(Path path, OutputStream output) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return transfer(channel, 0, channel.size(), output);
+        }
+    }
+
+    /**
+     * Copy count bytes starting at position from the channel to the output
+     * stream with FileChannel.transferTo. Copying stops early if the end of the
+     * file is reached.
+     * <p>
+     * This is only zero copy when the output is a FileOutputStream. The
+     * servlet output is just an OutputStream, so it is wrapped by
+     * Channels.newChannel and transferTo then copies through a temporary
+     * direct buffer and the 8 KiB heap array of the wrapper. That still
+     * saves the small reads and writes of the stream loop but it is not
+     * sendfile.
+     */
+    static long transfer(FileChannel channel, long position, long count, OutputStream output) throws IOException {
+        WritableByteChannel target;
+        if (output instanceof FileOutputStream) {
+            target = ((FileOutputStream) output).getChannel();
+        } else {
+            target = Channels.newChannel(output);
+        }
+        long done = 0;
+        while (done < count) {
+            long n = channel.transferTo(position + done, count - done, target);
+            if (n <= 0) {
+                if (position + done >= channel.size()) {
+                    break;
+                }
+            } else {
+                done += n;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Copy an InputStream to an OutputStream using the supplied buffer.
+     */
+    static long copy(InputStream stream, OutputStream output, byte[] bytes) throws IOException {
+        long total = 0;
+        int length;
+        while ((length = stream.read(bytes)) >= 0) {
+            output.write(bytes, 0, length);
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Copy at most count bytes from an InputStream to an OutputStream using
+     * the supplied buffer.
+     */
+    static long copy(InputStream stream, OutputStream output, byte[] bytes, long count) throws IOException {
+        long total = 0;
+        int length;
+        while (total < count && (length = stream.read(bytes, 0, (int) Math.min(bytes.length, count - total))) >= 0) {
+            output.write(bytes, 0, length);
+            total += length;
+        }
+        return total;
+    }
+
+}
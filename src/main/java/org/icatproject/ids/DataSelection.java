@@ -1,23 +1,24 @@
 package org.icatproject.ids;
 
-import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.OptionalLong;
 import java.util.Set;
-
-import jakarta.json.Json;
-import jakarta.json.JsonArray;
-import jakarta.json.JsonValue;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import org.icatproject.Datafile;
 import org.icatproject.Dataset;
 import org.icatproject.ICAT;
 import org.icatproject.IcatExceptionType;
@@ -46,14 +47,21 @@ public class DataSelection {
     private Session userRestSession;
     private Session restSessionToUse;
     private int maxEntities;
+    private int maxIdsInQuery;
+    private QueryFanOut fanOut;
+    private DsInfoCache dsInfoCache;
+    private SelectionStrategy strategy;
     private List<Long> invids;
     private List<Long> dsids;
     private List<Long> dfids;
     private Map<Long, DsInfo> dsInfos;
-    private Set<DfInfoImpl> dfInfos;
+    private Set<Long> dsIds;
+    private DfInfoSet dfInfos;
+    private DfInfoSet.Builder dfBuilder;
     private Set<Long> emptyDatasets;
     private boolean dsWanted;
     private boolean dfWanted;
+    private boolean streamed;
     private long length;
 
 
@@ -64,7 +72,23 @@ public class DataSelection {
     public DataSelection(PropertyHandler propertyHandler, IcatReader icatReader, String userSessionId,
                          String investigationIds, String datasetIds, String datafileIds, Returns returns)
             throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException {
+        this(propertyHandler, icatReader, userSessionId, investigationIds, datasetIds, datafileIds, returns, false);
+    }
+
+    /**
+     * If streamed is true the datafiles of the datasets and investigations
+     * are not found by the constructor, though the explicit datafile and
+     * dataset ids are still checked and the explicit datasets with no
+     * datafiles are found. They must instead be read with openStream, after
+     * which getDsInfo holds every dataset reached so far. getDfInfo only
+     * holds the explicit datafiles.
+     */
+    public DataSelection(PropertyHandler propertyHandler, IcatReader icatReader, String userSessionId,
+                         String investigationIds, String datasetIds, String datafileIds, Returns returns,
+                         boolean streamed)
+            throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException {
 
+        this.streamed = streamed;
         dfids = getValidIds("datafileIds", datafileIds);
         dsids = getValidIds("datasetIds", datasetIds);
         invids = getValidIds("investigationIds", investigationIds);
@@ -74,6 +98,10 @@ public class DataSelection {
         this.icat = propertyHandler.getIcatService();
         this.restIcat = propertyHandler.getRestIcat();
         maxEntities = propertyHandler.getMaxEntities();
+        maxIdsInQuery = propertyHandler.getMaxIdsInQuery();
+        fanOut = new QueryFanOut(propertyHandler.getQueryPool());
+        dsInfoCache = propertyHandler.getDsInfoCache();
+        strategy = propertyHandler.getSelectionStrategy();
         this.userSessionId = userSessionId;
         userRestSession = restIcat.getSession(userSessionId);
         // by default use the user's REST ICAT session
@@ -120,58 +148,57 @@ public class DataSelection {
 
     private void resolveDatasetIds()
             throws NotFoundException, InsufficientPrivilegesException, InternalException, BadRequestException {
-        dsInfos = new HashMap<>();
-        emptyDatasets = new HashSet<>();
+        /* Concurrent as the queries run by fanOut add to these and to dfBuilder from several threads */
+        dsInfos = new ConcurrentHashMap<>();
+        emptyDatasets = ConcurrentHashMap.newKeySet();
         if (dfWanted) {
-            dfInfos = new HashSet<>();
+            dfBuilder = new DfInfoSet.Builder();
         }
 
         try {
+            /* Resolve explicit datafile ids in chunks of maxIdsInQuery with two queries per chunk */
+            List<Long> chunk = new ArrayList<>();
             for (Long dfid : dfids) {
-                List<Object> dss = icat.search(userSessionId,
-                        "SELECT ds FROM Dataset ds JOIN ds.datafiles df WHERE df.id = " + dfid
-                                + " AND df.location IS NOT NULL INCLUDE ds.investigation.facility");
-                if (dss.size() == 1) {
-                    Dataset ds = (Dataset) dss.get(0);
-                    long dsid = ds.getId();
-                    dsInfos.put(dsid, new DsInfoImpl(ds));
-                    if (dfWanted) {
-                        Datafile df = (Datafile) icat.get(userSessionId, "Datafile", dfid);
-                        length += df.getFileSize();
-                        String location = IdsBean.getLocation(dfid, df.getLocation());
-                        dfInfos.add(
-                                new DfInfoImpl(dfid, df.getName(), location, df.getCreateId(), df.getModId(), dsid));
-                    }
-                } else {
-                    // Next line may reveal a permissions problem
-                    icat.get(userSessionId, "Datafile", dfid);
-                    throw new NotFoundException("Datafile " + dfid);
+                chunk.add(dfid);
+                if (chunk.size() == maxIdsInQuery) {
+                    resolveDatafileIds(chunk);
+                    chunk.clear();
                 }
             }
+            if (!chunk.isEmpty()) {
+                resolveDatafileIds(chunk);
+            }
 
             for (Long dsid : dsids) {
                 Dataset ds = (Dataset) icat.get(userSessionId, "Dataset ds INCLUDE ds.investigation.facility", dsid);
                 dsInfos.put(dsid, new DsInfoImpl(ds));
                 // dataset access for the user has been checked so the REST session for the
                 // reader account can be used if the IDS setting to allow this is enabled
-                String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
-                        + dsid + " AND df.location IS NOT NULL";
-                JsonArray result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes()))
-                        .readArray().getJsonArray(0);
-                if (result.getJsonNumber(2).longValueExact() == 0) { // Count 0
-                    emptyDatasets.add(dsid);
-                } else if (dfWanted) {
-                    manyDfs(dsid, result);
+                if (streamed) {
+                    fanOut.submit(() -> probeEmpty(dsid, restSessionToUse));
+                } else {
+                    fanOut.submit(() -> datafilesOfDataset(dsid, restSessionToUse));
                 }
             }
 
             for (Long invid : invids) {
-                String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
-                        + invid;
-                JsonArray result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes()))
-                        .readArray().getJsonArray(0);
-                manyDss(invid, result);
+                if (streamed) {
+                    break;
+                } else if (strategy == SelectionStrategy.KEYSET) {
+                    fanOut.submit(() -> pageDss(invid));
+                } else {
+                    fanOut.submit(() -> {
+                        String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
+                                + invid;
+                        manyDss(invid, userRestSession, query);
+                    });
+                }
+            }
 
+            awaitQueries();
+            if (dfWanted) {
+                dfInfos = dfBuilder.build();
+                dfBuilder = null;
             }
 
         } catch (IcatException_Exception e) {
@@ -195,112 +222,518 @@ public class DataSelection {
                 throw new InternalException(e.getClass() + " " + e.getMessage());
             }
         }
+        /* Share what was found with the FSM, which looks datasets up by id */
+        dsInfoCache.putAll(dsInfos.values());
         /*
          * TODO don't calculate what is not needed - however this ensures that
          * the flag is respected
          */
         if (!dsWanted) {
+            dsIds = new HashSet<>(dsInfos.keySet());
             dsInfos = null;
             emptyDatasets = null;
         }
     }
 
-    private void manyDss(Long invid, JsonArray result)
+    /**
+     * Look up a chunk of datafile ids and their datasets using the user's
+     * session. A datafile is only accepted if the user can read both it and
+     * its dataset; for the first id which is not found icat.get is called so
+     * that a permissions problem is reported as such, otherwise a
+     * NotFoundException is thrown just as when the ids were looked up one at
+     * a time.
+     */
+    private void resolveDatafileIds(List<Long> chunk)
+            throws IcatException, IcatException_Exception, NotFoundException, InsufficientPrivilegesException,
+            InternalException {
+        StringBuilder sb = new StringBuilder(
+                "SELECT df.id, df.name, df.location, df.createId, df.modId, df.fileSize, df.checksum, df.dataset.id"
+                        + " FROM Datafile df WHERE df.location IS NOT NULL AND df.id IN (");
+        appendIds(sb, chunk);
+        Map<Long, DfInfoImpl> dfsOfChunk = new HashMap<>();
+        try (JsonRows rows = search(userRestSession, sb.toString())) {
+            while (rows.next()) {
+                DfInfoImpl dfInfo = dfInfo(rows.getLong(7), rows);
+                dfsOfChunk.put(dfInfo.getDfId(), dfInfo);
+            }
+        }
+
+        Map<Long, DsInfo> dsInfosOfDfs = new HashMap<>();
+        if (!dfsOfChunk.isEmpty()) {
+            Set<Long> dsidsOfDfs = new HashSet<>();
+            for (DfInfoImpl dfInfo : dfsOfChunk.values()) {
+                dsidsOfDfs.add(dfInfo.getDsId());
+            }
+            sb = new StringBuilder("SELECT ds.id, ds.name, ds.location, ds.investigation.id, ds.investigation.name,"
+                    + " ds.investigation.visitId, ds.investigation.facility.id, ds.investigation.facility.name"
+                    + " FROM Dataset ds WHERE ds.id IN (");
+            appendIds(sb, dsidsOfDfs);
+            try (JsonRows rows = search(userRestSession, sb.toString())) {
+                while (rows.next()) {
+                    long dsid = rows.getLong(0);
+                    dsInfosOfDfs.put(dsid, new DsInfoImpl(dsid, rows.getString(1), rows.getString(2),
+                            rows.getLong(3), rows.getString(4), rows.getString(5), rows.getLong(6),
+                            rows.getString(7)));
+                }
+            }
+        }
+
+        for (Long dfid : chunk) {
+            DfInfoImpl dfInfo = dfsOfChunk.get(dfid);
+            DsInfo dsInfo = dfInfo == null ? null : dsInfosOfDfs.get(dfInfo.getDsId());
+            if (dsInfo == null) {
+                // Next line may reveal a permissions problem
+                icat.get(userSessionId, "Datafile", dfid);
+                throw new NotFoundException("Datafile " + dfid);
+            }
+            dsInfos.put(dsInfo.getDsId(), dsInfo);
+            if (dfWanted) {
+                if (dfInfo.getFileSize() != null) {
+                    length += dfInfo.getFileSize();
+                }
+                dfBuilder.add(dfInfo);
+            }
+        }
+    }
+
+    private static void appendIds(StringBuilder sb, Collection<Long> ids) {
+        boolean first = true;
+        for (Long id : ids) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(id);
+            first = false;
+        }
+        sb.append(')');
+    }
+
+    /* Wait for the queries run by fanOut, rethrowing the first failure */
+    private void awaitQueries() throws IcatException, InsufficientPrivilegesException, InternalException {
+        try {
+            fanOut.await();
+        } catch (IcatException | InsufficientPrivilegesException | InternalException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        }
+    }
+
+    private static JsonRows search(Session session, String query) throws IcatException {
+        return new JsonRows(session.search(query));
+    }
+
+    /* The (min(id), max(id), count(id)) returned by a range query */
+    private static class Range {
+        private final long min;
+        private final long max;
+        private final long count;
+
+        private Range(Session session, String query) throws IcatException {
+            try (JsonRows rows = search(session, query)) {
+                rows.next();
+                count = rows.getLong(2);
+                /* min and max are null when the count is zero */
+                min = count == 0 ? 0 : rows.getLong(0);
+                max = count == 0 ? 0 : rows.getLong(1);
+            }
+        }
+    }
+
+    private void datafilesOfDataset(long dsid, Session session)
             throws IcatException, InsufficientPrivilegesException, InternalException {
-        long min = result.getJsonNumber(0).longValueExact();
-        long max = result.getJsonNumber(1).longValueExact();
-        long count = result.getJsonNumber(2).longValueExact();
-        logger.debug("manyDss min: {} max: {} count: {}", min, max, count);
-        if (count != 0) {
-            if (count <= maxEntities) {
-                String query = "SELECT inv.name, inv.visitId, inv.facility.id,  inv.facility.name FROM Investigation inv WHERE inv.id = "
-                        + invid;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray();
-                if (result.size() == 0) {
-                    return;
+        if (strategy == SelectionStrategy.KEYSET) {
+            pageDfs(dsid, session);
+            return;
+        }
+        String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = " + dsid
+                + " AND df.location IS NOT NULL";
+        Range range = new Range(session, query);
+        if (range.count == 0) {
+            emptyDatasets.add(dsid);
+        } else if (dfWanted) {
+            manyDfs(dsid, range);
+        }
+    }
+
+    /*
+     * The ranges of ids are split in two until each holds no more than
+     * maxEntities so that the queries may run concurrently on fanOut.
+     */
+    private void manyDss(Long invid, Session session, String rangeQuery)
+            throws IcatException, InsufficientPrivilegesException, InternalException {
+        Range range = new Range(session, rangeQuery);
+        if (range.count == 0) {
+            return;
+        }
+        long min = range.min;
+        long max = range.max;
+        logger.debug("manyDss min: {} max: {} count: {}", min, max, range.count);
+        if (range.count <= maxEntities) {
+            Inv inv = investigation(invid);
+            if (inv == null) {
+                return;
+            }
+            String query = "SELECT ds.id, ds.name, ds.location FROM Dataset ds WHERE ds.investigation.id = " + invid
+                    + " AND ds.id BETWEEN " + min + " AND " + max;
+            try (JsonRows rows = search(userRestSession, query)) {
+                while (rows.next()) {
+                    long dsid = addDsInfo(invid, inv, rows);
+                    fanOut.submit(() -> datafilesOfDataset(dsid, userRestSession));
                 }
-                result = result.getJsonArray(0);
-                String invName = result.getString(0);
-                String visitId = result.getString(1);
-                long facilityId = result.getJsonNumber(2).longValueExact();
-                String facilityName = result.getString(3);
-
-                query = "SELECT ds.id, ds.name, ds.location FROM Dataset ds WHERE ds.investigation.id = " + invid
-                        + " AND ds.id BETWEEN " + min + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray();
-                for (JsonValue tupV : result) {
-                    JsonArray tup = (JsonArray) tupV;
-                    long dsid = tup.getJsonNumber(0).longValueExact();
-                    dsInfos.put(dsid, new DsInfoImpl(dsid, tup.getString(1), tup.getString(2, null), invid, invName,
-                            visitId, facilityId, facilityName));
-
-                    query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
-                            + dsid + " AND df.location IS NOT NULL";
-                    result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes()))
-                            .readArray().getJsonArray(0);
-                    if (result.getJsonNumber(2).longValueExact() == 0) {
-                        emptyDatasets.add(dsid);
-                    } else if (dfWanted) {
-                        manyDfs(dsid, result);
-                    }
+            }
+        } else {
+            long half = (min + max) / 2;
+            fanOut.submit(() -> manyDss(invid, session,
+                    "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
+                            + invid + " AND ds.id BETWEEN " + min + " AND " + half));
+            fanOut.submit(() -> manyDss(invid, session,
+                    "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
+                            + invid + " AND ds.id BETWEEN " + (half + 1) + " AND " + max));
+        }
+    }
 
+    private void manyDfs(long dsid, Range range)
+            throws IcatException, InsufficientPrivilegesException, InternalException {
+        // dataset access for the user has been checked so the REST session for the
+        // reader account can be used if the IDS setting to allow this is enabled
+        if (range.count == 0) {
+            return;
+        }
+        long min = range.min;
+        long max = range.max;
+        logger.debug("manyDfs min: {} max: {} count: {}", min, max, range.count);
+        if (range.count <= maxEntities) {
+            String query = "SELECT df.id, df.name, df.location, df.createId, df.modId, df.fileSize, df.checksum FROM Datafile df WHERE df.dataset.id = "
+                    + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + max;
+            try (JsonRows rows = search(restSessionToUse, query)) {
+                while (rows.next()) {
+                    dfBuilder.add(dfInfo(dsid, rows));
                 }
-            } else {
-                long half = (min + max) / 2;
-                String query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
-                        + invid + " AND ds.id BETWEEN " + min + " AND " + half;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray();
-                manyDss(invid, result);
-                query = "SELECT min(ds.id), max(ds.id), count(ds.id) FROM Dataset ds WHERE ds.investigation.id = "
-                        + invid + " AND ds.id BETWEEN " + half + 1 + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(userRestSession.search(query).getBytes())).readArray()
-                        .getJsonArray(0);
-                manyDss(invid, result);
             }
+        } else {
+            long half = (min + max) / 2;
+            fanOut.submit(() -> manyDfs(dsid, new Range(restSessionToUse,
+                    "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = " + dsid
+                            + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + half)));
+            fanOut.submit(() -> manyDfs(dsid, new Range(restSessionToUse,
+                    "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = " + dsid
+                            + " AND df.location IS NOT NULL AND df.id BETWEEN " + (half + 1) + " AND " + max)));
         }
+    }
 
+    /*
+     * Submit the datasets of the investigation to fanOut, reading them a page
+     * at a time.
+     */
+    private void pageDss(long invid) throws IcatException {
+        Inv inv = investigation(invid);
+        if (inv == null) {
+            return;
+        }
+        long last = -1;
+        List<Long> page;
+        do {
+            page = dsPage(invid, inv, last);
+            for (Long dsid : page) {
+                fanOut.submit(() -> datafilesOfDataset(dsid, userRestSession));
+                last = dsid;
+            }
+        } while (page.size() == maxEntities);
     }
 
-    private void manyDfs(long dsid, JsonArray result)
+    /*
+     * Return the ids of up to maxEntities datasets of the investigation after
+     * the id last, in order of id, having added them to dsInfos. Each page
+     * starts after the last id of the one before rather than at an offset.
+     */
+    private List<Long> dsPage(long invid, Inv inv, long last) throws IcatException {
+        String query = "SELECT ds.id, ds.name, ds.location FROM Dataset ds WHERE ds.investigation.id = " + invid
+                + (last < 0 ? "" : " AND ds.id > " + last) + " ORDER BY ds.id LIMIT 0, " + maxEntities;
+        List<Long> page = new ArrayList<>();
+        try (JsonRows rows = search(userRestSession, query)) {
+            while (rows.next()) {
+                page.add(addDsInfo(invid, inv, rows));
+            }
+        }
+        return page;
+    }
+
+    /*
+     * Add the datafiles of the dataset to dfInfos, reading them a page at a
+     * time. If they are not wanted it is only found whether the dataset is
+     * empty.
+     */
+    private void pageDfs(long dsid, Session session)
+            throws IcatException, InsufficientPrivilegesException, InternalException {
+        if (!dfWanted) {
+            probeEmpty(dsid, session);
+            return;
+        }
+        long last = -1;
+        long n = 0;
+        List<DfInfoImpl> page;
+        do {
+            page = dfPage(dsid, last);
+            for (DfInfoImpl dfInfo : page) {
+                dfBuilder.add(dfInfo);
+                last = dfInfo.getDfId();
+            }
+            n += page.size();
+        } while (page.size() == maxEntities);
+        if (n == 0) {
+            emptyDatasets.add(dsid);
+        }
+    }
+
+    /* Add the dataset to emptyDatasets if it has no datafiles by reading a single id */
+    private void probeEmpty(long dsid, Session session) throws IcatException {
+        String query = "SELECT df.id FROM Datafile df WHERE df.dataset.id = " + dsid
+                + " AND df.location IS NOT NULL LIMIT 0, 1";
+        try (JsonRows rows = search(session, query)) {
+            if (!rows.next()) {
+                emptyDatasets.add(dsid);
+            }
+        }
+    }
+
+    /*
+     * Return up to maxEntities datafiles of the dataset after the id last in
+     * the same way as dsPage.
+     */
+    private List<DfInfoImpl> dfPage(long dsid, long last)
             throws IcatException, InsufficientPrivilegesException, InternalException {
         // dataset access for the user has been checked so the REST session for the
         // reader account can be used if the IDS setting to allow this is enabled
-        long min = result.getJsonNumber(0).longValueExact();
-        long max = result.getJsonNumber(1).longValueExact();
-        long count = result.getJsonNumber(2).longValueExact();
-        logger.debug("manyDfs min: {} max: {} count: {}", min, max, count);
-        if (count != 0) {
-            if (count <= maxEntities) {
-                String query = "SELECT df.id, df.name, df.location, df.createId, df.modId FROM Datafile df WHERE df.dataset.id = "
-                        + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes())).readArray();
-                for (JsonValue tupV : result) {
-                    JsonArray tup = (JsonArray) tupV;
-                    long dfid = tup.getJsonNumber(0).longValueExact();
-                    String location = IdsBean.getLocation(dfid, tup.getString(2, null));
-                    dfInfos.add(
-                            new DfInfoImpl(dfid, tup.getString(1), location, tup.getString(3), tup.getString(4), dsid));
+        String query = "SELECT df.id, df.name, df.location, df.createId, df.modId, df.fileSize, df.checksum FROM Datafile df WHERE df.dataset.id = "
+                + dsid + " AND df.location IS NOT NULL" + (last < 0 ? "" : " AND df.id > " + last)
+                + " ORDER BY df.id LIMIT 0, " + maxEntities;
+        List<DfInfoImpl> page = new ArrayList<>();
+        try (JsonRows rows = search(restSessionToUse, query)) {
+            while (rows.next()) {
+                page.add(dfInfo(dsid, rows));
+            }
+        }
+        return page;
+    }
+
+    /* The fields of an investigation copied into the DsInfo of each of its datasets */
+    private static class Inv {
+        private final String name;
+        private final String visitId;
+        private final long facilityId;
+        private final String facilityName;
+
+        private Inv(JsonRows rows) {
+            name = rows.getString(0);
+            visitId = rows.getString(1);
+            facilityId = rows.getLong(2);
+            facilityName = rows.getString(3);
+        }
+    }
+
+    /* Return the investigation or null if not visible */
+    private Inv investigation(long invid) throws IcatException {
+        String query = "SELECT inv.name, inv.visitId, inv.facility.id,  inv.facility.name FROM Investigation inv WHERE inv.id = "
+                + invid;
+        try (JsonRows rows = search(userRestSession, query)) {
+            return rows.next() ? new Inv(rows) : null;
+        }
+    }
+
+    /* Add the dataset described by the current row (id, name, location) to dsInfos */
+    private long addDsInfo(long invid, Inv inv, JsonRows rows) {
+        long dsid = rows.getLong(0);
+        dsInfos.put(dsid, new DsInfoImpl(dsid, rows.getString(1), rows.getString(2), invid, inv.name, inv.visitId,
+                inv.facilityId, inv.facilityName));
+        return dsid;
+    }
+
+    /*
+     * Return the datafile described by the current row (id, name, location,
+     * createId, modId, fileSize, checksum)
+     */
+    private static DfInfoImpl dfInfo(long dsid, JsonRows rows)
+            throws InsufficientPrivilegesException, InternalException {
+        long dfid = rows.getLong(0);
+        String location = IdsBean.getLocation(dfid, rows.getString(2));
+        return new DfInfoImpl(dfid, rows.getString(1), location, rows.getString(3), rows.getString(4), dsid,
+                rows.getLongOrNull(5), rows.getString(6));
+    }
+
+    /**
+     * The datafiles of a streamed DataSelection in dataset order, read from
+     * ICAT a page of maxEntities at a time on the consumer's thread as they
+     * are needed. The explicit datasets come first, in the order of
+     * getExplicitDsIds: the datasets of the explicit datafiles in order of id
+     * and then those named by datasetIds. Those named by datasetIds, or whose
+     * investigation is selected, give all their datafiles while the others
+     * give only the explicit datafiles. The other datasets of each
+     * investigation follow in order of id. Each dataset is visited once, so each datafile is returned
+     * once, and is in getDsInfo before the first of its datafiles is
+     * returned.
+     * <p>
+     * A failure to read the selection is thrown by hasNext or next as an
+     * UncheckedIOException.
+     */
+    public class DfStream implements Iterator<DfInfoImpl> {
+
+        private final List<Long> explicitDsIds = new ArrayList<>();
+        private final Map<Long, List<DfInfoImpl>> explicitDfs = new HashMap<>();
+        private final Iterator<Long> explicitIter;
+        private final Iterator<Long> invIter = invids.iterator();
+        private final Set<Long> done = new HashSet<>();
+        private long invid;
+        private Inv inv;
+        private Iterator<Long> dss = Collections.emptyIterator();
+        private boolean moreDss;
+        private long lastDs;
+        private long dsid;
+        private Iterator<DfInfoImpl> dfs = Collections.emptyIterator();
+        private boolean moreDfs;
+        private long lastDf;
+
+        private DfStream() {
+            Set<Long> whole = new HashSet<>(dsids);
+            Set<Long> invs = new HashSet<>(invids);
+            Set<Long> listed = new HashSet<>();
+            List<DfInfoImpl> sorted = new ArrayList<>(dfInfos);
+            sorted.sort(Comparator.comparingLong(DfInfoImpl::getDsId).thenComparingLong(DfInfoImpl::getDfId));
+            for (DfInfoImpl dfInfo : sorted) {
+                long dsid = dfInfo.getDsId();
+                if (!whole.contains(dsid) && !invs.contains(dsInfos.get(dsid).getInvId())) {
+                    explicitDfs.computeIfAbsent(dsid, k -> new ArrayList<>()).add(dfInfo);
+                }
+                if (listed.add(dsid)) {
+                    explicitDsIds.add(dsid);
                 }
-            } else {
-                long half = (min + max) / 2;
-                String query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = "
-                        + dsid + " AND df.location IS NOT NULL AND df.id BETWEEN " + min + " AND " + half;
-                result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes())).readArray()
-                        .getJsonArray(0);
-                manyDfs(dsid, result);
-                query = "SELECT min(df.id), max(df.id), count(df.id) FROM Datafile df WHERE df.dataset.id = " + dsid
-                        + " AND df.location IS NOT NULL AND df.id BETWEEN " + (half + 1) + " AND " + max;
-                result = Json.createReader(new ByteArrayInputStream(restSessionToUse.search(query).getBytes())).readArray()
-                        .getJsonArray(0);
-                manyDfs(dsid, result);
             }
+            for (Long dsid : dsids) {
+                if (listed.add(dsid)) {
+                    explicitDsIds.add(dsid);
+                }
+            }
+            explicitIter = explicitDsIds.iterator();
+        }
+
+        /**
+         * Return the ids of the explicit datasets, and of the datasets of the
+         * explicit datafiles, in the order in which they are streamed.
+         */
+        public List<Long> getExplicitDsIds() {
+            return Collections.unmodifiableList(explicitDsIds);
         }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (!dfs.hasNext()) {
+                    if (moreDfs) {
+                        nextDfPage();
+                    } else if (!nextDataset()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (IcatException | InsufficientPrivilegesException | InternalException e) {
+                logger.error("Failed to read selection " + e.getClass() + " " + e.getMessage());
+                throw new UncheckedIOException(new IOException(e.getClass() + " " + e.getMessage(), e));
+            }
+        }
+
+        @Override
+        public DfInfoImpl next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return dfs.next();
+        }
+
+        /* Move on to the next dataset not yet visited, returning false if there are none */
+        private boolean nextDataset() throws IcatException, InsufficientPrivilegesException, InternalException {
+            if (explicitIter.hasNext()) {
+                long dsid = explicitIter.next();
+                done.add(dsid);
+                List<DfInfoImpl> page = explicitDfs.get(dsid);
+                if (page == null) {
+                    startDataset(dsid);
+                } else {
+                    dfs = page.iterator();
+                    moreDfs = false;
+                }
+                return true;
+            }
+            while (!dss.hasNext()) {
+                if (moreDss) {
+                    nextDsPage();
+                } else if (invIter.hasNext()) {
+                    invid = invIter.next();
+                    inv = investigation(invid);
+                    lastDs = -1;
+                    if (inv != null) {
+                        nextDsPage();
+                    }
+                } else {
+                    return false;
+                }
+            }
+            long dsid = dss.next();
+            if (done.add(dsid)) {
+                startDataset(dsid);
+            }
+            return true;
+        }
+
+        private void nextDsPage() throws IcatException {
+            List<Long> page = dsPage(invid, inv, lastDs);
+            moreDss = page.size() == maxEntities;
+            if (!page.isEmpty()) {
+                lastDs = page.get(page.size() - 1);
+            }
+            dss = page.iterator();
+        }
+
+        private void startDataset(long dsid) throws IcatException, InsufficientPrivilegesException, InternalException {
+            this.dsid = dsid;
+            lastDf = -1;
+            nextDfPage();
+            if (!dfs.hasNext()) {
+                emptyDatasets.add(dsid);
+            }
+        }
+
+        private void nextDfPage() throws IcatException, InsufficientPrivilegesException, InternalException {
+            List<DfInfoImpl> page = dfPage(dsid, lastDf);
+            moreDfs = page.size() == maxEntities;
+            if (!page.isEmpty()) {
+                lastDf = page.get(page.size() - 1).getDfId();
+            }
+            dfs = page.iterator();
+        }
+    }
+
+    /**
+     * Start reading the datafiles of a streamed DataSelection.
+     */
+    public DfStream openStream() {
+        if (!streamed) {
+            throw new IllegalStateException("DataSelection is not streamed");
+        }
+        return new DfStream();
     }
 
     public Map<Long, DsInfo> getDsInfo() {
         return dsInfos;
     }
 
+    /**
+     * Return the ids of the datasets of the selection, including any with no
+     * datafiles, even if getDsInfo returns null as datasets were not wanted.
+     */
+    public Set<Long> getDsIds() {
+        return dsInfos != null ? dsInfos.keySet() : dsIds;
+    }
+
     public Set<DfInfoImpl> getDfInfo() {
         return dfInfos;
     }
@@ -318,6 +751,19 @@ public class DataSelection {
         return emptyDatasets;
     }
 
+    /**
+     * Return whether this selection holds everything a selection constructed
+     * with the specified returns would, so that it may be used instead.
+     */
+    boolean provides(Returns returns) {
+        if (streamed) {
+            return false;
+        }
+        boolean ds = returns == Returns.DATASETS_AND_DATAFILES || returns == Returns.DATASETS;
+        boolean df = returns == Returns.DATASETS_AND_DATAFILES || returns == Returns.DATAFILES;
+        return (dsWanted || !ds) && (dfWanted || !df);
+    }
+
     public OptionalLong getFileLength() {
         if (!dfWanted || mustZip()) {
             return OptionalLong.empty();
@@ -4,6 +4,8 @@ import org.icatproject.ids.plugin.DfInfo;
 
 public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
 
+    private String checksum;
+
     private String createId;
 
     private long dfId;
@@ -14,6 +16,8 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
 
     private long dsId;
 
+    private Long fileSize;
+
     private String modId;
 
     public DfInfoImpl(long dfId, String dfName, String dfLocation, String createId, String modId, long dsId) {
@@ -25,6 +29,13 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
         this.dsId = dsId;
     }
 
+    public DfInfoImpl(long dfId, String dfName, String dfLocation, String createId, String modId, long dsId,
+                      Long fileSize, String checksum) {
+        this(dfId, dfName, dfLocation, createId, modId, dsId);
+        this.fileSize = fileSize;
+        this.checksum = checksum;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) {
@@ -36,6 +47,13 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
         return dfId == ((DfInfoImpl) obj).getDfId();
     }
 
+    /**
+     * Return the checksum recorded in ICAT or null if it is not known.
+     */
+    public String getChecksum() {
+        return checksum;
+    }
+
     @Override
     public String getCreateId() {
         return createId;
@@ -60,6 +78,13 @@ public class DfInfoImpl implements DfInfo, Comparable<DfInfoImpl> {
         return dsId;
     }
 
+    /**
+     * Return the file size recorded in ICAT or null if it is not known.
+     */
+    public Long getFileSize() {
+        return fileSize;
+    }
+
     @Override
     public String getModId() {
         return modId;
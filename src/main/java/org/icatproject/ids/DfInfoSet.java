@@ -0,0 +1,362 @@
+package org.icatproject.ids;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+/**
+ * An immutable set of datafiles, in order of id, held in columns of
+ * primitives rather than as one DfInfoImpl per datafile so that selections of
+ * millions of datafiles do not need gigabytes of heap. The ids and file sizes
+ * are held in long arrays; names, locations and the create and modify ids are
+ * indices into tables in which each distinct string is stored once as UTF-8
+ * bytes; the dataset id is an index into a table of dataset ids.
+ * <p>
+ * A DfInfoImpl is created each time an element is returned so elements are
+ * equal to, but not the same as, those added. The views returned by headSet,
+ * tailSet and subSet share the columns.
+ */
+public class DfInfoSet extends AbstractSet<DfInfoImpl> implements SortedSet<DfInfoImpl> {
+
+    /*
+     * Distinct strings stored end to end as UTF-8. Index 0 is reserved for
+     * null.
+     */
+    private static class StringTable {
+        private final Map<String, Integer> indices = new HashMap<>();
+        private byte[] bytes = new byte[1024];
+        private int[] offsets = new int[64];
+        private int size = 1;
+        private int length;
+
+        private int add(String s) {
+            if (s == null) {
+                return 0;
+            }
+            Integer index = indices.get(s);
+            if (index == null) {
+                byte[] b = s.getBytes(StandardCharsets.UTF_8);
+                if (length + b.length > bytes.length) {
+                    bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + b.length));
+                }
+                System.arraycopy(b, 0, bytes, length, b.length);
+                length += b.length;
+                if (size + 1 > offsets.length) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                index = size++;
+                offsets[index] = length - b.length;
+                indices.put(s, index);
+            }
+            return index;
+        }
+
+        /* Drop what is only needed while adding */
+        private void trim() {
+            indices.clear();
+            bytes = Arrays.copyOf(bytes, length);
+            offsets = Arrays.copyOf(offsets, size + 1);
+            offsets[size] = length;
+        }
+
+        private String get(int index) {
+            if (index == 0) {
+                return null;
+            }
+            int start = offsets[index];
+            int end = index + 1 < size ? offsets[index + 1] : length;
+            return new String(bytes, start, end - start, StandardCharsets.UTF_8);
+        }
+
+        private long memory() {
+            return bytes.length + 4L * offsets.length;
+        }
+    }
+
+    /* The columns shared by a set and its views */
+    private static class Columns {
+        private long[] dfIds;
+        private int[] dsIndices;
+        private long[] dsIds;
+        private int[] names;
+        private int[] locations;
+        private int[] createIds;
+        private int[] modIds;
+        private long[] fileSizes;
+        private String[] checksums;
+        private StringTable nameTable;
+        private StringTable locationTable;
+        private StringTable idTable;
+    }
+
+    /**
+     * Collects datafiles for a DfInfoSet. It may be used by several threads.
+     * A datafile added more than once is only held once.
+     */
+    public static class Builder {
+
+        private int n;
+        private long[] dfIds = new long[16];
+        private int[] dsIndices = new int[16];
+        private int[] names = new int[16];
+        private int[] locations = new int[16];
+        private int[] createIds = new int[16];
+        private int[] modIds = new int[16];
+        private long[] fileSizes = new long[16];
+        private String[] checksums = new String[16];
+        private final Map<Long, Integer> dsIndexOf = new HashMap<>();
+        private long[] dsIds = new long[16];
+        private final StringTable nameTable = new StringTable();
+        private final StringTable locationTable = new StringTable();
+        private final StringTable idTable = new StringTable();
+
+        public synchronized Builder add(DfInfoImpl dfInfo) {
+            if (n == dfIds.length) {
+                int capacity = n * 2;
+                dfIds = Arrays.copyOf(dfIds, capacity);
+                dsIndices = Arrays.copyOf(dsIndices, capacity);
+                names = Arrays.copyOf(names, capacity);
+                locations = Arrays.copyOf(locations, capacity);
+                createIds = Arrays.copyOf(createIds, capacity);
+                modIds = Arrays.copyOf(modIds, capacity);
+                fileSizes = Arrays.copyOf(fileSizes, capacity);
+                checksums = Arrays.copyOf(checksums, capacity);
+            }
+            Integer dsIndex = dsIndexOf.get(dfInfo.getDsId());
+            if (dsIndex == null) {
+                dsIndex = dsIndexOf.size();
+                if (dsIndex == dsIds.length) {
+                    dsIds = Arrays.copyOf(dsIds, dsIndex * 2);
+                }
+                dsIds[dsIndex] = dfInfo.getDsId();
+                dsIndexOf.put(dfInfo.getDsId(), dsIndex);
+            }
+            dfIds[n] = dfInfo.getDfId();
+            dsIndices[n] = dsIndex;
+            names[n] = nameTable.add(dfInfo.getDfName());
+            locations[n] = locationTable.add(dfInfo.getDfLocation());
+            createIds[n] = idTable.add(dfInfo.getCreateId());
+            modIds[n] = idTable.add(dfInfo.getModId());
+            fileSizes[n] = dfInfo.getFileSize() == null ? NO_SIZE : dfInfo.getFileSize();
+            checksums[n] = dfInfo.getChecksum();
+            n++;
+            return this;
+        }
+
+        public synchronized Builder addAll(Collection<DfInfoImpl> dfInfos) {
+            for (DfInfoImpl dfInfo : dfInfos) {
+                add(dfInfo);
+            }
+            return this;
+        }
+
+        /**
+         * Return the set. The builder must not be used afterwards.
+         */
+        public synchronized DfInfoSet build() {
+            int[] order = sortedOrder(dfIds, n);
+            Columns c = new Columns();
+            int size = 0;
+            for (int i = 0; i < n; i++) {
+                if (i == 0 || dfIds[order[i]] != dfIds[order[i - 1]]) {
+                    order[size++] = order[i];
+                }
+            }
+            c.dfIds = new long[size];
+            c.dsIndices = new int[size];
+            c.names = new int[size];
+            c.locations = new int[size];
+            c.createIds = new int[size];
+            c.modIds = new int[size];
+            c.fileSizes = new long[size];
+            boolean anyChecksum = false;
+            for (int i = 0; i < size; i++) {
+                int j = order[i];
+                c.dfIds[i] = dfIds[j];
+                c.dsIndices[i] = dsIndices[j];
+                c.names[i] = names[j];
+                c.locations[i] = locations[j];
+                c.createIds[i] = createIds[j];
+                c.modIds[i] = modIds[j];
+                c.fileSizes[i] = fileSizes[j];
+                anyChecksum |= checksums[j] != null;
+            }
+            if (anyChecksum) {
+                c.checksums = new String[size];
+                for (int i = 0; i < size; i++) {
+                    c.checksums[i] = checksums[order[i]];
+                }
+            }
+            c.dsIds = Arrays.copyOf(dsIds, dsIndexOf.size());
+            nameTable.trim();
+            locationTable.trim();
+            idTable.trim();
+            c.nameTable = nameTable;
+            c.locationTable = locationTable;
+            c.idTable = idTable;
+            return new DfInfoSet(c, 0, size);
+        }
+    }
+
+    private static final long NO_SIZE = Long.MIN_VALUE;
+
+    private static final DfInfoSet EMPTY = new Builder().build();
+
+    private final Columns c;
+    private final int from;
+    private final int to;
+
+    private DfInfoSet(Columns c, int from, int to) {
+        this.c = c;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Return a set of the specified datafiles.
+     */
+    public static DfInfoSet of(Collection<DfInfoImpl> dfInfos) {
+        if (dfInfos instanceof DfInfoSet) {
+            return (DfInfoSet) dfInfos;
+        }
+        return new Builder().addAll(dfInfos).build();
+    }
+
+    public static DfInfoSet empty() {
+        return EMPTY;
+    }
+
+    /* Return the positions 0 to n - 1 ordered by the value of keys at each */
+    private static int[] sortedOrder(long[] keys, int n) {
+        int[] order = new int[n];
+        boolean sorted = true;
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+            sorted &= i == 0 || keys[i - 1] <= keys[i];
+        }
+        if (!sorted) {
+            mergeSort(keys, order, new int[n], 0, n);
+        }
+        return order;
+    }
+
+    private static void mergeSort(long[] keys, int[] order, int[] work, int lo, int hi) {
+        if (hi - lo < 2) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        mergeSort(keys, order, work, lo, mid);
+        mergeSort(keys, order, work, mid, hi);
+        System.arraycopy(order, lo, work, lo, hi - lo);
+        int i = lo;
+        int j = mid;
+        for (int k = lo; k < hi; k++) {
+            if (j >= hi || (i < mid && keys[work[i]] <= keys[work[j]])) {
+                order[k] = work[i++];
+            } else {
+                order[k] = work[j++];
+            }
+        }
+    }
+
+    private DfInfoImpl get(int i) {
+        long fileSize = c.fileSizes[i];
+        return new DfInfoImpl(c.dfIds[i], c.nameTable.get(c.names[i]), c.locationTable.get(c.locations[i]),
+                c.idTable.get(c.createIds[i]), c.idTable.get(c.modIds[i]), c.dsIds[c.dsIndices[i]],
+                fileSize == NO_SIZE ? null : fileSize, c.checksums == null ? null : c.checksums[i]);
+    }
+
+    /* Return the position of the first id not less than dfId within this view */
+    private int position(long dfId) {
+        int i = Arrays.binarySearch(c.dfIds, from, to, dfId);
+        return i < 0 ? -i - 1 : i;
+    }
+
+    @Override
+    public Iterator<DfInfoImpl> iterator() {
+        return new Iterator<>() {
+            private int i = from;
+
+            @Override
+            public boolean hasNext() {
+                return i < to;
+            }
+
+            @Override
+            public DfInfoImpl next() {
+                if (i >= to) {
+                    throw new NoSuchElementException();
+                }
+                return get(i++);
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof DfInfoImpl)) {
+            return false;
+        }
+        return Arrays.binarySearch(c.dfIds, from, to, ((DfInfoImpl) o).getDfId()) >= 0;
+    }
+
+    @Override
+    public Comparator<? super DfInfoImpl> comparator() {
+        return null;
+    }
+
+    @Override
+    public SortedSet<DfInfoImpl> subSet(DfInfoImpl fromElement, DfInfoImpl toElement) {
+        int start = position(fromElement.getDfId());
+        return new DfInfoSet(c, start, Math.max(start, position(toElement.getDfId())));
+    }
+
+    @Override
+    public SortedSet<DfInfoImpl> headSet(DfInfoImpl toElement) {
+        return new DfInfoSet(c, from, position(toElement.getDfId()));
+    }
+
+    @Override
+    public SortedSet<DfInfoImpl> tailSet(DfInfoImpl fromElement) {
+        return new DfInfoSet(c, position(fromElement.getDfId()), to);
+    }
+
+    @Override
+    public DfInfoImpl first() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return get(from);
+    }
+
+    @Override
+    public DfInfoImpl last() {
+        if (from == to) {
+            throw new NoSuchElementException();
+        }
+        return get(to - 1);
+    }
+
+    /**
+     * Return an estimate of the bytes of heap used by the columns, which are
+     * shared with any views.
+     */
+    public long memory() {
+        long n = c.dfIds.length;
+        return n * (8 + 4 + 4 + 4 + 4 + 4 + 8) + (c.checksums == null ? 0 : 4 * n) + 8L * c.dsIds.length
+                + c.nameTable.memory() + c.locationTable.memory() + c.idTable.memory();
+    }
+
+}
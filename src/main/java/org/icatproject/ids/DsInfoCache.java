@@ -0,0 +1,81 @@
+package org.icatproject.ids;
+
+import java.util.Collection;
+
+import jakarta.json.stream.JsonGenerator;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * A cache of the DsInfo of datasets keyed by dataset id so that the FSM need
+ * not ask ICAT for the same dataset once for every datafile queued against
+ * it. Entries are dropped, least recently used first, when there are more
+ * than maxEntries or when they reach the maximum age, which bounds how long
+ * a dataset moved or renamed in ICAT may be seen with its old values.
+ * <p>
+ * The cache holds no authorization information: lookups made on behalf of a
+ * user must still go to ICAT with the user's session, though the result may
+ * be put here.
+ */
+public class DsInfoCache {
+
+    private final BoundedCache<Long, DsInfo> cache;
+
+    /**
+     * @param maxEntries   the maximum number of datasets to hold. If zero
+     *                     nothing is cached.
+     * @param maxAgeMillis the time after which an entry is dropped
+     */
+    public DsInfoCache(int maxEntries, long maxAgeMillis) {
+        cache = new BoundedCache<>(maxEntries, maxAgeMillis);
+    }
+
+    /**
+     * Return the cached DsInfo or null if not cached.
+     */
+    public DsInfo get(long dsId) {
+        return cache.get(dsId);
+    }
+
+    /**
+     * Return whether the dataset is cached without counting a hit or a miss.
+     */
+    public boolean contains(long dsId) {
+        return cache.peek(dsId) != null;
+    }
+
+    public void put(DsInfo dsInfo) {
+        cache.put(dsInfo.getDsId(), dsInfo, 1L);
+    }
+
+    public void putAll(Collection<? extends DsInfo> dsInfos) {
+        for (DsInfo dsInfo : dsInfos) {
+            cache.put(dsInfo.getDsId(), dsInfo, 1L);
+        }
+    }
+
+    public void invalidate(long dsId) {
+        cache.remove(dsId);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Write the statistics as a JSON object with the specified name. The hit
+     * rate is the fraction of lookups found in the cache.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        long hits = cache.getHits();
+        long lookups = hits + cache.getMisses();
+        gen.writeStartObject(name).write("entries", cache.size()).write("hits", hits)
+                .write("misses", cache.getMisses()).write("hitRate", lookups == 0 ? 0.0 : (double) hits / lookups)
+                .writeEnd();
+    }
+
+}
@@ -93,6 +93,7 @@ public class FileChecker {
                         return;
                     }
                     Path tPath = null;
+                    byte[] bytes = bufferPool.acquire();
                     try {
                         tPath = Files.createTempFile(null, null);
                         archiveStorage.get(dsInfo, tPath);
@@ -101,7 +102,6 @@ public class FileChecker {
                             while (ze != null) {
                                 dfName = zipMapper.getFileName(ze.getName());
                                 CRC32 crc = new CRC32();
-                                byte[] bytes = new byte[1024];
                                 int length;
                                 long n = 0;
                                 while ((length = zis.read(bytes)) >= 0) {
@@ -136,6 +136,7 @@ public class FileChecker {
                         e.printStackTrace();
                         logger.error("Throwable " + e.getClass() + " " + e.getMessage());
                     } finally {
+                        bufferPool.release(bytes);
                         if (tPath != null) {
                             try {
                                 Files.deleteIfExists(tPath);
@@ -156,9 +157,9 @@ public class FileChecker {
                     return;
                 }
 
+                byte[] bytes = bufferPool.acquire();
                 try (InputStream is = mainStorage.get(location, df.getCreateId(), df.getModId())) {
                     CRC32 crc = new CRC32();
-                    byte[] bytes = new byte[1024];
                     int length;
                     long n = 0;
                     while ((length = is.read(bytes)) >= 0) {
@@ -179,6 +180,8 @@ public class FileChecker {
                     report(df, e.getClass() + " " + e.getMessage());
                 } catch (Throwable e) {
                     logger.error("Throwable " + e.getClass() + " " + e.getMessage());
+                } finally {
+                    bufferPool.release(bytes);
                 }
 
             }
@@ -304,6 +307,8 @@ public class FileChecker {
 
     private PropertyHandler propertyHandler;
 
+    private BufferPool bufferPool;
+
     @PostConstruct
     public void init() {
 
@@ -320,6 +325,7 @@ public class FileChecker {
                 archiveStorage = propertyHandler.getArchiveStorage();
                 twoLevel = archiveStorage != null;
                 zipMapper = propertyHandler.getZipMapper();
+                bufferPool = propertyHandler.getBufferPool();
 
                 maxId = null;
                 if (Files.exists(filesCheckLastIdFile)) {
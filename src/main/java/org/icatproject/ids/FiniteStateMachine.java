@@ -8,16 +8,17 @@ import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
@@ -50,241 +51,394 @@ import org.icatproject.ids.thread.DsWriter;
 @DependsOn({"LockManager"})
 public class FiniteStateMachine {
 
-    private class DfProcessQueue extends TimerTask {
+    private class DfProcessQueue implements FsmScheduler.Pass {
 
         @Override
-        public void run() {
-            try {
-                synchronized (deferredDfOpsQueue) {
-                    if (processOpsTime != null && System.currentTimeMillis() > processOpsTime && !deferredDfOpsQueue.isEmpty()) {
-                        processOpsTime = null;
-                        logger.debug("deferredDfOpsQueue has " + deferredDfOpsQueue.size() + " entries");
-                        List<DfInfo> writes = new ArrayList<>();
-                        List<DfInfo> archives = new ArrayList<>();
-                        List<DfInfo> restores = new ArrayList<>();
-                        List<DfInfo> deletes = new ArrayList<>();
-                        Map<Long, Lock> writeLocks = new HashMap<>();
-                        Map<Long, Lock> archiveLocks = new HashMap<>();
-                        Map<Long, Lock> restoreLocks = new HashMap<>();
-                        Map<Long, Lock> deleteLocks = new HashMap<>();
-
-                        Map<DfInfoImpl, RequestedState> newOps = new HashMap<>();
-                        final Iterator<Entry<DfInfoImpl, RequestedState>> it = deferredDfOpsQueue.entrySet().iterator();
-                        while (it.hasNext()) {
-                            Entry<DfInfoImpl, RequestedState> opEntry = it.next();
-                            DfInfoImpl dfInfo = opEntry.getKey();
-                            Long dsId = dfInfo.getDsId();
-                            DsInfo dsInfo;
-                            try {
-                                Dataset ds = (Dataset) reader.get("Dataset ds INCLUDE ds.investigation.facility", dsId);
-                                dsInfo = new DsInfoImpl(ds);
-                            } catch (Exception e) {
-                                logger.error("Could not get dsInfo {}: {}.", dsId, e.getMessage());
+        public long run() {
+            Map<Long, DsInfo> dsInfos = fetchDsInfos();
+            synchronized (deferredDfOpsQueue) {
+                drainDfIntake();
+                long restoresDue = Long.MAX_VALUE;
+                if (deferredDfOpsQueue.isEmpty()) {
+                    processOpsTime = null;
+                } else if (processOpsTime != null && System.currentTimeMillis() >= processOpsTime) {
+                    processOpsTime = null;
+                    logger.debug("deferredDfOpsQueue has " + deferredDfOpsQueue.size() + " entries");
+                    List<DfInfo> writes = new ArrayList<>();
+                    List<DfInfo> archives = new ArrayList<>();
+                    List<DfInfoImpl> restores = new ArrayList<>();
+                    List<DfInfo> deletes = new ArrayList<>();
+                    Map<Long, Lock> writeLocks = new HashMap<>();
+                    Map<Long, Lock> archiveLocks = new HashMap<>();
+                    Map<Long, Lock> deleteLocks = new HashMap<>();
+
+                    Map<DfInfoImpl, RequestedState> newOps = new HashMap<>();
+                    Map<DeferredOp, Boolean> capacity = new EnumMap<>(DeferredOp.class);
+                    for (DeferredOp op : DeferredOp.values()) {
+                        capacity.put(op, workers.hasCapacity(op));
+                    }
+                    long now = System.currentTimeMillis();
+                    for (DfInfoImpl dfInfo : dfPriorities.order(deferredDfOpsQueue.keySet(), now)) {
+                        Long dsId = dfInfo.getDsId();
+                        DsInfo dsInfo = dsInfos.get(dsId);
+                        if (dsInfo == null) {
+                            dsInfo = getDsInfo(dsId);
+                            if (dsInfo == null) {
                                 continue;
                             }
-                            if (!dfChanging.containsKey(dfInfo)) {
-                                final RequestedState state = opEntry.getValue();
-                                logger.debug(dfInfo + " " + state);
-                                if (state == RequestedState.WRITE_REQUESTED) {
-                                    if (!writeLocks.containsKey(dsId)) {
-                                        try {
-                                            writeLocks.put(dsId, lockManager.lock(dsInfo, LockType.SHARED));
-                                        } catch (AlreadyLockedException e) {
-                                            logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
-                                            continue;
-                                        } catch (IOException e) {
-                                            logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
-                                            continue;
-                                        }
-                                    }
-                                    it.remove();
-                                    dfChanging.put(dfInfo, state);
-                                    writes.add(dfInfo);
-                                } else if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
-                                    if (!writeLocks.containsKey(dsId)) {
-                                        try {
-                                            writeLocks.put(dsId, lockManager.lock(dsInfo, LockType.SHARED));
-                                        } catch (AlreadyLockedException e) {
-                                            logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
-                                            continue;
-                                        } catch (IOException e) {
-                                            logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
-                                            continue;
-                                        }
+                            dsInfos.put(dsId, dsInfo);
+                        }
+                        final RequestedState state = deferredDfOpsQueue.get(dfInfo);
+                        if (!dfChanging.containsKey(dfInfo) && capacity.get(opOf(state))
+                                && dfPriorities.canStart(dfInfo)) {
+                            logger.debug(dfInfo + " " + state);
+                            if (state == RequestedState.WRITE_REQUESTED) {
+                                if (!writeLocks.containsKey(dsId)) {
+                                    try {
+                                        writeLocks.put(dsId, lockManager.lock(dsInfo, LockType.SHARED));
+                                    } catch (AlreadyLockedException e) {
+                                        logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
+                                        continue;
+                                    } catch (IOException e) {
+                                        logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
+                                        continue;
                                     }
-                                    it.remove();
-                                    dfChanging.put(dfInfo, RequestedState.WRITE_REQUESTED);
-                                    writes.add(dfInfo);
-                                    newOps.put(dfInfo, RequestedState.ARCHIVE_REQUESTED);
-                                } else if (state == RequestedState.ARCHIVE_REQUESTED) {
-                                    if (!archiveLocks.containsKey(dsId)) {
-                                        try {
-                                            archiveLocks.put(dsId, lockManager.lock(dsInfo, LockType.EXCLUSIVE));
-                                        } catch (AlreadyLockedException e) {
-                                            logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
-                                            continue;
-                                        } catch (IOException e) {
-                                            logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
-                                            continue;
-                                        }
+                                }
+                                start(dfInfo);
+                                dfChanging.put(dfInfo, state);
+                                writes.add(dfInfo);
+                            } else if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+                                if (!writeLocks.containsKey(dsId)) {
+                                    try {
+                                        writeLocks.put(dsId, lockManager.lock(dsInfo, LockType.SHARED));
+                                    } catch (AlreadyLockedException e) {
+                                        logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
+                                        continue;
+                                    } catch (IOException e) {
+                                        logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
+                                        continue;
                                     }
-                                    it.remove();
-                                    dfChanging.put(dfInfo, state);
-                                    archives.add(dfInfo);
-                                } else if (state == RequestedState.RESTORE_REQUESTED) {
-                                    if (!restoreLocks.containsKey(dsId)) {
-                                        try {
-                                            restoreLocks.put(dsId, lockManager.lock(dsInfo, LockType.EXCLUSIVE));
-                                        } catch (AlreadyLockedException e) {
-                                            logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
-                                            continue;
-                                        } catch (IOException e) {
-                                            logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
-                                            continue;
-                                        }
+                                }
+                                start(dfInfo);
+                                dfChanging.put(dfInfo, RequestedState.WRITE_REQUESTED);
+                                writes.add(dfInfo);
+                                newOps.put(dfInfo, RequestedState.ARCHIVE_REQUESTED);
+                            } else if (state == RequestedState.ARCHIVE_REQUESTED) {
+                                if (!archiveLocks.containsKey(dsId)) {
+                                    try {
+                                        archiveLocks.put(dsId, lockManager.lock(dsInfo, LockType.EXCLUSIVE));
+                                    } catch (AlreadyLockedException e) {
+                                        logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
+                                        continue;
+                                    } catch (IOException e) {
+                                        logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
+                                        continue;
                                     }
-                                    it.remove();
-                                    dfChanging.put(dfInfo, state);
-                                    restores.add(dfInfo);
-                                } else if (state == RequestedState.DELETE_REQUESTED) {
-                                    if (!deleteLocks.containsKey(dsId)) {
-                                        try {
-                                            deleteLocks.put(dsId, lockManager.lock(dsInfo, LockType.EXCLUSIVE));
-                                        } catch (AlreadyLockedException e) {
-                                            logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
-                                            continue;
-                                        } catch (IOException e) {
-                                            logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
-                                            continue;
-                                        }
+                                }
+                                start(dfInfo);
+                                dfChanging.put(dfInfo, state);
+                                archives.add(dfInfo);
+                            } else if (state == RequestedState.RESTORE_REQUESTED) {
+                                /* Locked and started below once planned */
+                                restores.add(dfInfo);
+                            } else if (state == RequestedState.DELETE_REQUESTED) {
+                                if (!deleteLocks.containsKey(dsId)) {
+                                    try {
+                                        deleteLocks.put(dsId, lockManager.lock(dsInfo, LockType.EXCLUSIVE));
+                                    } catch (AlreadyLockedException e) {
+                                        logger.debug("Could not acquire lock on " + dsId + ", hold back " + state);
+                                        continue;
+                                    } catch (IOException e) {
+                                        logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
+                                        continue;
                                     }
-                                    it.remove();
-                                    dfChanging.put(dfInfo, state);
-                                    deletes.add(dfInfo);
-                                } else {
-                                    throw new AssertionError("Impossible state");
                                 }
+                                start(dfInfo);
+                                dfChanging.put(dfInfo, state);
+                                deletes.add(dfInfo);
+                            } else {
+                                throw new AssertionError("Impossible state");
                             }
                         }
-                        if (!newOps.isEmpty()) {
-                            deferredDfOpsQueue.putAll(newOps);
-                            logger.debug("Adding {} operations to be scheduled next time round", newOps.size());
-                        }
-                        if (!deferredDfOpsQueue.isEmpty()) {
-                            processOpsTime = 0L;
-                        }
-                        if (!writes.isEmpty()) {
-                            logger.debug("Launch thread to process " + writes.size() + " writes");
-                            Thread w = new Thread(new DfWriter(writes, propertyHandler, FiniteStateMachine.this, writeLocks.values()));
-                            w.start();
-                        }
-                        if (!archives.isEmpty()) {
-                            logger.debug("Launch thread to process " + archives.size() + " archives");
-                            Thread w = new Thread(new DfArchiver(archives, propertyHandler, FiniteStateMachine.this, archiveLocks.values()));
-                            w.start();
-                        }
-                        if (!restores.isEmpty()) {
-                            logger.debug("Launch thread to process " + restores.size() + " restores");
-                            Thread w = new Thread(new DfRestorer(restores, propertyHandler, FiniteStateMachine.this, restoreLocks.values()));
-                            w.start();
+                    }
+                    if (!newOps.isEmpty()) {
+                        deferredDfOpsQueue.putAll(newOps);
+                        for (DfInfoImpl dfInfo : newOps.keySet()) {
+                            dfPriorities.queued(dfInfo, dfPriorities.getPriority(dfInfo), now, true);
+                            index(dfInfo);
                         }
-                        if (!deletes.isEmpty()) {
-                            logger.debug("Launch thread to process " + deletes.size() + " deletes");
-                            Thread w = new Thread(new DfDeleter(deletes, propertyHandler, FiniteStateMachine.this, deleteLocks.values()));
-                            w.start();
+                        logger.debug("Adding {} operations to be scheduled next time round", newOps.size());
+                    }
+                    restoresDue = startRestores(restores, dsInfos, now);
+                    if (!deferredDfOpsQueue.isEmpty()) {
+                        processOpsTime = 0L;
+                    }
+                    if (!writes.isEmpty()) {
+                        logger.debug("Submit " + writes.size() + " writes for processing");
+                        workers.execute(DeferredOp.WRITE, new DfWriter(writes, propertyHandler, FiniteStateMachine.this, writeLocks.values()));
+                    }
+                    if (!archives.isEmpty()) {
+                        logger.debug("Submit " + archives.size() + " archives for processing");
+                        workers.execute(DeferredOp.ARCHIVE, new DfArchiver(archives, propertyHandler, FiniteStateMachine.this, archiveLocks.values()));
+                    }
+                    if (!deletes.isEmpty()) {
+                        logger.debug("Submit " + deletes.size() + " deletes for processing");
+                        workers.execute(DeferredOp.DELETE, new DfDeleter(deletes, propertyHandler, FiniteStateMachine.this, deleteLocks.values()));
+                    }
+                }
+                /*
+                 * Operations held back are retried when a lock is released or
+                 * an operation finishes, or failing that after the interval or
+                 * when the restores held back are due
+                 */
+                if (processOpsTime == null) {
+                    return Long.MAX_VALUE;
+                } else if (processOpsTime == 0L) {
+                    return Math.min(System.currentTimeMillis() + processQueueIntervalMillis, restoresDue);
+                } else {
+                    return processOpsTime;
+                }
+            }
+        }
+
+        private void start(DfInfoImpl dfInfo) {
+            deferredDfOpsQueue.remove(dfInfo);
+            dfPriorities.started(dfInfo);
+        }
+
+        /*
+         * Start the restores which could be started, in batches planned by
+         * locality, unless they are held back in which case return the time
+         * at which they are due.
+         */
+        private long startRestores(List<DfInfoImpl> candidates, Map<Long, DsInfo> dsInfos, long now) {
+            long due = restoresDue(dfPriorities, candidates);
+            if (now < due) {
+                return due;
+            }
+            int capacity = workers.getCapacity(DeferredOp.RESTORE);
+            for (List<DfInfoImpl> batch : restorePlanner.planDatafiles(candidates, dsInfos, capacity)) {
+                List<DfInfo> restores = new ArrayList<>();
+                Map<Long, Lock> restoreLocks = new HashMap<>();
+                for (DfInfoImpl dfInfo : batch) {
+                    Long dsId = dfInfo.getDsId();
+                    if (!dfPriorities.canStart(dfInfo)) {
+                        continue;
+                    }
+                    if (!restoreLocks.containsKey(dsId)) {
+                        try {
+                            restoreLocks.put(dsId, lockManager.lock(dsInfos.get(dsId), LockType.EXCLUSIVE));
+                        } catch (AlreadyLockedException e) {
+                            logger.debug("Could not acquire lock on " + dsId + ", hold back restore of " + dfInfo);
+                            continue;
+                        } catch (IOException e) {
+                            logger.error("I/O exception " + e.getMessage() + " locking " + dsId);
+                            continue;
                         }
                     }
+                    start(dfInfo);
+                    dfChanging.put(dfInfo, RequestedState.RESTORE_REQUESTED);
+                    restores.add(dfInfo);
+                }
+                if (!restores.isEmpty()) {
+                    logger.debug("Submit " + restores.size() + " restores for processing");
+                    workers.execute(DeferredOp.RESTORE,
+                            new DfRestorer(restores, propertyHandler, FiniteStateMachine.this, restoreLocks.values()));
+                }
+            }
+            return Long.MAX_VALUE;
+        }
+
+        /*
+         * Find the DsInfo of each dataset with queued datafiles if the queue
+         * is due to be processed. Those not cached are looked up in ICAT
+         * without holding the monitor of deferredDfOpsQueue so that requests
+         * adding to the queue are not held up.
+         */
+        private Map<Long, DsInfo> fetchDsInfos() {
+            Map<Long, DsInfo> dsInfos = new HashMap<>();
+            Set<Long> dsIds = new HashSet<>();
+            synchronized (deferredDfOpsQueue) {
+                drainDfIntake();
+                if (processOpsTime == null || System.currentTimeMillis() < processOpsTime) {
+                    return dsInfos;
+                }
+                for (DfInfoImpl dfInfo : deferredDfOpsQueue.keySet()) {
+                    dsIds.add(dfInfo.getDsId());
                 }
-            } finally {
-                timer.schedule(new DfProcessQueue(), processQueueIntervalMillis);
             }
+            for (Long dsId : dsIds) {
+                DsInfo dsInfo = getDsInfo(dsId);
+                if (dsInfo != null) {
+                    dsInfos.put(dsId, dsInfo);
+                }
+            }
+            return dsInfos;
+        }
 
+        /* Return the cached DsInfo or look it up in ICAT returning null on failure */
+        private DsInfo getDsInfo(long dsId) {
+            DsInfo dsInfo = dsInfoCache.get(dsId);
+            if (dsInfo == null) {
+                try {
+                    Dataset ds = (Dataset) reader.get("Dataset ds INCLUDE ds.investigation.facility", dsId);
+                    dsInfo = new DsInfoImpl(ds);
+                    dsInfoCache.put(dsInfo);
+                } catch (Exception e) {
+                    logger.error("Could not get dsInfo {}: {}.", dsId, e.getMessage());
+                }
+            }
+            return dsInfo;
         }
 
     }
 
-    private class DsProcessQueue extends TimerTask {
+    private class DsProcessQueue implements FsmScheduler.Pass {
 
         @Override
-        public void run() {
-            try {
-                synchronized (deferredDsOpsQueue) {
-                    final long now = System.currentTimeMillis();
-                    Map<DsInfo, RequestedState> newOps = new HashMap<>();
-                    final Iterator<Entry<DsInfo, RequestedState>> it = deferredDsOpsQueue.entrySet().iterator();
-                    while (it.hasNext()) {
-                        final Entry<DsInfo, RequestedState> opEntry = it.next();
-                        final DsInfo dsInfo = opEntry.getKey();
-                        if (!dsChanging.containsKey(dsInfo)) {
-                            final RequestedState state = opEntry.getValue();
-                            if (state == RequestedState.WRITE_REQUESTED
-                                    || state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
-                                if (now > writeTimes.get(dsInfo)) {
-                                    try {
-                                        Lock lock = lockManager.lock(dsInfo, LockType.SHARED);
-                                        logger.debug("Will process " + dsInfo + " with " + state);
-                                        writeTimes.remove(dsInfo);
-                                        dsChanging.put(dsInfo, RequestedState.WRITE_REQUESTED);
-                                        it.remove();
-                                        final Thread w = new Thread(
-                                                new DsWriter(dsInfo, propertyHandler, FiniteStateMachine.this, reader, lock));
-                                        w.start();
-                                        if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
-                                            newOps.put(dsInfo, RequestedState.ARCHIVE_REQUESTED);
-                                        }
-                                    } catch (AlreadyLockedException e) {
-                                        logger.debug("Could not acquire lock on " + dsInfo + ", hold back process with " + state);
-                                    } catch (IOException e) {
-                                        logger.error("I/O exception " + e.getMessage() + " locking " + dsInfo);
-                                    }
-                                }
-                            } else if (state == RequestedState.ARCHIVE_REQUESTED) {
+        public long run() {
+            synchronized (deferredDsOpsQueue) {
+                drainDsIntake();
+                final long now = System.currentTimeMillis();
+                Map<DsInfo, RequestedState> newOps = new HashMap<>();
+                List<DsInfo> restores = new ArrayList<>();
+                for (DsInfo dsInfo : dsPriorities.order(deferredDsOpsQueue.keySet(), now)) {
+                    final RequestedState state = deferredDsOpsQueue.get(dsInfo);
+                    if (!dsChanging.containsKey(dsInfo) && workers.hasCapacity(opOf(state))
+                            && dsPriorities.canStart(dsInfo)) {
+                        if (state == RequestedState.WRITE_REQUESTED
+                                || state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+                            if (now >= writeTimes.get(dsInfo)) {
                                 try {
-                                    Lock lock = lockManager.lock(dsInfo, LockType.EXCLUSIVE);
-                                    it.remove();
-                                    long dsId = dsInfo.getDsId();
+                                    Lock lock = lockManager.lock(dsInfo, LockType.SHARED);
                                     logger.debug("Will process " + dsInfo + " with " + state);
-                                    dsChanging.put(dsInfo, state);
-                                    final Thread w = new Thread(
-                                            new DsArchiver(dsInfo, propertyHandler, FiniteStateMachine.this, lock));
-                                    w.start();
-                                } catch (AlreadyLockedException e) {
-                                    logger.debug("Could not acquire lock on " + dsInfo + ", hold back process with " + state);
-                                } catch (IOException e) {
-                                    logger.error("I/O exception " + e.getMessage() + " locking " + dsInfo);
-                                }
-                            } else if (state == RequestedState.RESTORE_REQUESTED) {
-                                try {
-                                    Lock lock = lockManager.lock(dsInfo, LockType.EXCLUSIVE);
-                                    logger.debug("Will process " + dsInfo + " with " + state);
-                                    dsChanging.put(dsInfo, state);
-                                    it.remove();
-                                    final Thread w = new Thread(
-                                            new DsRestorer(dsInfo, propertyHandler, FiniteStateMachine.this, reader, lock));
-                                    w.start();
+                                    writeTimes.remove(dsInfo);
+                                    dsChanging.put(dsInfo, RequestedState.WRITE_REQUESTED);
+                                    start(dsInfo);
+                                    workers.execute(DeferredOp.WRITE,
+                                            new DsWriter(dsInfo, propertyHandler, FiniteStateMachine.this, reader, lock));
+                                    if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+                                        newOps.put(dsInfo, RequestedState.ARCHIVE_REQUESTED);
+                                    }
                                 } catch (AlreadyLockedException e) {
                                     logger.debug("Could not acquire lock on " + dsInfo + ", hold back process with " + state);
                                 } catch (IOException e) {
                                     logger.error("I/O exception " + e.getMessage() + " locking " + dsInfo);
                                 }
                             }
+                        } else if (state == RequestedState.ARCHIVE_REQUESTED) {
+                            try {
+                                Lock lock = lockManager.lock(dsInfo, LockType.EXCLUSIVE);
+                                start(dsInfo);
+                                logger.debug("Will process " + dsInfo + " with " + state);
+                                dsChanging.put(dsInfo, state);
+                                workers.execute(DeferredOp.ARCHIVE,
+                                        new DsArchiver(dsInfo, propertyHandler, FiniteStateMachine.this, lock));
+                            } catch (AlreadyLockedException e) {
+                                logger.debug("Could not acquire lock on " + dsInfo + ", hold back process with " + state);
+                            } catch (IOException e) {
+                                logger.error("I/O exception " + e.getMessage() + " locking " + dsInfo);
+                            }
+                        } else if (state == RequestedState.RESTORE_REQUESTED) {
+                            /* Started below in the order planned */
+                            restores.add(dsInfo);
                         }
                     }
-                    deferredDsOpsQueue.putAll(newOps);
+                }
+                long restoresDue = startRestores(restores, now);
+                deferredDsOpsQueue.putAll(newOps);
+                for (DsInfo dsInfo : newOps.keySet()) {
+                    dsPriorities.queued(dsInfo, dsPriorities.getPriority(dsInfo), now, true);
+                    index(dsInfo);
                 }
 
-            } finally {
-                timer.schedule(new DsProcessQueue(), processQueueIntervalMillis);
+                /*
+                 * Writes wait for their delay. Anything else left is held back
+                 * and is retried when a lock is released or an operation
+                 * finishes, or failing that after the interval.
+                 */
+                long next = restoresDue;
+                for (Entry<DsInfo, RequestedState> opEntry : deferredDsOpsQueue.entrySet()) {
+                    Long writeTime = writeTimes.get(opEntry.getKey());
+                    if (writeTime != null && writeTime > now) {
+                        next = Math.min(next, writeTime);
+                    } else {
+                        next = Math.min(next, now + processQueueIntervalMillis);
+                    }
+                }
+                return next;
             }
+        }
 
+        private void start(DsInfo dsInfo) {
+            deferredDsOpsQueue.remove(dsInfo);
+            dsPriorities.started(dsInfo);
+        }
+
+        /* As for datafiles but starting a restore of each dataset in turn */
+        private long startRestores(List<DsInfo> candidates, long now) {
+            long due = restoresDue(dsPriorities, candidates);
+            if (now < due) {
+                return due;
+            }
+            for (DsInfo dsInfo : restorePlanner.orderDatasets(candidates)) {
+                if (!workers.hasCapacity(DeferredOp.RESTORE)) {
+                    break;
+                }
+                if (!dsPriorities.canStart(dsInfo)) {
+                    continue;
+                }
+                try {
+                    Lock lock = lockManager.lock(dsInfo, LockType.EXCLUSIVE);
+                    logger.debug("Will process " + dsInfo + " with " + RequestedState.RESTORE_REQUESTED);
+                    dsChanging.put(dsInfo, RequestedState.RESTORE_REQUESTED);
+                    start(dsInfo);
+                    workers.execute(DeferredOp.RESTORE,
+                            new DsRestorer(dsInfo, propertyHandler, FiniteStateMachine.this, reader, lock));
+                } catch (AlreadyLockedException e) {
+                    logger.debug("Could not acquire lock on " + dsInfo + ", hold back restore");
+                } catch (IOException e) {
+                    logger.error("I/O exception " + e.getMessage() + " locking " + dsInfo);
+                }
+            }
+            return Long.MAX_VALUE;
         }
 
     }
 
+    /* A request for an operation on a dataset or datafile */
+    private static class Intake<T> {
+        final T info;
+        final DeferredOp op;
+        final Priority priority;
+        final long time;
+        final boolean markerCreated;
+        final FsmStateIndex.Pending pending;
+
+        Intake(T info, DeferredOp op, Priority priority, long time, boolean markerCreated,
+                FsmStateIndex.Pending pending) {
+            this.info = info;
+            this.op = op;
+            this.priority = priority;
+            this.time = time;
+            this.markerCreated = markerCreated;
+            this.pending = pending;
+        }
+    }
+
     public enum RequestedState {
         ARCHIVE_REQUESTED, DELETE_REQUESTED, RESTORE_REQUESTED, WRITE_REQUESTED, WRITE_THEN_ARCHIVE_REQUESTED
     }
 
+    /**
+     * The priority of a request, highest first: restores for a user waiting
+     * for data, other requests made by a user or at startup, and archives
+     * queued by the Tidier to recover main storage.
+     */
+    public enum Priority {
+        INTERACTIVE, EXPLICIT, BACKGROUND
+    }
+
     private static Logger logger = LoggerFactory.getLogger(FiniteStateMachine.class);
 
     /*
@@ -297,6 +451,23 @@ public class FiniteStateMachine {
 
     private Map<DsInfo, RequestedState> deferredDsOpsQueue = new HashMap<>();
 
+    /* Requests not yet merged into the queues above */
+    private Queue<Intake<DfInfoImpl>> dfIntake = new ConcurrentLinkedQueue<>();
+
+    private Queue<Intake<DsInfo>> dsIntake = new ConcurrentLinkedQueue<>();
+
+    /* The state of each datafile and dataset in the queues above or in progress */
+    private FsmStateIndex dfIndex = new FsmStateIndex();
+
+    private FsmStateIndex dsIndex = new FsmStateIndex();
+
+    /* The priority of each datafile and dataset in the queues above or in progress */
+    private FsmPriorities<DfInfoImpl> dfPriorities;
+
+    private FsmPriorities<DsInfo> dsPriorities;
+
+    private RestorePlanner restorePlanner;
+
     private Map<DfInfo, RequestedState> dfChanging = new HashMap<>();
 
     private Map<DsInfo, RequestedState> dsChanging = new HashMap<>();
@@ -305,6 +476,8 @@ public class FiniteStateMachine {
     private long processQueueIntervalMillis;
 
     private PropertyHandler propertyHandler;
+
+    private DsInfoCache dsInfoCache;
     @EJB
     IcatReader reader;
 
@@ -313,7 +486,9 @@ public class FiniteStateMachine {
 
     private StorageUnit storageUnit;
 
-    private Timer timer = new Timer("FSM Timer");
+    private FsmScheduler scheduler;
+
+    private FsmWorkers workers;
 
     private Long processOpsTime;
 
@@ -321,82 +496,61 @@ public class FiniteStateMachine {
 
     private Set<Long> failures = ConcurrentHashMap.newKeySet();
 
+    private FsmJournal journal;
+
+    /* The journal is compacted when it has this many records more than entries */
+    private static final int JOURNAL_MIN_RECORDS = 10000;
+
     @PreDestroy
     private void exit() {
-        timer.cancel();
-        logger.info("Cancelled timer");
+        if (scheduler != null) {
+            scheduler.stop();
+            workers.shutdown();
+            logger.info("Stopped FSM scheduler");
+            /*
+             * Operations still running are not waited for as they call back
+             * into the LockManager, which may already have been destroyed.
+             * Once the journal is closed they can no longer remove their
+             * entries, which, like those of the operations dropped by
+             * shutdown, are queued again when the server next starts.
+             */
+            try {
+                journal.close();
+            } catch (IOException e) {
+                logger.error("Could not close FSM journal: " + e.getMessage());
+            }
+        }
     }
 
     /**
-     * Find any DfInfo which may be offline
+     * Return true if the datafile may be offline because an operation other
+     * than a write is queued or in progress.
      */
-    public Set<DfInfo> getDfMaybeOffline() {
-        Map<DfInfo, RequestedState> union;
-        synchronized (deferredDfOpsQueue) {
-            union = new HashMap<>(dfChanging);
-            union.putAll(deferredDfOpsQueue);
-        }
-        Set<DfInfo> result = new HashSet<>();
-        for (Entry<DfInfo, RequestedState> entry : union.entrySet()) {
-            if (entry.getValue() != RequestedState.WRITE_REQUESTED) {
-                result.add(entry.getKey());
-            }
-        }
-        return result;
+    public boolean isMaybeOffline(DfInfo dfInfo) {
+        return dfIndex.isMaybeOffline(dfInfo.getDfId());
     }
 
     /**
-     * Find any DfInfo which are being restored or are queued for restoration
+     * Return true if the datafile is being restored or is queued for
+     * restoration.
      */
-    public Set<DfInfo> getDfRestoring() {
-        Map<DfInfo, RequestedState> union;
-        synchronized (deferredDfOpsQueue) {
-            union = new HashMap<>(dfChanging);
-            union.putAll(deferredDfOpsQueue);
-        }
-        Set<DfInfo> result = new HashSet<>();
-        for (Entry<DfInfo, RequestedState> entry : union.entrySet()) {
-            if (entry.getValue() == RequestedState.RESTORE_REQUESTED) {
-                result.add(entry.getKey());
-            }
-        }
-        return result;
+    public boolean isRestoring(DfInfo dfInfo) {
+        return dfIndex.isRestoring(dfInfo.getDfId());
     }
 
     /**
-     * Find any DsInfo which may be offline
+     * Return true if the dataset may be offline, as for datafiles.
      */
-    public Set<DsInfo> getDsMaybeOffline() {
-        Map<DsInfo, RequestedState> union;
-        synchronized (deferredDsOpsQueue) {
-            union = new HashMap<>(dsChanging);
-            union.putAll(deferredDsOpsQueue);
-        }
-        Set<DsInfo> result = new HashSet<>();
-        for (Entry<DsInfo, RequestedState> entry : union.entrySet()) {
-            if (entry.getValue() != RequestedState.WRITE_REQUESTED) {
-                result.add(entry.getKey());
-            }
-        }
-        return result;
+    public boolean isMaybeOffline(DsInfo dsInfo) {
+        return dsIndex.isMaybeOffline(dsInfo.getDsId());
     }
 
     /**
-     * Find any DsInfo which are being restored or are queued for restoration
+     * Return true if the dataset is being restored or is queued for
+     * restoration.
      */
-    public Set<DsInfo> getDsRestoring() {
-        Map<DsInfo, RequestedState> union;
-        synchronized (deferredDsOpsQueue) {
-            union = new HashMap<>(dsChanging);
-            union.putAll(deferredDsOpsQueue);
-        }
-        Set<DsInfo> result = new HashSet<>();
-        for (Entry<DsInfo, RequestedState> entry : union.entrySet()) {
-            if (entry.getValue() == RequestedState.RESTORE_REQUESTED) {
-                result.add(entry.getKey());
-            }
-        }
-        return result;
+    public boolean isRestoring(DsInfo dsInfo) {
+        return dsIndex.isRestoring(dsInfo.getDsId());
     }
 
     public String getServiceStatus() throws InternalException {
@@ -407,8 +561,10 @@ public class FiniteStateMachine {
             } else if (storageUnit == StorageUnit.DATASET) {
                 Map<DsInfo, RequestedState> union;
                 synchronized (deferredDsOpsQueue) {
+                    drainDsIntake();
                     union = new HashMap<>(dsChanging);
                     union.putAll(deferredDsOpsQueue);
+                    dsPriorities.writeStatus(gen, "priorities");
                 }
                 gen.writeStartArray("opsQueue");
                 for (Entry<DsInfo, RequestedState> entry : union.entrySet()) {
@@ -420,8 +576,10 @@ public class FiniteStateMachine {
             } else if (storageUnit == StorageUnit.DATAFILE) {
                 Map<DfInfo, RequestedState> union;
                 synchronized (deferredDfOpsQueue) {
+                    drainDfIntake();
                     union = new HashMap<>(dfChanging);
                     union.putAll(deferredDfOpsQueue);
+                    dfPriorities.writeStatus(gen, "priorities");
                 }
                 gen.writeStartArray("opsQueue");
                 for (Entry<DfInfo, RequestedState> entry : union.entrySet()) {
@@ -446,6 +604,14 @@ public class FiniteStateMachine {
             }
             gen.writeEnd(); // end Array("failures")
 
+            propertyHandler.getBufferPool().writeStatus(gen, "buffers");
+            propertyHandler.getPreparedCache().writeStatus(gen, "preparedCache");
+            dsInfoCache.writeStatus(gen, "dsInfoCache");
+            if (workers != null) {
+                workers.writeStatus(gen, "workers");
+            }
+            propertyHandler.getSelectionCache().writeStatus(gen, "selectionCache");
+
             gen.writeEnd(); // end Object()
         }
         return baos.toString();
@@ -455,157 +621,468 @@ public class FiniteStateMachine {
     private void init() {
         try {
             propertyHandler = PropertyHandler.getInstance();
+            dsInfoCache = propertyHandler.getDsInfoCache();
             processQueueIntervalMillis = propertyHandler.getProcessQueueIntervalSeconds() * 1000L;
             storageUnit = propertyHandler.getStorageUnit();
             if (storageUnit == StorageUnit.DATASET) {
                 processOpsDelayMillis = propertyHandler.getDelayDatasetWrites() * 1000L;
-                timer.schedule(new DsProcessQueue(), processQueueIntervalMillis);
-                logger.info("DsProcessQueue scheduled to run in " + processQueueIntervalMillis + " milliseconds");
+                scheduler = new FsmScheduler("FSM DsProcessQueue", new DsProcessQueue(), processQueueIntervalMillis);
             } else if (storageUnit == StorageUnit.DATAFILE) {
                 processOpsDelayMillis = propertyHandler.getDelayDatafileOperations() * 1000L;
-                timer.schedule(new DfProcessQueue(), processQueueIntervalMillis);
-                logger.info("DfProcessQueue scheduled to run in " + processQueueIntervalMillis + " milliseconds");
+                scheduler = new FsmScheduler("FSM DfProcessQueue", new DfProcessQueue(), processQueueIntervalMillis);
             }
             markerDir = propertyHandler.getCacheDir().resolve("marker");
             Files.createDirectories(markerDir);
+            if (scheduler != null) {
+                dfPriorities = new FsmPriorities<>(propertyHandler);
+                dsPriorities = new FsmPriorities<>(propertyHandler);
+                restorePlanner = new RestorePlanner(propertyHandler);
+                journal = new FsmJournal(propertyHandler.getCacheDir().resolve("fsm.journal"));
+                replayJournal();
+                workers = new FsmWorkers(propertyHandler, scheduler::wake);
+                lockManager.addReleaseListener(scheduler::wake);
+                scheduler.start();
+                scheduler.wake();
+                logger.info("FSM scheduler started with retry interval " + processQueueIntervalMillis + " milliseconds");
+            }
         } catch (IOException e) {
             throw new RuntimeException("FiniteStateMachine reports " + e.getClass() + " " + e.getMessage());
         }
     }
 
-    public void queue(DfInfoImpl dfInfo, DeferredOp deferredOp) throws InternalException {
-        logger.info("Requesting " + deferredOp + " of datafile " + dfInfo);
+    /*
+     * Restore the queue from the journal. Operations which were in progress
+     * when the server stopped are queued again. Priorities are not journalled
+     * so restores are taken to be interactive and anything else explicit.
+     */
+    private void replayJournal() throws IOException {
+        Map<Long, FsmJournal.Entry> entries;
+        try {
+            entries = journal.replay();
+        } catch (IOException e) {
+            logger.error("Could not read FSM journal, starting with an empty queue: " + e.getMessage());
+            entries = new LinkedHashMap<>();
+        }
+        long now = System.currentTimeMillis();
+        int ignored = 0;
+        if (storageUnit == StorageUnit.DATASET) {
+            synchronized (deferredDsOpsQueue) {
+                for (FsmJournal.Entry entry : entries.values()) {
+                    if (entry.dsInfo == null) {
+                        ignored++;
+                        continue;
+                    }
+                    deferredDsOpsQueue.put(entry.dsInfo, entry.state);
+                    dsPriorities.queued(entry.dsInfo, defaultPriority(entry.state), now, true);
+                    index(entry.dsInfo);
+                    if (entry.state == RequestedState.WRITE_REQUESTED
+                            || entry.state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+                        writeTimes.put(entry.dsInfo, now + processOpsDelayMillis);
+                    }
+                }
+                compactJournal();
+            }
+            logger.info("Restored " + deferredDsOpsQueue.size() + " dataset operations from the FSM journal");
+        } else {
+            synchronized (deferredDfOpsQueue) {
+                for (FsmJournal.Entry entry : entries.values()) {
+                    if (entry.dfInfo == null) {
+                        ignored++;
+                        continue;
+                    }
+                    deferredDfOpsQueue.put(entry.dfInfo, entry.state);
+                    dfPriorities.queued(entry.dfInfo, defaultPriority(entry.state), now, true);
+                    index(entry.dfInfo);
+                }
+                if (!deferredDfOpsQueue.isEmpty()) {
+                    processOpsTime = now + processOpsDelayMillis;
+                }
+                compactJournal();
+            }
+            logger.info("Restored " + deferredDfOpsQueue.size() + " datafile operations from the FSM journal");
+        }
+        if (ignored > 0) {
+            logger.warn("Ignored " + ignored + " entries of the FSM journal for a different storage unit");
+        }
+    }
 
-        synchronized (deferredDfOpsQueue) {
+    /*
+     * Set the state of the datafile in the index to the operation queued or
+     * else the one in progress and return it. Must be called holding the
+     * monitor of deferredDfOpsQueue.
+     */
+    private RequestedState index(DfInfo dfInfo) {
+        RequestedState state = deferredDfOpsQueue.get(dfInfo);
+        if (state == null) {
+            state = dfChanging.get(dfInfo);
+        }
+        dfIndex.set(dfInfo.getDfId(), state);
+        return state;
+    }
+
+    /* As above for datasets. Must be called holding the monitor of deferredDsOpsQueue. */
+    private RequestedState index(DsInfo dsInfo) {
+        RequestedState state = deferredDsOpsQueue.get(dsInfo);
+        if (state == null) {
+            state = dsChanging.get(dsInfo);
+        }
+        dsIndex.set(dsInfo.getDsId(), state);
+        return state;
+    }
 
-            if (processOpsTime == null) {
-                processOpsTime = System.currentTimeMillis() + processOpsDelayMillis;
-                final Date d = new Date(processOpsTime);
-                logger.debug("Requesting delay operations till " + d);
+    /*
+     * Record the state of the datafile in the index and in the journal. Must
+     * be called holding the monitor of deferredDfOpsQueue.
+     */
+    private void journal(DfInfo dfInfo) {
+        RequestedState state = index(dfInfo);
+        try {
+            if (state == null) {
+                journal.remove(dfInfo.getDfId());
+            } else {
+                journal.put((DfInfoImpl) dfInfo, state);
             }
+            if (journal.getAppended() > Math.max(JOURNAL_MIN_RECORDS, deferredDfOpsQueue.size() + dfChanging.size())) {
+                compactJournal();
+            }
+        } catch (IOException e) {
+            logger.error("Could not record " + dfInfo + " in FSM journal: " + e.getMessage());
+        }
+    }
 
-            final RequestedState state = this.deferredDfOpsQueue.get(dfInfo);
+    /*
+     * As above for datasets. Must be called holding the monitor of
+     * deferredDsOpsQueue.
+     */
+    private void journal(DsInfo dsInfo) {
+        RequestedState state = index(dsInfo);
+        try {
             if (state == null) {
-                if (deferredOp == DeferredOp.WRITE) {
-                    try {
-                        Path marker = markerDir.resolve(Long.toString(dfInfo.getDfId()));
-                        Files.createFile(marker);
-                        logger.debug("Created marker " + marker);
-                    } catch (FileAlreadyExistsException e) {
-                        // Pass will ignore this
-                    } catch (IOException e) {
-                        throw new InternalException(e.getClass() + " " + e.getMessage());
-                    }
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.WRITE_REQUESTED);
-                } else if (deferredOp == DeferredOp.ARCHIVE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.ARCHIVE_REQUESTED);
-                } else if (deferredOp == DeferredOp.RESTORE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.RESTORE_REQUESTED);
-                } else if (deferredOp == DeferredOp.DELETE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.DELETE_REQUESTED);
-                }
-            } else if (state == RequestedState.ARCHIVE_REQUESTED) {
-                if (deferredOp == DeferredOp.RESTORE) {
-                    deferredDfOpsQueue.remove(dfInfo);
-                } else if (deferredOp == DeferredOp.DELETE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.DELETE_REQUESTED);
-                }
-            } else if (state == RequestedState.DELETE_REQUESTED) {
-                // No way out
-            } else if (state == RequestedState.RESTORE_REQUESTED) {
-                if (deferredOp == DeferredOp.DELETE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.DELETE_REQUESTED);
-                } else if (deferredOp == DeferredOp.ARCHIVE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.ARCHIVE_REQUESTED);
-                }
-            } else if (state == RequestedState.WRITE_REQUESTED) {
-                if (deferredOp == DeferredOp.DELETE) {
-                    deferredDfOpsQueue.remove(dfInfo);
-                } else if (deferredOp == DeferredOp.ARCHIVE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
-                }
-            } else if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
-                if (deferredOp == DeferredOp.DELETE) {
-                    deferredDfOpsQueue.remove(dfInfo);
-                } else if (deferredOp == DeferredOp.RESTORE) {
-                    deferredDfOpsQueue.put(dfInfo, RequestedState.WRITE_REQUESTED);
-                }
+                journal.remove(dsInfo.getDsId());
+            } else {
+                journal.put(dsInfo, state);
+            }
+            if (journal.getAppended() > Math.max(JOURNAL_MIN_RECORDS, deferredDsOpsQueue.size() + dsChanging.size())) {
+                compactJournal();
             }
+        } catch (IOException e) {
+            logger.error("Could not record " + dsInfo + " in FSM journal: " + e.getMessage());
         }
     }
 
-    public void queue(DsInfo dsInfo, DeferredOp deferredOp) throws InternalException {
-        logger.info("Requesting " + deferredOp + " of dataset " + dsInfo);
+    /*
+     * Rewrite the journal with just the current operations. Must be called
+     * holding the monitor of the queue for the storage unit.
+     */
+    private void compactJournal() throws IOException {
+        Map<Long, FsmJournal.Entry> entries = new LinkedHashMap<>();
+        if (storageUnit == StorageUnit.DATASET) {
+            for (Entry<DsInfo, RequestedState> entry : dsChanging.entrySet()) {
+                entries.put(entry.getKey().getDsId(), new FsmJournal.Entry(entry.getKey(), entry.getValue()));
+            }
+            for (Entry<DsInfo, RequestedState> entry : deferredDsOpsQueue.entrySet()) {
+                entries.put(entry.getKey().getDsId(), new FsmJournal.Entry(entry.getKey(), entry.getValue()));
+            }
+        } else {
+            for (Entry<DfInfo, RequestedState> entry : dfChanging.entrySet()) {
+                entries.put(entry.getKey().getDfId(),
+                        new FsmJournal.Entry((DfInfoImpl) entry.getKey(), entry.getValue()));
+            }
+            for (Entry<DfInfoImpl, RequestedState> entry : deferredDfOpsQueue.entrySet()) {
+                entries.put(entry.getKey().getDfId(), new FsmJournal.Entry(entry.getKey(), entry.getValue()));
+            }
+        }
+        journal.compact(entries.values());
+    }
 
+    /**
+     * Return the datasets with queued operations by id. This is used at
+     * startup to avoid looking up in ICAT those already restored from the
+     * journal.
+     */
+    public Map<Long, DsInfo> getQueuedDatasets() {
+        Map<Long, DsInfo> queued = new HashMap<>();
         synchronized (deferredDsOpsQueue) {
+            drainDsIntake();
+            for (DsInfo dsInfo : deferredDsOpsQueue.keySet()) {
+                queued.put(dsInfo.getDsId(), dsInfo);
+            }
+        }
+        return queued;
+    }
 
-            final RequestedState state = this.deferredDsOpsQueue.get(dsInfo);
-            if (state == null) {
-                if (deferredOp == DeferredOp.WRITE) {
-                    requestWrite(dsInfo);
-                } else if (deferredOp == DeferredOp.ARCHIVE) {
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.ARCHIVE_REQUESTED);
-                } else if (deferredOp == DeferredOp.RESTORE) {
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.RESTORE_REQUESTED);
-                }
-            } else if (state == RequestedState.ARCHIVE_REQUESTED) {
-                if (deferredOp == DeferredOp.WRITE) {
-                    requestWrite(dsInfo);
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
-                } else if (deferredOp == DeferredOp.RESTORE) {
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.RESTORE_REQUESTED);
-                }
-            } else if (state == RequestedState.RESTORE_REQUESTED) {
-                if (deferredOp == DeferredOp.WRITE) {
-                    requestWrite(dsInfo);
-                } else if (deferredOp == DeferredOp.ARCHIVE) {
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.ARCHIVE_REQUESTED);
-                }
-            } else if (state == RequestedState.WRITE_REQUESTED) {
-                if (deferredOp == DeferredOp.WRITE) {
-                    setDelay(dsInfo);
-                } else if (deferredOp == DeferredOp.ARCHIVE) {
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
-                }
-            } else if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
-                if (deferredOp == DeferredOp.WRITE) {
-                    setDelay(dsInfo);
-                } else if (deferredOp == DeferredOp.RESTORE) {
-                    deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_REQUESTED);
-                }
+    /**
+     * Return the datafiles with queued operations by id, as for
+     * getQueuedDatasets.
+     */
+    public Map<Long, DfInfoImpl> getQueuedDatafiles() {
+        Map<Long, DfInfoImpl> queued = new HashMap<>();
+        synchronized (deferredDfOpsQueue) {
+            drainDfIntake();
+            for (DfInfoImpl dfInfo : deferredDfOpsQueue.keySet()) {
+                queued.put(dfInfo.getDfId(), dfInfo);
             }
         }
+        return queued;
+    }
 
+    /**
+     * Request an operation on a datafile. The request is added to a queue
+     * without waiting for the FSM, which merges it with any operation already
+     * requested for the datafile when it next runs or is asked about the
+     * state of the queue.
+     */
+    public void queue(DfInfoImpl dfInfo, DeferredOp deferredOp) throws InternalException {
+        queue(dfInfo, deferredOp, defaultPriority(deferredOp));
+    }
+
+    /**
+     * Request an operation on a datafile with the specified priority.
+     */
+    public void queue(DfInfoImpl dfInfo, DeferredOp deferredOp, Priority priority) throws InternalException {
+        logger.info("Requesting " + deferredOp + " of datafile " + dfInfo + " with priority " + priority);
+        boolean markerCreated = deferredOp == DeferredOp.WRITE && createMarker(dfInfo.getDfId());
+        FsmStateIndex.Pending pending = dfIndex.requested(dfInfo.getDfId(), deferredOp);
+        dfIntake.add(new Intake<>(dfInfo, deferredOp, priority, System.currentTimeMillis(), markerCreated, pending));
+        scheduler.wake();
+    }
+
+    /* Merge the requests made since this was last called. Must be called holding the monitor of deferredDfOpsQueue */
+    private void drainDfIntake() {
+        Intake<DfInfoImpl> intake;
+        while ((intake = dfIntake.poll()) != null) {
+            mergeDf(intake);
+        }
+    }
+
+    private void mergeDf(Intake<DfInfoImpl> intake) {
+        DfInfoImpl dfInfo = intake.info;
+        DeferredOp deferredOp = intake.op;
+
+        if (processOpsTime == null) {
+            processOpsTime = intake.time + processOpsDelayMillis;
+            final Date d = new Date(processOpsTime);
+            logger.debug("Requesting delay operations till " + d);
+        }
+
+        final RequestedState state = this.deferredDfOpsQueue.get(dfInfo);
+        if (state == null) {
+            if (deferredOp == DeferredOp.WRITE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.WRITE_REQUESTED);
+            } else if (deferredOp == DeferredOp.ARCHIVE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.ARCHIVE_REQUESTED);
+            } else if (deferredOp == DeferredOp.RESTORE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.RESTORE_REQUESTED);
+            } else if (deferredOp == DeferredOp.DELETE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.DELETE_REQUESTED);
+            }
+        } else if (state == RequestedState.ARCHIVE_REQUESTED) {
+            if (deferredOp == DeferredOp.RESTORE) {
+                deferredDfOpsQueue.remove(dfInfo);
+            } else if (deferredOp == DeferredOp.DELETE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.DELETE_REQUESTED);
+            }
+        } else if (state == RequestedState.DELETE_REQUESTED) {
+            // No way out
+        } else if (state == RequestedState.RESTORE_REQUESTED) {
+            if (deferredOp == DeferredOp.DELETE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.DELETE_REQUESTED);
+            } else if (deferredOp == DeferredOp.ARCHIVE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.ARCHIVE_REQUESTED);
+            }
+        } else if (state == RequestedState.WRITE_REQUESTED) {
+            if (deferredOp == DeferredOp.DELETE) {
+                deferredDfOpsQueue.remove(dfInfo);
+            } else if (deferredOp == DeferredOp.ARCHIVE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
+            }
+        } else if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+            if (deferredOp == DeferredOp.DELETE) {
+                deferredDfOpsQueue.remove(dfInfo);
+            } else if (deferredOp == DeferredOp.RESTORE) {
+                deferredDfOpsQueue.put(dfInfo, RequestedState.WRITE_REQUESTED);
+            }
+        }
+        if (intake.markerCreated && deferredOp == DeferredOp.WRITE
+                && deferredDfOpsQueue.get(dfInfo) != RequestedState.WRITE_REQUESTED
+                && deferredDfOpsQueue.get(dfInfo) != RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+            /* The write was not queued so the marker must not hold up an archive */
+            try {
+                Files.deleteIfExists(markerDir.resolve(Long.toString(dfInfo.getDfId())));
+            } catch (IOException e) {
+                logger.error("Could not remove marker of " + dfInfo + ": " + e.getMessage());
+            }
+        }
+        prioritise(dfPriorities, deferredDfOpsQueue, dfInfo, state, intake);
+        journal(dfInfo);
+        dfIndex.merged(dfInfo.getDfId(), intake.pending);
+    }
+
+    /**
+     * Request an operation on a dataset, which is queued as for datafiles.
+     */
+    public void queue(DsInfo dsInfo, DeferredOp deferredOp) throws InternalException {
+        queue(dsInfo, deferredOp, defaultPriority(deferredOp));
+    }
+
+    /**
+     * Request an operation on a dataset with the specified priority.
+     */
+    public void queue(DsInfo dsInfo, DeferredOp deferredOp, Priority priority) throws InternalException {
+        logger.info("Requesting " + deferredOp + " of dataset " + dsInfo + " with priority " + priority);
+        boolean markerCreated = deferredOp == DeferredOp.WRITE && createMarker(dsInfo.getDsId());
+        FsmStateIndex.Pending pending = dsIndex.requested(dsInfo.getDsId(), deferredOp);
+        dsIntake.add(new Intake<>(dsInfo, deferredOp, priority, System.currentTimeMillis(), markerCreated, pending));
+        scheduler.wake();
+    }
+
+    /* Merge the requests made since this was last called. Must be called holding the monitor of deferredDsOpsQueue */
+    private void drainDsIntake() {
+        Intake<DsInfo> intake;
+        while ((intake = dsIntake.poll()) != null) {
+            mergeDs(intake);
+        }
+    }
+
+    private void mergeDs(Intake<DsInfo> intake) {
+        DsInfo dsInfo = intake.info;
+        DeferredOp deferredOp = intake.op;
+        long time = intake.time;
+
+        final RequestedState state = this.deferredDsOpsQueue.get(dsInfo);
+        if (state == null) {
+            if (deferredOp == DeferredOp.WRITE) {
+                requestWrite(dsInfo, time);
+            } else if (deferredOp == DeferredOp.ARCHIVE) {
+                deferredDsOpsQueue.put(dsInfo, RequestedState.ARCHIVE_REQUESTED);
+            } else if (deferredOp == DeferredOp.RESTORE) {
+                deferredDsOpsQueue.put(dsInfo, RequestedState.RESTORE_REQUESTED);
+            }
+        } else if (state == RequestedState.ARCHIVE_REQUESTED) {
+            if (deferredOp == DeferredOp.WRITE) {
+                requestWrite(dsInfo, time);
+                deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
+            } else if (deferredOp == DeferredOp.RESTORE) {
+                deferredDsOpsQueue.put(dsInfo, RequestedState.RESTORE_REQUESTED);
+            }
+        } else if (state == RequestedState.RESTORE_REQUESTED) {
+            if (deferredOp == DeferredOp.WRITE) {
+                requestWrite(dsInfo, time);
+            } else if (deferredOp == DeferredOp.ARCHIVE) {
+                deferredDsOpsQueue.put(dsInfo, RequestedState.ARCHIVE_REQUESTED);
+            }
+        } else if (state == RequestedState.WRITE_REQUESTED) {
+            if (deferredOp == DeferredOp.WRITE) {
+                setDelay(dsInfo, time);
+            } else if (deferredOp == DeferredOp.ARCHIVE) {
+                deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
+            }
+        } else if (state == RequestedState.WRITE_THEN_ARCHIVE_REQUESTED) {
+            if (deferredOp == DeferredOp.WRITE) {
+                setDelay(dsInfo, time);
+            } else if (deferredOp == DeferredOp.RESTORE) {
+                deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_REQUESTED);
+            }
+        }
+        prioritise(dsPriorities, deferredDsOpsQueue, dsInfo, state, intake);
+        journal(dsInfo);
+        dsIndex.merged(dsInfo.getDsId(), intake.pending);
+    }
+
+    /*
+     * Record the priority of a request just merged. A request which replaces
+     * the queued operation by an archive, restore or delete sets the priority
+     * while one which adds to or leaves the operation can only raise it.
+     */
+    private static <K> void prioritise(FsmPriorities<K> priorities, Map<K, RequestedState> queue, K key,
+            RequestedState before, Intake<?> intake) {
+        RequestedState after = queue.get(key);
+        if (after == null) {
+            priorities.dequeued(key);
+        } else {
+            boolean replaced = after != before && after != RequestedState.WRITE_REQUESTED
+                    && after != RequestedState.WRITE_THEN_ARCHIVE_REQUESTED;
+            priorities.queued(key, intake.priority, intake.time, replaced);
+        }
+    }
+
+    /*
+     * Return the time at which the restores which could be started are due,
+     * or Long.MAX_VALUE if there are none.
+     */
+    private <K> long restoresDue(FsmPriorities<K> priorities, List<K> candidates) {
+        if (candidates.isEmpty()) {
+            return Long.MAX_VALUE;
+        }
+        long oldest = Long.MAX_VALUE;
+        for (K key : candidates) {
+            oldest = Math.min(oldest, priorities.getTime(key));
+        }
+        return restorePlanner.getDue(candidates.size(), oldest);
+    }
+
+    /* Restores are for a user waiting for data */
+    private static Priority defaultPriority(DeferredOp deferredOp) {
+        return deferredOp == DeferredOp.RESTORE ? Priority.INTERACTIVE : Priority.EXPLICIT;
+    }
+
+    private static Priority defaultPriority(RequestedState state) {
+        return state == RequestedState.RESTORE_REQUESTED ? Priority.INTERACTIVE : Priority.EXPLICIT;
+    }
+
+    /* The type of operation, and so the pool of workers, which carries out the state */
+    private static DeferredOp opOf(RequestedState state) {
+        if (state == RequestedState.ARCHIVE_REQUESTED) {
+            return DeferredOp.ARCHIVE;
+        } else if (state == RequestedState.RESTORE_REQUESTED) {
+            return DeferredOp.RESTORE;
+        } else if (state == RequestedState.DELETE_REQUESTED) {
+            return DeferredOp.DELETE;
+        } else {
+            return DeferredOp.WRITE;
+        }
     }
 
     public void removeFromChanging(DfInfo dfInfo) {
         synchronized (deferredDfOpsQueue) {
             dfChanging.remove(dfInfo);
+            dfPriorities.finished((DfInfoImpl) dfInfo);
+            journal(dfInfo);
         }
+        scheduler.wake();
     }
 
     public void removeFromChanging(DsInfo dsInfo) {
         synchronized (deferredDsOpsQueue) {
             dsChanging.remove(dsInfo);
+            dsPriorities.finished(dsInfo);
+            journal(dsInfo);
         }
+        scheduler.wake();
     }
 
-    private void requestWrite(DsInfo dsInfo) throws InternalException {
+    /* Create the marker of a dataset or datafile to be written returning false if it already exists */
+    private boolean createMarker(long id) throws InternalException {
         try {
-            Path marker = markerDir.resolve(Long.toString(dsInfo.getDsId()));
+            Path marker = markerDir.resolve(Long.toString(id));
             Files.createFile(marker);
             logger.debug("Created marker " + marker);
+            return true;
         } catch (FileAlreadyExistsException e) {
             // Pass will ignore this
+            return false;
         } catch (IOException e) {
             throw new InternalException(e.getClass() + " " + e.getMessage());
         }
+    }
+
+    private void requestWrite(DsInfo dsInfo, long time) {
         deferredDsOpsQueue.put(dsInfo, RequestedState.WRITE_REQUESTED);
-        setDelay(dsInfo);
+        setDelay(dsInfo, time);
     }
 
-    private void setDelay(DsInfo dsInfo) {
-        writeTimes.put(dsInfo, System.currentTimeMillis() + processOpsDelayMillis);
+    private void setDelay(DsInfo dsInfo, long time) {
+        writeTimes.put(dsInfo, time + processOpsDelayMillis);
         if (logger.isDebugEnabled()) {
             final Date d = new Date(writeTimes.get(dsInfo));
             logger.debug("Requesting delay of writing of dataset " + dsInfo + " till " + d);
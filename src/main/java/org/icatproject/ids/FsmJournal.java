@@ -0,0 +1,305 @@
+package org.icatproject.ids;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.icatproject.ids.FiniteStateMachine.RequestedState;
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * An append-only journal of the operations queued by the FSM so that the
+ * whole queue, including archives and restores, survives a restart without
+ * asking ICAT about each entry. Each record either puts the state of a
+ * dataset or datafile, with all of its DsInfo or DfInfo, or removes it. A
+ * record is written as its length, its contents and a CRC-32 of its
+ * contents; reading stops at the first record which is incomplete or fails
+ * its checksum, which is what a crash while appending leaves behind.
+ * <p>
+ * Records are written straight to the file, so survive a crash of the
+ * server, but are not forced to disk until the journal is compacted.
+ * Compaction writes just the current entries to a new file which then
+ * replaces the journal.
+ * <p>
+ * Once the journal is closed anything more is ignored. Operations still
+ * running when the FSM stops therefore keep their entries, with the state
+ * they were queued with, and are queued again by the next replay.
+ */
+class FsmJournal implements Closeable {
+
+    /**
+     * A dataset or datafile with the operation requested for it.
+     */
+    static class Entry {
+        final long id;
+        final RequestedState state;
+        final DsInfo dsInfo;
+        final DfInfoImpl dfInfo;
+
+        Entry(DsInfo dsInfo, RequestedState state) {
+            this.id = dsInfo.getDsId();
+            this.state = state;
+            this.dsInfo = dsInfo;
+            this.dfInfo = null;
+        }
+
+        Entry(DfInfoImpl dfInfo, RequestedState state) {
+            this.id = dfInfo.getDfId();
+            this.state = state;
+            this.dsInfo = null;
+            this.dfInfo = dfInfo;
+        }
+    }
+
+    private static final int MAGIC = 0x4944534A; // "IDSJ"
+    private static final int VERSION = 1;
+
+    private static final int PUT_DATASET = 1;
+    private static final int PUT_DATAFILE = 2;
+    private static final int REMOVE = 3;
+
+    private static final int MAX_RECORD = 1 << 20;
+
+    private static final RequestedState[] states = RequestedState.values();
+
+    private static final Logger logger = LoggerFactory.getLogger(FsmJournal.class);
+
+    private final Path file;
+    private FileChannel channel;
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    private final CRC32 crc = new CRC32();
+    private long appended;
+    private boolean closed;
+
+    FsmJournal(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the journal, if it exists, and return the current entries by id
+     * in the order in which they were first put. This must be followed by a
+     * call of {@link #compact} before anything is appended.
+     */
+    synchronized Map<Long, Entry> replay() throws IOException {
+        Map<Long, Entry> entries = new LinkedHashMap<>();
+        if (!Files.exists(file)) {
+            return entries;
+        }
+        long records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not an FSM journal of version " + VERSION);
+            }
+            while (true) {
+                byte[] contents;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0 || length > MAX_RECORD) {
+                        logger.warn("Length of record {} of {} is wrong; ignoring the rest", records, file);
+                        break;
+                    }
+                    contents = new byte[length];
+                    in.readFully(contents);
+                    crc.reset();
+                    crc.update(contents);
+                    if ((int) crc.getValue() != in.readInt()) {
+                        logger.warn("Checksum of record {} of {} is wrong; ignoring the rest", records, file);
+                        break;
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                read(contents, entries);
+                records++;
+            }
+        }
+        logger.info("Read {} records of {} leaving {} entries", records, file, entries.size());
+        return entries;
+    }
+
+    private static void read(byte[] contents, Map<Long, Entry> entries) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(contents));
+        int type = in.readUnsignedByte();
+        long id = PreparedFile.readVarLong(in);
+        if (type == REMOVE) {
+            entries.remove(id);
+            return;
+        }
+        RequestedState state = states[in.readUnsignedByte()];
+        if (type == PUT_DATASET) {
+            String name = PreparedFile.readString(in);
+            String location = PreparedFile.readString(in);
+            long invId = PreparedFile.readVarLong(in);
+            String invName = PreparedFile.readString(in);
+            String visitId = PreparedFile.readString(in);
+            long facilityId = PreparedFile.readVarLong(in);
+            String facilityName = PreparedFile.readString(in);
+            entries.put(id, new Entry(
+                    new DsInfoImpl(id, name, location, invId, invName, visitId, facilityId, facilityName), state));
+        } else if (type == PUT_DATAFILE) {
+            String name = PreparedFile.readString(in);
+            String location = PreparedFile.readString(in);
+            String createId = PreparedFile.readString(in);
+            String modId = PreparedFile.readString(in);
+            long dsId = PreparedFile.readVarLong(in);
+            long size = PreparedFile.readVarLong(in);
+            String checksum = PreparedFile.readString(in);
+            entries.put(id, new Entry(new DfInfoImpl(id, name, location, createId, modId, dsId,
+                    size == 0 ? null : size - 1, checksum), state));
+        } else {
+            throw new IOException("Unknown FSM journal record type " + type);
+        }
+    }
+
+    synchronized void put(DsInfo dsInfo, RequestedState state) throws IOException {
+        if (closed) {
+            return;
+        }
+        DataOutputStream out = start(PUT_DATASET, dsInfo.getDsId());
+        write(out, new Entry(dsInfo, state));
+        append();
+    }
+
+    synchronized void put(DfInfoImpl dfInfo, RequestedState state) throws IOException {
+        if (closed) {
+            return;
+        }
+        DataOutputStream out = start(PUT_DATAFILE, dfInfo.getDfId());
+        write(out, new Entry(dfInfo, state));
+        append();
+    }
+
+    synchronized void remove(long id) throws IOException {
+        if (closed) {
+            return;
+        }
+        start(REMOVE, id);
+        append();
+    }
+
+    /**
+     * Return the number of records appended since the journal was last
+     * compacted.
+     */
+    synchronized long getAppended() {
+        return appended;
+    }
+
+    /**
+     * Replace the journal by one holding just the specified entries.
+     */
+    synchronized void compact(Collection<Entry> entries) throws IOException {
+        if (closed) {
+            return;
+        }
+        closeChannel();
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            OutputStream stream = new BufferedOutputStream(Channels.newOutputStream(out));
+            DataOutputStream header = new DataOutputStream(stream);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            for (Entry entry : entries) {
+                DataOutputStream rec = start(entry.dsInfo != null ? PUT_DATASET : PUT_DATAFILE, entry.id);
+                write(rec, entry);
+                frame(stream);
+            }
+            stream.flush();
+            out.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        appended = 0;
+        logger.debug("Compacted {} to {} entries", file, entries.size());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        closeChannel();
+    }
+
+    private void closeChannel() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private DataOutputStream start(int type, long id) throws IOException {
+        record.reset();
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeByte(type);
+        PreparedFile.writeVarLong(out, id);
+        return out;
+    }
+
+    private static void write(DataOutputStream out, Entry entry) throws IOException {
+        out.writeByte(entry.state.ordinal());
+        if (entry.dsInfo != null) {
+            DsInfo dsInfo = entry.dsInfo;
+            PreparedFile.writeString(out, dsInfo.getDsName());
+            PreparedFile.writeString(out, dsInfo.getDsLocation());
+            PreparedFile.writeVarLong(out, dsInfo.getInvId());
+            PreparedFile.writeString(out, dsInfo.getInvName());
+            PreparedFile.writeString(out, dsInfo.getVisitId());
+            PreparedFile.writeVarLong(out, dsInfo.getFacilityId());
+            PreparedFile.writeString(out, dsInfo.getFacilityName());
+        } else {
+            DfInfoImpl dfInfo = entry.dfInfo;
+            PreparedFile.writeString(out, dfInfo.getDfName());
+            PreparedFile.writeString(out, dfInfo.getDfLocation());
+            PreparedFile.writeString(out, dfInfo.getCreateId());
+            PreparedFile.writeString(out, dfInfo.getModId());
+            PreparedFile.writeVarLong(out, dfInfo.getDsId());
+            PreparedFile.writeVarLong(out, dfInfo.getFileSize() == null ? 0 : dfInfo.getFileSize() + 1);
+            PreparedFile.writeString(out, dfInfo.getChecksum());
+        }
+    }
+
+    /* Write the record just built as its length, contents and checksum */
+    private void frame(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(record.size());
+        record.writeTo(out);
+        crc.reset();
+        crc.update(record.toByteArray());
+        out.writeInt((int) crc.getValue());
+    }
+
+    private void append() throws IOException {
+        if (channel == null) {
+            throw new IOException("FSM journal " + file + " is not open");
+        }
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(record.size() + 8);
+        frame(framed);
+        ByteBuffer buffer = ByteBuffer.wrap(framed.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        appended++;
+    }
+
+}
@@ -0,0 +1,179 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jakarta.json.stream.JsonGenerator;
+
+import org.icatproject.ids.FiniteStateMachine.Priority;
+
+/**
+ * The priority of each dataset or datafile queued by the FSM, and of those
+ * in progress, so that a pass takes queued items in order of priority and,
+ * within a priority, in the order in which they were requested. The number
+ * of items of each priority in progress at once may be limited.
+ * <p>
+ * To protect the lower priorities from starvation, an item is raised by one
+ * priority for each period of the configured age that it has been waiting.
+ * <p>
+ * This is not thread safe; the FSM calls it holding the monitor of its queue.
+ */
+class FsmPriorities<K> {
+
+    private static class Ticket {
+        private Priority priority;
+        private long seq;
+        private long time;
+    }
+
+    private static final Priority[] priorities = Priority.values();
+
+    private final Map<K, Ticket> queued = new HashMap<>();
+    private final Map<K, Priority> inProgress = new HashMap<>();
+    private final int[] queuedCounts = new int[priorities.length];
+    private final int[] inProgressCounts = new int[priorities.length];
+    private final int[] maxInProgress = new int[priorities.length];
+    private final long ageMillis;
+    private long seq;
+
+    /**
+     * @param propertyHandler provides the limit on the number of items of
+     *                        each priority in progress, where 0 means no
+     *                        limit, and the age after which an item is raised
+     */
+    FsmPriorities(PropertyHandler propertyHandler) {
+        for (Priority priority : priorities) {
+            maxInProgress[priority.ordinal()] = propertyHandler.getFsmMaxInProgress(priority);
+        }
+        ageMillis = propertyHandler.getFsmPriorityAgeSeconds() * 1000L;
+    }
+
+    /**
+     * Record a request for an item which is left queued. An item already
+     * queued keeps its place and the higher of the two priorities, unless
+     * the request replaced the operation queued for it, in which case it
+     * takes the priority and time of the request.
+     */
+    void queued(K key, Priority priority, long time, boolean replaced) {
+        Ticket ticket = queued.get(key);
+        if (ticket == null) {
+            ticket = new Ticket();
+            queued.put(key, ticket);
+        } else if (replaced) {
+            queuedCounts[ticket.priority.ordinal()]--;
+        } else {
+            if (priority.compareTo(ticket.priority) < 0) {
+                queuedCounts[ticket.priority.ordinal()]--;
+                queuedCounts[priority.ordinal()]++;
+                ticket.priority = priority;
+            }
+            return;
+        }
+        ticket.priority = priority;
+        ticket.seq = seq++;
+        ticket.time = time;
+        queuedCounts[priority.ordinal()]++;
+    }
+
+    /**
+     * Forget a queued item whose request has been cancelled.
+     */
+    void dequeued(K key) {
+        Ticket ticket = queued.remove(key);
+        if (ticket != null) {
+            queuedCounts[ticket.priority.ordinal()]--;
+        }
+    }
+
+    /**
+     * Return the priority of a queued item, else of the item in progress,
+     * else null.
+     */
+    Priority getPriority(K key) {
+        Ticket ticket = queued.get(key);
+        return ticket != null ? ticket.priority : inProgress.get(key);
+    }
+
+    /**
+     * Return the time of the request which set the priority of a queued item.
+     */
+    long getTime(K key) {
+        return queued.get(key).time;
+    }
+
+    /**
+     * Return the keys, which must all be queued, in the order in which they
+     * should be considered at the specified time.
+     */
+    List<K> order(Collection<K> keys, long now) {
+        List<K> result = new ArrayList<>(keys);
+        result.sort(Comparator.<K>comparingInt(k -> effective(queued.get(k), now))
+                .thenComparingLong(k -> queued.get(k).seq));
+        return result;
+    }
+
+    private int effective(Ticket ticket, long now) {
+        long raised = (now - ticket.time) / ageMillis;
+        return (int) Math.max(0, ticket.priority.ordinal() - raised);
+    }
+
+    /**
+     * Return true unless as many items of the priority of the queued item
+     * as allowed are in progress.
+     */
+    boolean canStart(K key) {
+        int p = queued.get(key).priority.ordinal();
+        return maxInProgress[p] == 0 || inProgressCounts[p] < maxInProgress[p];
+    }
+
+    /**
+     * Record that a queued item has been started.
+     */
+    void started(K key) {
+        Ticket ticket = queued.remove(key);
+        queuedCounts[ticket.priority.ordinal()]--;
+        Priority previous = inProgress.put(key, ticket.priority);
+        if (previous != null) {
+            inProgressCounts[previous.ordinal()]--;
+        }
+        inProgressCounts[ticket.priority.ordinal()]++;
+    }
+
+    /**
+     * Record that an item in progress has finished. This may be called more
+     * than once for an item.
+     */
+    void finished(K key) {
+        Priority priority = inProgress.remove(key);
+        if (priority != null) {
+            inProgressCounts[priority.ordinal()]--;
+        }
+    }
+
+    int getQueued(Priority priority) {
+        return queuedCounts[priority.ordinal()];
+    }
+
+    int getInProgress(Priority priority) {
+        return inProgressCounts[priority.ordinal()];
+    }
+
+    /**
+     * Write the queued and in progress counts, and the limit, of each
+     * priority as a JSON object with the specified name.
+     */
+    void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name);
+        for (Priority priority : priorities) {
+            int p = priority.ordinal();
+            gen.writeStartObject(priority.name().toLowerCase()).write("queued", queuedCounts[p])
+                    .write("inProgress", inProgressCounts[p]).write("maxInProgress", maxInProgress[p]).writeEnd();
+        }
+        gen.writeEnd();
+    }
+
+}
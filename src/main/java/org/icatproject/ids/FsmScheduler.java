@@ -0,0 +1,113 @@
+package org.icatproject.ids;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a pass over the queue of deferred operations on a single thread when
+ * work becomes due rather than at a fixed interval. Each pass returns when
+ * it next needs to run, which is Long.MAX_VALUE if the queue is empty, and
+ * the thread sleeps until then unless woken earlier because operations have
+ * been queued, a lock has been released or an operation has finished. Any
+ * number of wakes before a pass starts result in one pass.
+ */
+public class FsmScheduler {
+
+    public interface Pass {
+        /**
+         * Process whatever is due and return the time in milliseconds at
+         * which the next pass is needed.
+         */
+        long run();
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(FsmScheduler.class);
+
+    private final Pass pass;
+    private final long retryMillis;
+    private final Thread thread;
+    private long due = Long.MAX_VALUE;
+    private boolean stopped;
+    private long passes;
+
+    /**
+     * @param name        the name of the thread
+     * @param pass        what to run
+     * @param retryMillis the delay before the next pass if a pass throws
+     */
+    public FsmScheduler(String name, Pass pass, long retryMillis) {
+        this.pass = pass;
+        this.retryMillis = retryMillis;
+        thread = new Thread(this::loop, name);
+        thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    public void stop() {
+        synchronized (this) {
+            stopped = true;
+            notifyAll();
+        }
+        thread.interrupt();
+    }
+
+    /**
+     * Run a pass as soon as possible.
+     */
+    public void wake() {
+        wakeAt(System.currentTimeMillis());
+    }
+
+    /**
+     * Run a pass no later than the specified time in milliseconds.
+     */
+    public synchronized void wakeAt(long time) {
+        if (time < due) {
+            due = time;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Return the number of passes run.
+     */
+    public synchronized long getPasses() {
+        return passes;
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (this) {
+                try {
+                    long now;
+                    while (!stopped && due > (now = System.currentTimeMillis())) {
+                        if (due == Long.MAX_VALUE) {
+                            wait();
+                        } else {
+                            wait(due - now);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Only interrupted by stop
+                }
+                if (stopped) {
+                    return;
+                }
+                due = Long.MAX_VALUE;
+                passes++;
+            }
+            long next;
+            try {
+                next = pass.run();
+            } catch (RuntimeException e) {
+                logger.error("FSM pass failed: {} {}", e.getClass(), e.getMessage());
+                next = System.currentTimeMillis() + retryMillis;
+            }
+            wakeAt(next);
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.icatproject.ids;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.icatproject.ids.FiniteStateMachine.RequestedState;
+
+/**
+ * The state of each dataset or datafile known to the FSM, by id, so that
+ * getStatus and friends can ask about the items of a selection one at a
+ * time without copying the queue or waiting for the FSM. The state of an item
+ * is the operation queued for it or else the one in progress; it is set by
+ * the FSM, holding the monitor of its queue, whenever either changes.
+ * <p>
+ * Requests not yet merged into the queue are also recorded, so that a caller
+ * sees the effect of its own request at once. Until it is merged any request
+ * other than a write is taken to make the item maybe offline and a restore
+ * to make it restoring.
+ */
+class FsmStateIndex {
+
+    /* A request not yet merged */
+    static class Pending {
+        private final DeferredOp op;
+
+        private Pending(DeferredOp op) {
+            this.op = op;
+        }
+    }
+
+    private final ConcurrentHashMap<Long, RequestedState> states = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, Pending> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Set the state of an item, or forget it if the state is null.
+     */
+    void set(long id, RequestedState state) {
+        if (state == null) {
+            states.remove(id);
+        } else {
+            states.put(id, state);
+        }
+    }
+
+    /**
+     * Record a request and return the token to pass to merged.
+     */
+    Pending requested(long id, DeferredOp op) {
+        Pending p = new Pending(op);
+        pending.put(id, p);
+        return p;
+    }
+
+    /**
+     * Forget a request once it has been merged, unless there has been a
+     * later request for the same item.
+     */
+    void merged(long id, Pending p) {
+        pending.remove(id, p);
+    }
+
+    boolean isMaybeOffline(long id) {
+        Pending p = pending.get(id);
+        if (p != null && p.op != DeferredOp.WRITE) {
+            return true;
+        }
+        RequestedState state = states.get(id);
+        return state != null && state != RequestedState.WRITE_REQUESTED;
+    }
+
+    boolean isRestoring(long id) {
+        Pending p = pending.get(id);
+        if (p != null && p.op == DeferredOp.RESTORE) {
+            return true;
+        }
+        return states.get(id) == RequestedState.RESTORE_REQUESTED;
+    }
+
+    /**
+     * Return the number of items with a state.
+     */
+    int size() {
+        return states.size();
+    }
+
+}
@@ -0,0 +1,136 @@
+package org.icatproject.ids;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * The threads which carry out the operations started by the FSM, with a
+ * separate pool of bounded size for each type of operation so that, for
+ * example, a burst of restores cannot starve writes nor start more calls to
+ * the archive storage plugin than it can serve. Operations beyond the size of
+ * a pool wait in its queue, still holding their locks, so the FSM only starts
+ * an operation when {@link #hasCapacity} and otherwise leaves it in its own
+ * queue, where it is taken in order of priority.
+ */
+public class FsmWorkers {
+
+    private final Map<DeferredOp, ThreadPoolExecutor> pools = new EnumMap<>(DeferredOp.class);
+
+    /* Operations of each type executed but not yet finished */
+    private final Map<DeferredOp, AtomicInteger> outstanding = new EnumMap<>(DeferredOp.class);
+
+    private final Runnable onFinished;
+
+    /**
+     * @param propertyHandler provides the size of each pool
+     */
+    public FsmWorkers(PropertyHandler propertyHandler) {
+        this(propertyHandler, () -> {
+        });
+    }
+
+    /**
+     * @param propertyHandler provides the size of each pool
+     * @param onFinished      is run after each operation has finished
+     */
+    public FsmWorkers(PropertyHandler propertyHandler, Runnable onFinished) {
+        this.onFinished = onFinished;
+        for (DeferredOp op : DeferredOp.values()) {
+            int threads = propertyHandler.getFsmThreads(op);
+            String name = "FSM " + op.name().charAt(0) + op.name().substring(1).toLowerCase();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, name);
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            pools.put(op, pool);
+            outstanding.put(op, new AtomicInteger());
+        }
+    }
+
+    /**
+     * Run the task on a thread of the pool for the type of operation, or
+     * queue it if all of those threads are busy.
+     */
+    public void execute(DeferredOp op, Runnable task) {
+        AtomicInteger count = outstanding.get(op);
+        count.incrementAndGet();
+        try {
+            pools.get(op).execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    count.decrementAndGet();
+                    onFinished.run();
+                }
+            });
+        } catch (RuntimeException e) {
+            count.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Return true if an operation of the type would start at once rather
+     * than wait for a thread.
+     */
+    public boolean hasCapacity(DeferredOp op) {
+        return getCapacity(op) > 0;
+    }
+
+    /**
+     * Return the number of operations of the type which would start at once.
+     */
+    public int getCapacity(DeferredOp op) {
+        return Math.max(0, pools.get(op).getMaximumPoolSize() - outstanding.get(op).get());
+    }
+
+    /**
+     * Return the number of operations of the type being carried out.
+     */
+    public int getActive(DeferredOp op) {
+        return pools.get(op).getActiveCount();
+    }
+
+    /**
+     * Return the number of operations of the type waiting for a thread.
+     */
+    public int getQueued(DeferredOp op) {
+        return pools.get(op).getQueue().size();
+    }
+
+    /**
+     * Stop accepting work and drop the operations which have not started.
+     * Operations already started are allowed to finish but are not waited
+     * for.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor pool : pools.values()) {
+            pool.shutdown();
+            pool.getQueue().clear();
+        }
+    }
+
+    /**
+     * Write the size, active and queued counts of each pool as a JSON object
+     * with the specified name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name);
+        for (Map.Entry<DeferredOp, ThreadPoolExecutor> entry : pools.entrySet()) {
+            ThreadPoolExecutor pool = entry.getValue();
+            gen.writeStartObject(entry.getKey().name().toLowerCase()).write("threads", pool.getMaximumPoolSize())
+                    .write("active", pool.getActiveCount()).write("queued", pool.getQueue().size()).writeEnd();
+        }
+        gen.writeEnd();
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.icatproject.ids.exceptions.BadRequestException;
+
+/**
+ * The byte ranges requested by an HTTP Range header as described in RFC 7233.
+ * Single ranges ("bytes=a-b" and "bytes=a-"), suffix ranges ("bytes=-n") and
+ * comma separated lists of these are supported.
+ */
+public class HttpRange {
+
+    /**
+     * A range of bytes where first is the offset of the first byte to send
+     * and last is the offset of the last byte to send or null if all bytes
+     * following first should be sent.
+     */
+    public static class Range {
+
+        private final long first;
+        private final Long last;
+
+        Range(long first, Long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        public long getFirst() {
+            return first;
+        }
+
+        public Long getLast() {
+            return last;
+        }
+
+        /**
+         * Return the number of bytes in the range or null if it is open ended.
+         */
+        public Long getCount() {
+            return last == null ? null : last - first + 1;
+        }
+
+        /**
+         * Return the value for a Content-Range header for a resource of the
+         * specified length.
+         */
+        public String getContentRange(long length) {
+            return "bytes " + first + "-" + last + "/" + length;
+        }
+
+        @Override
+        public String toString() {
+            return first + "-" + (last == null ? "" : last);
+        }
+    }
+
+    private final static Pattern specRe = Pattern.compile("(\\d*)-(\\d*)");
+
+    /*
+     * Each spec is held as {first, last} with null standing for an omitted
+     * value as in the header.
+     */
+    private final List<Long[]> specs;
+
+    private HttpRange(List<Long[]> specs) {
+        this.specs = specs;
+    }
+
+    /**
+     * Parse the value of a Range header.
+     *
+     * @throws BadRequestException if the header is not a valid byte range
+     *                             specification.
+     */
+    public static HttpRange parse(String header) throws BadRequestException {
+        String value = header.trim();
+        if (!value.startsWith("bytes=")) {
+            throw new BadRequestException("The range must start with bytes=");
+        }
+        List<Long[]> specs = new ArrayList<>();
+        for (String spec : value.substring(6).split(",")) {
+            Matcher m = specRe.matcher(spec.trim());
+            if (!m.matches()) {
+                throw new BadRequestException("The range spec '" + spec.trim() + "' is not valid");
+            }
+            try {
+                Long first = m.group(1).isEmpty() ? null : Long.parseLong(m.group(1));
+                Long last = m.group(2).isEmpty() ? null : Long.parseLong(m.group(2));
+                if (first == null && last == null) {
+                    throw new BadRequestException("The range spec '-' is not valid");
+                }
+                if (first != null && last != null && last < first) {
+                    throw new BadRequestException("The range spec '" + spec.trim() + "' ends before it starts");
+                }
+                specs.add(new Long[]{first, last});
+            } catch (NumberFormatException e) {
+                throw new BadRequestException("The range spec '" + spec.trim() + "' is too large");
+            }
+        }
+        return new HttpRange(specs);
+    }
+
+    /**
+     * Return true if more than one range was requested.
+     */
+    public boolean isMultiple() {
+        return specs.size() > 1;
+    }
+
+    /**
+     * Return the single range to send when the length of the resource is not
+     * known or null if that cannot be done. This is only possible for a single
+     * range which is not a suffix range.
+     */
+    public Range getUnboundedRange() {
+        if (specs.size() != 1 || specs.get(0)[0] == null) {
+            return null;
+        }
+        return new Range(specs.get(0)[0], specs.get(0)[1]);
+    }
+
+    /**
+     * Resolve the requested ranges against a resource of the specified
+     * length. Unsatisfiable ranges are dropped so an empty list means that
+     * none of the ranges can be satisfied.
+     */
+    public List<Range> resolve(long length) {
+        if (length == 0) {
+            return Collections.emptyList();
+        }
+        List<Range> ranges = new ArrayList<>();
+        for (Long[] spec : specs) {
+            Long first = spec[0];
+            Long last = spec[1];
+            if (first == null) {
+                if (last == 0) {
+                    continue;
+                }
+                ranges.add(new Range(Math.max(0L, length - last), length - 1));
+            } else if (first < length) {
+                ranges.add(new Range(first, last == null ? length - 1 : Math.min(last, length - 1)));
+            }
+        }
+        return ranges;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("bytes=");
+        boolean start = true;
+        for (Long[] spec : specs) {
+            if (!start) {
+                sb.append(',');
+            }
+            start = false;
+            sb.append(spec[0] == null ? "" : spec[0]).append('-').append(spec[1] == null ? "" : spec[1]);
+        }
+        return sb.toString();
+    }
+
+}
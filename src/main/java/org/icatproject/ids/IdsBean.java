@@ -1,30 +1,38 @@
 package org.icatproject.ids;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.Deque;
 import java.util.GregorianCalendar;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.OptionalLong;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.SortedSet;
-import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.Callable;
@@ -37,6 +45,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipOutputStream;
@@ -46,12 +55,9 @@ import jakarta.annotation.PostConstruct;
 import jakarta.ejb.EJB;
 import jakarta.ejb.Stateless;
 import jakarta.json.Json;
-import jakarta.json.JsonNumber;
-import jakarta.json.JsonObject;
-import jakarta.json.JsonReader;
-import jakarta.json.JsonValue;
 import jakarta.json.stream.JsonGenerator;
 import static jakarta.ws.rs.core.HttpHeaders.CONTENT_LENGTH;
+import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import jakarta.ws.rs.core.StreamingOutput;
 
@@ -169,22 +175,46 @@ public class IdsBean {
 
     private class SO implements StreamingOutput {
 
-        private long offset;
+        private ZipLayout layout;
+        private List<HttpRange.Range> ranges;
+        private Long length;
+        private String boundary;
         private boolean zip;
         private Map<Long, DsInfo> dsInfos;
         private Lock lock;
         private boolean compress;
         private Set<DfInfoImpl> dfInfos;
+        private StreamLocks streamLocks;
         private String ip;
         private long start;
         private Long transferId;
 
-        SO(Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, long offset, boolean zip, boolean compress,
-           Lock lock, Long transferId, String ip, long start) {
-            this.offset = offset;
+        /**
+         * @param layout      the layout of a zip file with stored entries or
+         *                    null if the data are not being zipped or the
+         *                    layout is not known.
+         * @param ranges      the ranges to send or null to send everything.
+         *                    There may only be more than one range if the
+         *                    length is known in which case a boundary must be
+         *                    provided.
+         * @param length      the total length of the data if known.
+         * @param boundary    the boundary for a multipart/byteranges response.
+         * @param streamLocks the datafiles of a streamed selection to zip,
+         *                    which lock each dataset as it is reached, rather
+         *                    than dfInfos, or null. They are closed once the
+         *                    data have been sent.
+         */
+        SO(Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, StreamLocks streamLocks, ZipLayout layout,
+           List<HttpRange.Range> ranges, Long length, String boundary, boolean zip, boolean compress, Lock lock,
+           Long transferId, String ip, long start) {
+            this.layout = layout;
+            this.ranges = ranges;
+            this.length = length;
+            this.boundary = boundary;
             this.zip = zip;
             this.dsInfos = dsInfos;
             this.dfInfos = dfInfos;
+            this.streamLocks = streamLocks;
             this.lock = lock;
             this.compress = compress;
             this.transferId = transferId;
@@ -195,50 +225,94 @@ public class IdsBean {
         @Override
         public void write(OutputStream output) throws IOException {
             Object transfer = "??";
+            byte[] bytes = bufferPool.acquire();
             try {
-                if (offset != 0) { // Wrap the stream if needed
-                    output = new RangeOutputStream(output, offset, null);
-                }
-                byte[] bytes = new byte[BUFSIZ];
-                if (zip) {
-                    ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(output));
-                    if (!compress) {
-                        zos.setLevel(0); // Otherwise use default compression
+                if (zip && layout == null) {
+                    if (ranges != null) { // Wrap the stream if needed
+                        HttpRange.Range range = ranges.get(0);
+                        output = new RangeOutputStream(output, range.getFirst(), range.getCount());
                     }
-
-                    for (DfInfoImpl dfInfo : dfInfos) {
-                        logger.debug("Adding " + dfInfo + " to zip");
-                        transfer = dfInfo;
-                        DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
-                        String entryName = zipMapper.getFullEntryName(dsInfo, dfInfo);
-                        InputStream stream = null;
-                        try {
-                            zos.putNextEntry(new ZipEntry(entryName));
-                            stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId());
-                            int length;
-                            while ((length = stream.read(bytes)) >= 0) {
-                                zos.write(bytes, 0, length);
-                            }
-                        } catch (ZipException e) {
-                            logger.debug("Skipped duplicate");
+                    OutputStream bos = new BufferedOutputStream(output);
+                    ParallelZipOutputStream pzos = null;
+                    ZipOutputStream zos = null;
+                    if (compress && compressionPool != null) {
+                        pzos = new ParallelZipOutputStream(bos, compressionPool, Deflater.DEFAULT_COMPRESSION);
+                    } else {
+                        zos = new ZipOutputStream(bos);
+                        if (!compress) {
+                            zos.setLevel(0); // Otherwise use default compression
                         }
-                        zos.closeEntry();
-                        if (stream != null) {
-                            stream.close();
+                    }
+                    OutputStream entryStream = pzos == null ? zos : pzos;
+
+                    try (ReadAhead.Session session = readAhead == null ? null
+                                 : readAhead.start(streamLocks == null ? dfInfos.iterator() : streamLocks,
+                                 dfInfo -> mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                                         dfInfo.getModId()))) {
+                        Iterator<DfInfoImpl> iter = streamLocks == null ? dfInfos.iterator() : streamLocks;
+                        while (session == null ? iter.hasNext() : session.hasNext()) {
+                            DfInfoImpl dfInfo = session == null ? iter.next() : session.peek();
+                            if (streamLocks != null) {
+                                streamLocks.releaseBefore(dfInfo.getDsId());
+                            }
+                            logger.debug("Adding " + dfInfo + " to zip");
+                            transfer = dfInfo;
+                            DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
+                            String entryName = zipMapper.getFullEntryName(dsInfo, dfInfo);
+                            InputStream stream = session == null ? null : session.next();
+                            try {
+                                if (pzos == null) {
+                                    zos.putNextEntry(new ZipEntry(entryName));
+                                } else {
+                                    pzos.putNextEntry(new ZipEntry(entryName));
+                                }
+                                if (stream == null) {
+                                    stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                                            dfInfo.getModId());
+                                }
+                                int length;
+                                while ((length = stream.read(bytes)) >= 0) {
+                                    entryStream.write(bytes, 0, length);
+                                }
+                            } catch (ZipException e) {
+                                logger.debug("Skipped duplicate");
+                            }
+                            if (pzos == null) {
+                                zos.closeEntry();
+                            } else {
+                                pzos.closeEntry();
+                            }
+                            if (stream != null) {
+                                stream.close();
+                            }
                         }
+                    } catch (UncheckedIOException e) {
+                        /* Failure to read, lock or restore a streamed selection */
+                        throw e.getCause();
                     }
-                    zos.close();
+                    entryStream.close();
                 } else {
-                    DfInfoImpl dfInfo = dfInfos.iterator().next();
-                    transfer = dfInfo;
-                    InputStream stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
-                            dfInfo.getModId());
-                    int length;
-                    while ((length = stream.read(bytes)) >= 0) {
-                        output.write(bytes, 0, length);
+                    /*
+                     * A single file or a zip with a known layout so only the
+                     * bytes of the requested ranges need be read
+                     */
+                    transfer = zip ? "zip of " + dfInfos.size() + " datafiles" : dfInfos.iterator().next();
+                    if (zip) {
+                        output = new BufferedOutputStream(output);
+                    }
+                    if (ranges == null) {
+                        writeRange(output, 0L, null, bytes);
+                    } else if (ranges.size() == 1) {
+                        HttpRange.Range range = ranges.get(0);
+                        writeRange(output, range.getFirst(), range.getCount(), bytes);
+                    } else {
+                        for (HttpRange.Range range : ranges) {
+                            output.write(getPartHeader(boundary, range, length));
+                            writeRange(output, range.getFirst(), range.getCount(), bytes);
+                        }
+                        output.write(getPartTrailer(boundary));
                     }
                     output.close();
-                    stream.close();
                 }
 
                 if (transferId != null) {
@@ -262,18 +336,221 @@ public class IdsBean {
                 logger.error("Failed to stream " + transfer + " due to " + e.getMessage());
                 throw e;
             } finally {
-                lock.release();
+                bufferPool.release(bytes);
+                if (lock != null) {
+                    lock.release();
+                }
+                if (streamLocks != null) {
+                    streamLocks.close();
+                }
+            }
+        }
+
+        private void writeRange(OutputStream output, long first, Long count, byte[] bytes) throws IOException {
+            List<ZipLayout.Entry> entries = layout == null || readAhead == null ? null
+                    : layout.getEntries(first, count);
+            if (entries != null && entries.size() > 1) {
+                DfInfoImpl firstDf = entries.get(0).getDfInfo();
+                if (DataCopier.getPath(mainStorage, firstDf.getDfLocation(), firstDf.getCreateId(),
+                        firstDf.getModId()) != null) {
+                    entries = null; // The plugin supports zero copy so don't use read ahead
+                }
+            }
+            if (entries != null && entries.size() > 1) {
+                /* Open the datafiles ahead of use starting each at the right position */
+                Map<Long, Long> positions = new HashMap<>();
+                List<DfInfoImpl> toRead = new ArrayList<>(entries.size());
+                for (ZipLayout.Entry entry : entries) {
+                    positions.put(entry.getDfInfo().getDfId(), Math.max(0L, first - entry.getDataOffset()));
+                    toRead.add(entry.getDfInfo());
+                }
+                try (ReadAhead.Session session = readAhead.start(toRead.iterator(), dfInfo -> {
+                    InputStream stream = mainStorage.get(dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                            dfInfo.getModId());
+                    byte[] skipBytes = bufferPool.acquire();
+                    try {
+                        DataCopier.skip(stream, positions.get(dfInfo.getDfId()), skipBytes);
+                    } finally {
+                        bufferPool.release(skipBytes);
+                    }
+                    return stream;
+                })) {
+                    layout.write(output, first, count, (dfInfo, position, n, out) -> {
+                        logger.debug("Adding " + dfInfo + " to zip from position " + position);
+                        try (InputStream stream = session.next()) {
+                            return DataCopier.copy(stream, out, bytes, n);
+                        }
+                    });
+                }
+            } else if (layout != null) {
+                layout.write(output, first, count, (dfInfo, position, n, out) -> {
+                    logger.debug("Adding " + dfInfo + " to zip from position " + position);
+                    return DataCopier.copy(mainStorage, dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                            dfInfo.getModId(), out, bytes, position, n);
+                });
+            } else {
+                DfInfoImpl dfInfo = dfInfos.iterator().next();
+                DataCopier.copy(mainStorage, dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId(), output,
+                        bytes, first, count);
             }
         }
 
     }
 
-    private static final int BUFSIZ = 2048;
+    /*
+     * Takes a shared lock on each dataset of a streamed selection, and checks
+     * that it is online. The explicit datasets and the dataset of the first
+     * datafile are locked and checked by start, before the response is
+     * committed, so that the request fails as a whole if they are busy or
+     * offline; any other dataset is locked and checked as the first of its
+     * datafiles is taken from the stream. If data are found to be offline the
+     * rest of the stream is read to request the restoration of everything
+     * offline before failing. Locks are released by releaseBefore, once the
+     * datafiles of the dataset have been sent, or by close.
+     */
+    private class StreamLocks implements Iterator<DfInfoImpl>, AutoCloseable {
+
+        private final DataSelection.DfStream dfInfos;
+        private final Map<Long, DsInfo> dsInfos;
+        private final Deque<Long> lockedIds = new ArrayDeque<>();
+        private final Deque<Lock> locks = new ArrayDeque<>();
+        private DfInfoImpl first;
+
+        StreamLocks(DataSelection.DfStream dfInfos, Map<Long, DsInfo> dsInfos) {
+            this.dfInfos = dfInfos;
+            this.dsInfos = dsInfos;
+        }
+
+        /*
+         * Lock the explicit datasets and that of the first datafile, in the
+         * order in which they are streamed, and check that they and the
+         * explicit datafiles are online and present.
+         */
+        void start(Set<Long> emptyDatasets, Set<DfInfoImpl> explicitDfInfos) throws AlreadyLockedException,
+                IOException, InternalException, DataNotOnlineException, NotFoundException {
+            try {
+                for (Long dsId : dfInfos.getExplicitDsIds()) {
+                    lock(dsId);
+                }
+                first = dfInfos.hasNext() ? dfInfos.next() : null;
+                if (first != null && !lockedIds.contains(first.getDsId())) {
+                    lock(first.getDsId());
+                }
+                if (twoLevel) {
+                    Set<DfInfoImpl> toCheck = new HashSet<>(explicitDfInfos);
+                    if (first != null) {
+                        toCheck.add(first);
+                    }
+                    List<DsInfo> locked = new ArrayList<>();
+                    for (Long dsId : lockedIds) {
+                        locked.add(dsInfos.get(dsId));
+                    }
+                    try {
+                        checkOnline(locked, emptyDatasets, toCheck);
+                    } catch (DataNotOnlineException e) {
+                        requestRestoreOfRest(new HashSet<>(lockedIds));
+                        throw e;
+                    }
+                }
+            } catch (UncheckedIOException e) {
+                /* Failure to read the selection */
+                throw e.getCause();
+            }
+            checkDatafilesPresent(explicitDfInfos);
+        }
+
+        private void lock(long dsId) throws AlreadyLockedException, IOException {
+            locks.add(lockManager.lock(dsInfos.get(dsId), LockType.SHARED));
+            lockedIds.add(dsId);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return first != null || dfInfos.hasNext();
+        }
+
+        @Override
+        public DfInfoImpl next() {
+            if (first != null) {
+                /* Already locked and checked by start */
+                DfInfoImpl dfInfo = first;
+                first = null;
+                return dfInfo;
+            }
+            DfInfoImpl dfInfo = dfInfos.next();
+            try {
+                long dsId = dfInfo.getDsId();
+                if (!lockedIds.contains(dsId)) {
+                    DsInfo dsInfo = dsInfos.get(dsId);
+                    lock(dsId);
+                    if (twoLevel && storageUnit == StorageUnit.DATASET
+                            && restoreIfOffline(dsInfo, Collections.emptySet())) {
+                        restoreRest(dsId);
+                    }
+                }
+                if (twoLevel && storageUnit == StorageUnit.DATAFILE && restoreIfOffline(dfInfo)) {
+                    restoreRest(dsId);
+                }
+            } catch (AlreadyLockedException e) {
+                logger.debug("Could not acquire lock, getData failed");
+                throw new UncheckedIOException(new IOException("Data is busy"));
+            } catch (InternalException e) {
+                throw new UncheckedIOException(new IOException(e.getMessage(), e));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return dfInfo;
+        }
+
+        private void restoreRest(long dsId) throws InternalException {
+            Set<Long> seen = new HashSet<>();
+            seen.add(dsId);
+            requestRestoreOfRest(seen);
+            throw new UncheckedIOException(new IOException(
+                    "Before getting a datafile, it must be restored, restoration requested automatically"));
+        }
+
+        /* Read the rest of the stream requesting restoration of any data not in the seen datasets which is offline */
+        private void requestRestoreOfRest(Set<Long> seen) throws InternalException {
+            while (dfInfos.hasNext()) {
+                DfInfoImpl dfInfo = dfInfos.next();
+                if (storageUnit == StorageUnit.DATASET) {
+                    if (seen.add(dfInfo.getDsId())) {
+                        restoreIfOffline(dsInfos.get(dfInfo.getDsId()), Collections.emptySet());
+                    }
+                } else {
+                    restoreIfOffline(dfInfo);
+                }
+            }
+        }
+
+        /* Release the locks of the datasets taken before that of the datafile about to be sent */
+        void releaseBefore(long dsId) {
+            while (!lockedIds.isEmpty() && lockedIds.peekFirst() != dsId) {
+                lockedIds.poll();
+                locks.poll().release();
+            }
+        }
+
+        @Override
+        public void close() {
+            while (!locks.isEmpty()) {
+                locks.poll().release();
+            }
+            lockedIds.clear();
+        }
+    }
+
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
 
     private static Boolean inited = false;
 
     private static String key;
 
+    private static ReadAhead readAhead;
+
+    private static ParallelZipOutputStream.Pool compressionPool;
+
     private final static Logger logger = LoggerFactory.getLogger(IdsBean.class);
     private static String paddedPrefix;
     private static final String prefix = "<html><script type=\"text/javascript\">window.name='";
@@ -341,6 +618,22 @@ public class IdsBean {
         }
     }
 
+    /**
+     * Return the bytes preceding a part of a multipart/byteranges response.
+     */
+    static byte[] getPartHeader(String boundary, HttpRange.Range range, long length) {
+        return ("\r\n--" + boundary + "\r\nContent-Type: " + MediaType.APPLICATION_OCTET_STREAM
+                + "\r\nContent-Range: " + range.getContentRange(length) + "\r\n\r\n")
+                .getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Return the bytes which terminate a multipart/byteranges response.
+     */
+    static byte[] getPartTrailer(String boundary) {
+        return ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
     static String getLocationFromDigest(long id, String locationWithHash, String key)
             throws InternalException, InsufficientPrivilegesException {
         int i = locationWithHash.lastIndexOf(' ');
@@ -360,93 +653,86 @@ public class IdsBean {
     }
 
     static void pack(OutputStream stream, boolean zip, boolean compress, Map<Long, DsInfo> dsInfos,
-                     Set<DfInfoImpl> dfInfos, Set<Long> emptyDatasets) {
-        JsonGenerator gen = Json.createGenerator(stream);
-        gen.writeStartObject();
-        gen.write("zip", zip);
-        gen.write("compress", compress);
-
-        gen.writeStartArray("dsInfo");
-        for (DsInfo dsInfo : dsInfos.values()) {
-            logger.debug("dsInfo " + dsInfo);
-            gen.writeStartObject().write("dsId", dsInfo.getDsId())
-
-                    .write("dsName", dsInfo.getDsName()).write("facilityId", dsInfo.getFacilityId())
-                    .write("facilityName", dsInfo.getFacilityName()).write("invId", dsInfo.getInvId())
-                    .write("invName", dsInfo.getInvName()).write("visitId", dsInfo.getVisitId());
-            if (dsInfo.getDsLocation() != null) {
-                gen.write("dsLocation", dsInfo.getDsLocation());
-            } else {
-                gen.writeNull("dsLocation");
-            }
-            gen.writeEnd();
-        }
-        gen.writeEnd();
-
-        gen.writeStartArray("dfInfo");
-        for (DfInfoImpl dfInfo : dfInfos) {
-            DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
-            gen.writeStartObject().write("dsId", dsInfo.getDsId()).write("dfId", dfInfo.getDfId())
-                    .write("dfName", dfInfo.getDfName()).write("createId", dfInfo.getCreateId())
-                    .write("modId", dfInfo.getModId());
-            if (dfInfo.getDfLocation() != null) {
-                gen.write("dfLocation", dfInfo.getDfLocation());
-            } else {
-                gen.writeNull("dfLocation");
-            }
-            gen.writeEnd();
+                     Set<DfInfoImpl> dfInfos, Set<Long> emptyDatasets) throws IOException {
+        PreparedFile.write(stream, zip, compress, dsInfos, dfInfos, emptyDatasets);
+    }
 
-        }
-        gen.writeEnd();
+    static Prepared unpack(InputStream stream) throws IOException, InternalException {
+        return PreparedFile.open(stream).readAll();
+    }
 
-        gen.writeStartArray("emptyDs");
-        for (Long emptyDs : emptyDatasets) {
-            gen.write(emptyDs);
+    /*
+     * Return the whole contents of the prepared file, from the cache if
+     * possible. The result is shared and must not be modified.
+     */
+    private Prepared getPrepared(String preparedId) throws NotFoundException, InternalException {
+        Prepared prepared = getCachedPrepared(preparedId);
+        if (prepared == null) {
+            try (PreparedFile file = readPreparedFile(preparedId)) {
+                prepared = file.readAll();
+            } catch (IOException e) {
+                throw new InternalException(e.getClass() + " " + e.getMessage());
+            }
+            preparedCache.put(preparedId, prepared);
         }
-        gen.writeEnd();
-
-        gen.writeEnd().close();
-
+        return prepared;
     }
 
-    static Prepared unpack(InputStream stream) throws InternalException {
-        Prepared prepared = new Prepared();
-        JsonObject pd;
-        try (JsonReader jsonReader = Json.createReader(stream)) {
-            pd = jsonReader.readObject();
+    /*
+     * Open the prepared file to read its datafiles one at a time. The
+     * contents are read from, or loaded into, the cache if small enough.
+     */
+    private PreparedFile openPrepared(String preparedId) throws NotFoundException, InternalException {
+        Prepared prepared = getCachedPrepared(preparedId);
+        if (prepared == null) {
+            PreparedFile file = readPreparedFile(preparedId);
+            if (!preparedCache.accepts(file.getDatafileCount())) {
+                return file;
+            }
+            try (PreparedFile f = file) {
+                prepared = f.readAll();
+            } catch (IOException e) {
+                throw new InternalException(e.getClass() + " " + e.getMessage());
+            }
+            preparedCache.put(preparedId, prepared);
         }
-        prepared.zip = pd.getBoolean("zip");
-        prepared.compress = pd.getBoolean("compress");
-        SortedMap<Long, DsInfo> dsInfos = new TreeMap<>();
-        SortedSet<DfInfoImpl> dfInfos = new TreeSet<>();
-        Set<Long> emptyDatasets = new HashSet<>();
-
-        for (JsonValue itemV : pd.getJsonArray("dfInfo")) {
-            JsonObject item = (JsonObject) itemV;
-            String dfLocation = item.isNull("dfLocation") ? null : item.getString("dfLocation");
-            dfInfos.add(new DfInfoImpl(item.getJsonNumber("dfId").longValueExact(), item.getString("dfName"),
-                    dfLocation, item.getString("createId"), item.getString("modId"),
-                    item.getJsonNumber("dsId").longValueExact()));
+        return PreparedFile.of(prepared);
+    }
 
+    private Prepared getCachedPrepared(String preparedId) {
+        Prepared prepared = preparedCache.get(preparedId);
+        if (prepared != null && !Files.exists(preparedDir.resolve(preparedId))) {
+            /* Deleted by another instance sharing the cache directory */
+            preparedCache.invalidate(preparedId);
+            prepared = null;
         }
-        prepared.dfInfos = dfInfos;
+        return prepared;
+    }
 
-        for (JsonValue itemV : pd.getJsonArray("dsInfo")) {
-            JsonObject item = (JsonObject) itemV;
-            long dsId = item.getJsonNumber("dsId").longValueExact();
-            String dsLocation = item.isNull("dsLocation") ? null : item.getString("dsLocation");
-            dsInfos.put(dsId, new DsInfoImpl(dsId, item.getString("dsName"), dsLocation,
-                    item.getJsonNumber("invId").longValueExact(), item.getString("invName"), item.getString("visitId"),
-                    item.getJsonNumber("facilityId").longValueExact(), item.getString("facilityName")));
+    private PreparedFile readPreparedFile(String preparedId) throws NotFoundException, InternalException {
+        InputStream stream = null;
+        try {
+            stream = Files.newInputStream(preparedDir.resolve(preparedId));
+            return PreparedFile.open(stream);
+        } catch (NoSuchFileException e) {
+            throw new NotFoundException("The preparedId " + preparedId + " is not known");
+        } catch (IOException e) {
+            closePrepared(stream);
+            throw new InternalException(e.getClass() + " " + e.getMessage());
+        } catch (InternalException e) {
+            closePrepared(stream);
+            throw e;
         }
-        prepared.dsInfos = dsInfos;
+    }
 
-        for (JsonValue itemV : pd.getJsonArray("emptyDs")) {
-            emptyDatasets.add(((JsonNumber) itemV).longValueExact());
+    private static void closePrepared(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close prepared file " + e.getMessage());
+            }
         }
-        prepared.emptyDatasets = emptyDatasets;
-
-        return prepared;
     }
 
     public static void validateUUID(String thing, String id) throws BadRequestException {
@@ -463,6 +749,8 @@ public class IdsBean {
 
     private ArchiveStorageInterface archiveStorage;
 
+    private BufferPool bufferPool;
+
     private Path datasetDir;
 
     private DatatypeFactory datatypeFactory;
@@ -485,6 +773,12 @@ public class IdsBean {
 
     private Path markerDir;
 
+    private PreparedCache preparedCache;
+
+    private DsInfoCache dsInfoCache;
+
+    private SelectionCache selectionCache;
+
     private Path preparedDir;
 
     private PropertyHandler propertyHandler;
@@ -494,6 +788,10 @@ public class IdsBean {
 
     private boolean readOnly;
 
+    private boolean streamSelection;
+
+    private boolean crc32Checksums;
+
     private Set<String> rootUserNames;
 
     private StorageUnit storageUnit;
@@ -540,6 +838,24 @@ public class IdsBean {
         }
     }
 
+    /*
+     * Return the selection, reusing one resolved recently for the same session
+     * and ids. Only for calls which do not change anything as the permission
+     * checks made by ICAT are not repeated.
+     */
+    private DataSelection getSelection(String sessionId, String investigationIds, String datasetIds,
+                                       String datafileIds, Returns returns)
+            throws BadRequestException, NotFoundException, InsufficientPrivilegesException, InternalException {
+        String key = SelectionCache.key(sessionId, investigationIds, datasetIds, datafileIds);
+        DataSelection dataSelection = selectionCache.get(key, returns);
+        if (dataSelection == null) {
+            dataSelection = new DataSelection(propertyHandler, reader, sessionId, investigationIds, datasetIds,
+                    datafileIds, returns);
+            selectionCache.put(key, dataSelection);
+        }
+        return dataSelection;
+    }
+
     public void archive(String sessionId, String investigationIds, String datasetIds, String datafileIds, String ip)
             throws NotImplementedException, BadRequestException, InsufficientPrivilegesException, InternalException,
             NotFoundException {
@@ -696,6 +1012,7 @@ public class IdsBean {
                 }
                 throw new InternalException(type + " " + e.getMessage());
             }
+            selectionCache.invalidateDatasets(dataSelection.getDsInfo().keySet());
 
             /*
              * Delete the local copy directly rather than queueing it as it has
@@ -754,26 +1071,19 @@ public class IdsBean {
         }
     }
 
-    public Response getData(String preparedId, String outname, final long offset, String ip) throws BadRequestException,
+    public Response getData(String preparedId, String outname, HttpRange range, String ip) throws BadRequestException,
             NotFoundException, InternalException, InsufficientPrivilegesException, DataNotOnlineException {
 
         long time = System.currentTimeMillis();
 
         // Log and validate
         logger.info("New webservice request: getData preparedId = '" + preparedId + "' outname = '" + outname
-                + "' offset = " + offset);
+                + "' range = " + range);
 
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
+        Prepared prepared = getPrepared(preparedId);
 
         final boolean zip = prepared.zip;
         final boolean compress = prepared.compress;
@@ -823,10 +1133,13 @@ public class IdsBean {
                 transmitter.processMessage("getDataStart", ip, baos.toString(), time);
             }
 
-            return Response.status(offset == 0 ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL)
-                    .entity(new SO(dsInfos, dfInfos, offset, zip, compress, lock, transferId, ip, time))
-                    .header("Content-Disposition", "attachment; filename=\"" + name + "\"").header("Accept-Ranges", "bytes")
-                    .build();
+            ZipLayout layout = getZipLayout(preparedId, prepared);
+            if (layout != null && checkFiles(dfInfos) == null) {
+                layout = null;
+            }
+            return getDataResponse(dsInfos, dfInfos, null, layout, range,
+                    getLength(zip, layout, dfInfos, OptionalLong.empty()), zip, compress, lock, transferId, ip, time,
+                    name);
         } catch (AlreadyLockedException e) {
             logger.debug("Could not acquire lock, getData failed");
             throw new DataNotOnlineException("Data is busy");
@@ -843,7 +1156,7 @@ public class IdsBean {
     }
 
     public Response getData(String sessionId, String investigationIds, String datasetIds, String datafileIds,
-                            final boolean compress, boolean zip, String outname, final long offset, String ip)
+                            final boolean compress, boolean zip, String outname, HttpRange range, String ip)
             throws BadRequestException, InternalException, InsufficientPrivilegesException, NotFoundException,
             DataNotOnlineException {
 
@@ -855,22 +1168,36 @@ public class IdsBean {
 
         validateUUID("sessionId", sessionId);
 
-        final DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
-                investigationIds, datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES);
+        /*
+         * A streamed selection is read while the zip file is sent, so only the
+         * explicit datasets and the first dataset are locked and checked to
+         * be online before the response starts; the others are checked as
+         * they are reached
+         */
+        boolean streamed = streamSelection && (investigationIds != null || datasetIds != null);
+        final DataSelection dataSelection = streamed
+                ? new DataSelection(propertyHandler, reader, sessionId, investigationIds, datasetIds, datafileIds,
+                        Returns.DATASETS_AND_DATAFILES, true)
+                : getSelection(sessionId, investigationIds, datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES);
 
         // Do it
         Map<Long, DsInfo> dsInfos = dataSelection.getDsInfo();
         Set<DfInfoImpl> dfInfos = dataSelection.getDfInfo();
-        var length = zip ? OptionalLong.empty() : dataSelection.getFileLength();
 
         Lock lock = null;
+        StreamLocks streamLocks = null;
         try {
-            lock = lockManager.lock(dsInfos.values(), LockType.SHARED);
+            if (streamed) {
+                streamLocks = new StreamLocks(dataSelection.openStream(), dsInfos);
+                streamLocks.start(dataSelection.getEmptyDatasets(), dfInfos);
+            } else {
+                lock = lockManager.lock(dsInfos.values(), LockType.SHARED);
 
-            if (twoLevel) {
-                checkOnline(dsInfos.values(), dataSelection.getEmptyDatasets(), dfInfos);
+                if (twoLevel) {
+                    checkOnline(dsInfos.values(), dataSelection.getEmptyDatasets(), dfInfos);
+                }
+                checkDatafilesPresent(dfInfos);
             }
-            checkDatafilesPresent(dfInfos);
 
             final boolean finalZip = zip ? true : dataSelection.mustZip();
 
@@ -912,29 +1239,224 @@ public class IdsBean {
                 }
             }
 
-            var response = Response.status(offset == 0 ? HttpURLConnection.HTTP_OK : HttpURLConnection.HTTP_PARTIAL)
-                    .entity(new SO(dataSelection.getDsInfo(), dataSelection.getDfInfo(), offset, finalZip, compress, lock,
-                            transferId, ip, start))
-                    .header("Content-Disposition", "attachment; filename=\"" + name + "\"").header("Accept-Ranges", "bytes");
-            length.stream()
-                    .map(l -> Math.max(0L, l - offset))
-                    .forEach(l -> response.header(CONTENT_LENGTH, l));
-            return response.build();
+            ZipLayout layout = null;
+            if (finalZip && !compress && !streamed && crc32Checksums) {
+                /* The files must be unchanged for a later range request to get the same zip file */
+                Long modified = checkFiles(dfInfos);
+                if (modified != null) {
+                    layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, modified);
+                }
+            }
+            return getDataResponse(dsInfos, dfInfos, streamLocks, layout, range,
+                    getLength(finalZip, layout, dfInfos, dataSelection.getFileLength()), finalZip, compress, lock,
+                    transferId, ip, start, name);
         } catch (AlreadyLockedException e) {
+            if (streamLocks != null) {
+                streamLocks.close();
+            }
             logger.debug("Could not acquire lock, getData failed");
             throw new DataNotOnlineException("Data is busy");
         } catch (IOException e) {
             if (lock != null) {
                 lock.release();
             }
+            if (streamLocks != null) {
+                streamLocks.close();
+            }
             logger.error("I/O error " + e.getMessage());
             throw new InternalException(e.getClass() + " " + e.getMessage());
         } catch (IdsException e) {
-            lock.release();
+            if (lock != null) {
+                lock.release();
+            }
+            if (streamLocks != null) {
+                streamLocks.close();
+            }
             throw e;
         }
     }
 
+    /**
+     * Return the layout of the stored zip file for a preparedId, reading the
+     * entry offset table saved alongside the prepared file if possible. If
+     * the table is missing or invalid the layout is computed and saved, using
+     * the time the prepared file was written as the timestamp of the entries.
+     */
+    private ZipLayout getZipLayout(String preparedId, Prepared prepared) {
+        if (!prepared.zip || prepared.compress || !crc32Checksums) {
+            return null;
+        }
+        try (InputStream stream = new BufferedInputStream(
+                Files.newInputStream(preparedDir.resolve(preparedId + ZipLayout.OFFSETS_SUFFIX)))) {
+            ZipLayout layout = ZipLayout.load(stream, prepared.dfInfos);
+            if (layout != null) {
+                return layout;
+            }
+            logger.warn("Entry offset table for " + preparedId + " is not valid");
+        } catch (NoSuchFileException e) {
+            // Prepared before offset tables were saved or the layout is not known
+        } catch (IOException e) {
+            logger.warn("Unable to read entry offset table for " + preparedId + " " + e.getClass() + " "
+                    + e.getMessage());
+        }
+        long time;
+        try {
+            time = Files.getLastModifiedTime(preparedDir.resolve(preparedId)).toMillis();
+        } catch (IOException e) {
+            logger.warn("Unable to get the time " + preparedId + " was prepared " + e.getClass() + " "
+                    + e.getMessage());
+            return null;
+        }
+        ZipLayout layout = ZipLayout.create(prepared.dsInfos, prepared.dfInfos, zipMapper, time);
+        if (layout != null) {
+            saveZipLayout(preparedId, layout);
+        }
+        return layout;
+    }
+
+    /*
+     * Return the latest modification time of the datafiles on main storage,
+     * or null if a zip layout must not be used for them so that the zip
+     * file is written by ZipOutputStream instead. That is so if a datafile
+     * does not have the size recorded in ICAT, as ZipLayout.write would fail
+     * part way through after the Content-Length has been sent, or if the
+     * plugin does not support getPath so that the sizes cannot be checked
+     * before the response starts.
+     */
+    private Long checkFiles(Set<DfInfoImpl> dfInfos) {
+        long modified = 0;
+        for (DfInfoImpl dfInfo : dfInfos) {
+            Path path = DataCopier.getPath(mainStorage, dfInfo.getDfLocation(), dfInfo.getCreateId(),
+                    dfInfo.getModId());
+            if (path == null) {
+                logger.debug("Sizes cannot be checked without getPath so the zip layout is not used");
+                return null;
+            }
+            try {
+                BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                if (!Long.valueOf(attributes.size()).equals(dfInfo.getFileSize())) {
+                    logger.warn("Size of " + dfInfo + " is " + attributes.size() + " but recorded in ICAT as "
+                            + dfInfo.getFileSize() + " so the zip layout is not used");
+                    return null;
+                }
+                modified = Math.max(modified, attributes.lastModifiedTime().toMillis());
+            } catch (IOException e) {
+                logger.debug("Unable to get size of " + path + " " + e.getMessage());
+                return null;
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Save the entry offset table of a prepared zip file. The file is written
+     * under a temporary name and moved into place so that concurrent readers
+     * never see a partial table. Failure is not fatal as the table can be
+     * recomputed.
+     */
+    private void saveZipLayout(String preparedId, ZipLayout layout) {
+        Path target = preparedDir.resolve(preparedId + ZipLayout.OFFSETS_SUFFIX);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(preparedDir, "tmp.", null);
+            try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+                layout.save(stream);
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Unable to save entry offset table for " + preparedId + " " + e.getClass() + " "
+                    + e.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                } catch (IOException e2) {
+                    // Will be removed by cleanPreparedDir at next start up
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the length of the data to be sent if it can be determined
+     * cheaply. This is only possible for a single file which is not zipped or
+     * for a zip file with a known layout.
+     */
+    private OptionalLong getLength(boolean zip, ZipLayout layout, Set<DfInfoImpl> dfInfos, OptionalLong fromIcat) {
+        if (zip) {
+            return layout == null ? OptionalLong.empty() : OptionalLong.of(layout.getLength());
+        }
+        DfInfoImpl dfInfo = dfInfos.iterator().next();
+        Path path = DataCopier.getPath(mainStorage, dfInfo.getDfLocation(), dfInfo.getCreateId(), dfInfo.getModId());
+        if (path != null) {
+            try {
+                return OptionalLong.of(Files.size(path));
+            } catch (IOException e) {
+                logger.debug("Unable to get size of " + path + " " + e.getMessage());
+            }
+        }
+        return fromIcat;
+    }
+
+    /**
+     * Build the response for getData. If a range has been requested and the
+     * length is known the response is 206 with a Content-Range header for a
+     * single range or a multipart/byteranges body for several ranges, or 416
+     * if no range can be satisfied. If the length is not known only a single
+     * range with a start position can be honoured otherwise the whole of the
+     * data is sent.
+     */
+    private Response getDataResponse(Map<Long, DsInfo> dsInfos, Set<DfInfoImpl> dfInfos, StreamLocks streamLocks,
+                                     ZipLayout layout,
+                                     HttpRange range, OptionalLong length, boolean zip, boolean compress, Lock lock, Long transferId,
+                                     String ip, long start, String name) {
+        Response.ResponseBuilder response;
+        List<HttpRange.Range> ranges = null;
+        if (range != null && length.isPresent()) {
+            long total = length.getAsLong();
+            ranges = range.resolve(total);
+            if (ranges.isEmpty()) {
+                logger.debug("Range " + range + " not satisfiable for length " + total);
+                lock.release();
+                return Response.status(HTTP_RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + total)
+                        .header("Accept-Ranges", "bytes").build();
+            }
+            if (ranges.size() == 1) {
+                HttpRange.Range r = ranges.get(0);
+                response = Response.status(HttpURLConnection.HTTP_PARTIAL)
+                        .entity(new SO(dsInfos, dfInfos, streamLocks, layout, ranges, total, null, zip, compress, lock, transferId, ip, start))
+                        .header("Content-Range", r.getContentRange(total)).header(CONTENT_LENGTH, r.getCount());
+            } else if (!zip || layout != null) {
+                String boundary = UUID.randomUUID().toString();
+                long bodyLength = getPartTrailer(boundary).length;
+                for (HttpRange.Range r : ranges) {
+                    bodyLength += getPartHeader(boundary, r, total).length + r.getCount();
+                }
+                response = Response.status(HttpURLConnection.HTTP_PARTIAL)
+                        .entity(new SO(dsInfos, dfInfos, streamLocks, layout, ranges, total, boundary, zip, compress, lock, transferId, ip,
+                                start))
+                        .type("multipart/byteranges; boundary=" + boundary).header(CONTENT_LENGTH, bodyLength);
+            } else {
+                response = Response.ok(new SO(dsInfos, dfInfos, streamLocks, layout, null, total, null, zip, compress, lock, transferId, ip,
+                        start)).header(CONTENT_LENGTH, total);
+            }
+        } else {
+            HttpRange.Range r = range == null ? null : range.getUnboundedRange();
+            if (r != null && (r.getFirst() != 0 || r.getLast() != null)) {
+                ranges = Collections.singletonList(r);
+                response = Response.status(HttpURLConnection.HTTP_PARTIAL)
+                        .entity(new SO(dsInfos, dfInfos, streamLocks, layout, ranges, null, null, zip, compress, lock, transferId, ip, start));
+            } else {
+                response = Response.ok(new SO(dsInfos, dfInfos, streamLocks, layout, null, null, null, zip, compress, lock, transferId, ip,
+                        start));
+                if (length.isPresent()) {
+                    response.header(CONTENT_LENGTH, length.getAsLong());
+                }
+            }
+        }
+        return response.header("Content-Disposition", "attachment; filename=\"" + name + "\"")
+                .header("Accept-Ranges", "bytes").build();
+    }
+
     public String getDatafileIds(String preparedId, String ip)
             throws BadRequestException, InternalException, NotFoundException {
 
@@ -946,28 +1468,19 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
-
-        final boolean zip = prepared.zip;
-        final boolean compress = prepared.compress;
-        final Set<DfInfoImpl> dfInfos = prepared.dfInfos;
-
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
-            gen.write("zip", zip);
-            gen.write("compress", compress);
+        try (PreparedFile prepared = openPrepared(preparedId);
+             JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+            gen.write("zip", prepared.isZip());
+            gen.write("compress", prepared.isCompress());
             gen.writeStartArray("ids");
-            for (DfInfoImpl dfInfo : dfInfos) {
+            DfInfoImpl dfInfo;
+            while ((dfInfo = prepared.nextDfInfo()) != null) {
                 gen.write(dfInfo.getDfId());
             }
             gen.writeEnd().writeEnd().close();
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
         }
         String resp = baos.toString();
 
@@ -996,7 +1509,7 @@ public class IdsBean {
 
         validateUUID("sessionId", sessionId);
 
-        final DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
+        final DataSelection dataSelection = getSelection(sessionId,
                 investigationIds, datasetIds, datafileIds, Returns.DATAFILES);
 
         // Do it
@@ -1178,41 +1691,34 @@ public class IdsBean {
         logger.info("New webservice request: getSize preparedId = '{}'", preparedId);
         validateUUID("preparedId", preparedId);
 
-        // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
-
-        final Set<DfInfoImpl> dfInfos = prepared.dfInfos;
-
         // Note that the "fast computation for the simple case" (see the other getSize() implementation) is not
         // available when calling getSize() with a preparedId.
         logger.debug("Slow computation for normal case");
-        String sessionId;
-        try {
-            sessionId = reader.getSessionId();
-        } catch (IcatException_Exception e) {
-            throw new InternalException(e.getFaultInfo().getType() + " " + e.getMessage());
-        }
         long size = 0;
 
         StringBuilder sb = new StringBuilder();
         int n = 0;
-        for (DfInfoImpl df : dfInfos) {
-            if (sb.length() != 0) {
-                sb.append(',');
+        String sessionId;
+        try (PreparedFile prepared = openPrepared(preparedId)) {
+            try {
+                sessionId = reader.getSessionId();
+            } catch (IcatException_Exception e) {
+                throw new InternalException(e.getFaultInfo().getType() + " " + e.getMessage());
             }
-            sb.append(df.getDfId());
-            if (n++ == 500) {
-                size += getSizeFor(sessionId, sb);
-                sb = new StringBuilder();
-                n = 0;
+            DfInfoImpl df;
+            while ((df = prepared.nextDfInfo()) != null) {
+                if (sb.length() != 0) {
+                    sb.append(',');
+                }
+                sb.append(df.getDfId());
+                if (n++ == 500) {
+                    size += getSizeFor(sessionId, sb);
+                    sb = new StringBuilder();
+                    n = 0;
+                }
             }
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
         }
         if (n > 0) {
             size += getSizeFor(sessionId, sb);
@@ -1272,7 +1778,7 @@ public class IdsBean {
             }
         } else {
             logger.debug("Slow computation for normal case");
-            final DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
+            final DataSelection dataSelection = getSelection(sessionId,
                     investigationIds, datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES);
 
             StringBuilder sb = new StringBuilder();
@@ -1369,51 +1875,40 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared prepared;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            prepared = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
-
-        final Set<DfInfoImpl> dfInfos = prepared.dfInfos;
-        final Map<Long, DsInfo> dsInfos = prepared.dsInfos;
-        Set<Long> emptyDatasets = prepared.emptyDatasets;
-
         Status status = Status.ONLINE;
 
-        if (storageUnit == StorageUnit.DATASET) {
-            Set<DsInfo> restoring = fsm.getDsRestoring();
-            Set<DsInfo> maybeOffline = fsm.getDsMaybeOffline();
-            for (DsInfo dsInfo : dsInfos.values()) {
-                fsm.checkFailure(dsInfo.getDsId());
-                if (restoring.contains(dsInfo)) {
-                    status = Status.RESTORING;
-                } else if (maybeOffline.contains(dsInfo)) {
-                    status = Status.ARCHIVED;
-                    break;
-                } else if (!emptyDatasets.contains(dsInfo.getDsId()) && !mainStorage.exists(dsInfo)) {
-                    status = Status.ARCHIVED;
-                    break;
+        try (PreparedFile prepared = openPrepared(preparedId)) {
+            if (storageUnit == StorageUnit.DATASET) {
+                Set<Long> emptyDatasets = prepared.getEmptyDatasets();
+                for (DsInfo dsInfo : prepared.getDsInfos().values()) {
+                    fsm.checkFailure(dsInfo.getDsId());
+                    if (fsm.isRestoring(dsInfo)) {
+                        status = Status.RESTORING;
+                    } else if (fsm.isMaybeOffline(dsInfo)) {
+                        status = Status.ARCHIVED;
+                        break;
+                    } else if (!emptyDatasets.contains(dsInfo.getDsId()) && !mainStorage.exists(dsInfo)) {
+                        status = Status.ARCHIVED;
+                        break;
+                    }
                 }
-            }
-        } else if (storageUnit == StorageUnit.DATAFILE) {
-            Set<DfInfo> restoring = fsm.getDfRestoring();
-            Set<DfInfo> maybeOffline = fsm.getDfMaybeOffline();
-            for (DfInfo dfInfo : dfInfos) {
-                fsm.checkFailure(dfInfo.getDfId());
-                if (restoring.contains(dfInfo)) {
-                    status = Status.RESTORING;
-                } else if (maybeOffline.contains(dfInfo)) {
-                    status = Status.ARCHIVED;
-                    break;
-                } else if (!mainStorage.exists(dfInfo.getDfLocation())) {
-                    status = Status.ARCHIVED;
-                    break;
+            } else if (storageUnit == StorageUnit.DATAFILE) {
+                DfInfoImpl dfInfo;
+                while ((dfInfo = prepared.nextDfInfo()) != null) {
+                    fsm.checkFailure(dfInfo.getDfId());
+                    if (fsm.isRestoring(dfInfo)) {
+                        status = Status.RESTORING;
+                    } else if (fsm.isMaybeOffline(dfInfo)) {
+                        status = Status.ARCHIVED;
+                        break;
+                    } else if (!mainStorage.exists(dfInfo.getDfLocation())) {
+                        status = Status.ARCHIVED;
+                        break;
+                    }
                 }
             }
+        } catch (IOException e) {
+            throw new InternalException(e.getClass() + " " + e.getMessage());
         }
 
         logger.debug("Status is " + status.name());
@@ -1456,18 +1951,16 @@ public class IdsBean {
         Status status = Status.ONLINE;
 
         if (storageUnit == StorageUnit.DATASET) {
-            DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
+            DataSelection dataSelection = getSelection(sessionId,
                     investigationIds, datasetIds, datafileIds, Returns.DATASETS);
             Map<Long, DsInfo> dsInfos = dataSelection.getDsInfo();
 
-            Set<DsInfo> restoring = fsm.getDsRestoring();
-            Set<DsInfo> maybeOffline = fsm.getDsMaybeOffline();
             Set<Long> emptyDatasets = dataSelection.getEmptyDatasets();
             for (DsInfo dsInfo : dsInfos.values()) {
                 fsm.checkFailure(dsInfo.getDsId());
-                if (restoring.contains(dsInfo)) {
+                if (fsm.isRestoring(dsInfo)) {
                     status = Status.RESTORING;
-                } else if (maybeOffline.contains(dsInfo)) {
+                } else if (fsm.isMaybeOffline(dsInfo)) {
                     status = Status.ARCHIVED;
                     break;
                 } else if (!emptyDatasets.contains(dsInfo.getDsId()) && !mainStorage.exists(dsInfo)) {
@@ -1476,17 +1969,15 @@ public class IdsBean {
                 }
             }
         } else if (storageUnit == StorageUnit.DATAFILE) {
-            DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
+            DataSelection dataSelection = getSelection(sessionId,
                     investigationIds, datasetIds, datafileIds, Returns.DATAFILES);
             Set<DfInfoImpl> dfInfos = dataSelection.getDfInfo();
 
-            Set<DfInfo> restoring = fsm.getDfRestoring();
-            Set<DfInfo> maybeOffline = fsm.getDfMaybeOffline();
             for (DfInfo dfInfo : dfInfos) {
                 fsm.checkFailure(dfInfo.getDfId());
-                if (restoring.contains(dfInfo)) {
+                if (fsm.isRestoring(dfInfo)) {
                     status = Status.RESTORING;
-                } else if (maybeOffline.contains(dfInfo)) {
+                } else if (fsm.isMaybeOffline(dfInfo)) {
                     status = Status.ARCHIVED;
                     break;
                 } else if (!mainStorage.exists(dfInfo.getDfLocation())) {
@@ -1496,7 +1987,7 @@ public class IdsBean {
             }
         } else {
             // Throw exception if selection does not exist
-            new DataSelection(propertyHandler, reader, sessionId,
+            getSelection(sessionId,
                     investigationIds, datasetIds, datafileIds, Returns.DATASETS);
         }
 
@@ -1532,6 +2023,10 @@ public class IdsBean {
                 zipMapper = propertyHandler.getZipMapper();
                 mainStorage = propertyHandler.getMainStorage();
                 archiveStorage = propertyHandler.getArchiveStorage();
+                bufferPool = propertyHandler.getBufferPool();
+                preparedCache = propertyHandler.getPreparedCache();
+                dsInfoCache = propertyHandler.getDsInfoCache();
+                selectionCache = propertyHandler.getSelectionCache();
                 twoLevel = archiveStorage != null;
                 datatypeFactory = DatatypeFactory.newInstance();
                 preparedDir = propertyHandler.getCacheDir().resolve("prepared");
@@ -1541,6 +2036,8 @@ public class IdsBean {
 
                 rootUserNames = propertyHandler.getRootUserNames();
                 readOnly = propertyHandler.getReadOnly();
+                streamSelection = propertyHandler.getStreamSelection();
+                crc32Checksums = propertyHandler.getCrc32Checksums();
                 enableWrite = propertyHandler.getEnableWrite();
 
                 icat = propertyHandler.getIcatService();
@@ -1548,6 +2045,14 @@ public class IdsBean {
                 if (!inited) {
                     key = propertyHandler.getKey();
                     logger.info("Key is " + (key == null ? "not set" : "set"));
+                    if (propertyHandler.getReadAheadCount() > 0) {
+                        readAhead = new ReadAhead(propertyHandler.getReadAheadCount(),
+                                propertyHandler.getReadAheadThreads(), propertyHandler.getReadAheadMaxBytes(),
+                                propertyHandler.getBufferPool());
+                    }
+                    if (propertyHandler.getCompressionThreads() > 0) {
+                        compressionPool = new ParallelZipOutputStream.Pool(propertyHandler.getCompressionThreads());
+                    }
                 }
 
                 if (twoLevel) {
@@ -1599,14 +2104,7 @@ public class IdsBean {
         // Do it
         boolean prepared = true;
 
-        Prepared preparedJson;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            preparedJson = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
-        } catch (IOException e) {
-            throw new InternalException(e.getClass() + " " + e.getMessage());
-        }
+        Prepared preparedJson = getPrepared(preparedId);
 
         PreparedStatus status = preparedStatusMap.computeIfAbsent(preparedId, k -> new PreparedStatus());
 
@@ -1732,7 +2230,7 @@ public class IdsBean {
 
         validateUUID("sessionId", sessionId);
 
-        final DataSelection dataSelection = new DataSelection(propertyHandler, reader, sessionId,
+        final DataSelection dataSelection = getSelection(sessionId,
                 investigationIds, datasetIds, datafileIds, Returns.DATASETS_AND_DATAFILES);
 
         // Do it
@@ -1759,6 +2257,14 @@ public class IdsBean {
             zip = true;
         }
 
+        /* Save the entry offset table of a stored zip for use by getData */
+        if (zip && !compress && crc32Checksums) {
+            ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, System.currentTimeMillis());
+            if (layout != null) {
+                saveZipLayout(preparedId, layout);
+            }
+        }
+
         logger.debug("Writing to " + preparedDir.resolve(preparedId));
         try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(preparedDir.resolve(preparedId)))) {
             pack(stream, zip, compress, dsInfos, dfInfos, emptyDs);
@@ -1865,6 +2371,7 @@ public class IdsBean {
             }
 
             DsInfo dsInfo = new DsInfoImpl(ds);
+            dsInfoCache.put(dsInfo);
             try (Lock lock = lockManager.lock(dsInfo, LockType.SHARED)) {
                 if (storageUnit == StorageUnit.DATASET) {
                     Set<DfInfoImpl> dfInfos = Collections.emptySet();
@@ -1919,6 +2426,7 @@ public class IdsBean {
                     mainStorage.delete(location, userId, userId);
                     throw e;
                 }
+                selectionCache.invalidateDatasets(Collections.singleton(dsInfo.getDsId()));
 
                 if (storageUnit == StorageUnit.DATASET) {
                     fsm.queue(dsInfo, DeferredOp.WRITE);
@@ -2050,25 +2558,21 @@ public class IdsBean {
         validateUUID("preparedId", preparedId);
 
         // Do it
-        Prepared preparedJson;
-        try (InputStream stream = Files.newInputStream(preparedDir.resolve(preparedId))) {
-            preparedJson = unpack(stream);
-        } catch (NoSuchFileException e) {
-            throw new NotFoundException("The preparedId " + preparedId + " is not known");
+        try (PreparedFile prepared = openPrepared(preparedId)) {
+            if (storageUnit == StorageUnit.DATASET) {
+                for (DsInfo dsInfo : prepared.getDsInfos().values()) {
+                    fsm.recordSuccess(dsInfo.getDsId());
+                }
+            } else if (storageUnit == StorageUnit.DATAFILE) {
+                DfInfoImpl dfInfo;
+                while ((dfInfo = prepared.nextDfInfo()) != null) {
+                    fsm.recordSuccess(dfInfo.getDfId());
+                }
+            }
         } catch (IOException e) {
             throw new InternalException(e.getClass() + " " + e.getMessage());
         }
 
-        if (storageUnit == StorageUnit.DATASET) {
-            for (DsInfo dsInfo : preparedJson.dsInfos.values()) {
-                fsm.recordSuccess(dsInfo.getDsId());
-            }
-        } else if (storageUnit == StorageUnit.DATAFILE) {
-            for (DfInfoImpl dfInfo : preparedJson.dfInfos) {
-                fsm.recordSuccess(dfInfo.getDfId());
-            }
-        }
-
         if (logSet.contains(CallType.MIGRATE)) {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
@@ -2123,13 +2627,22 @@ public class IdsBean {
     private void restartUnfinishedWork() throws InternalException {
 
         try {
+            /* Those restored from the FSM journal need not be looked up in ICAT */
+            Map<Long, DsInfo> queuedDatasets = fsm.getQueuedDatasets();
+            Map<Long, DfInfoImpl> queuedDatafiles = fsm.getQueuedDatafiles();
             for (File file : markerDir.toFile().listFiles()) {
                 if (storageUnit == StorageUnit.DATASET) {
                     long dsid = Long.parseLong(file.toPath().getFileName().toString());
+                    DsInfo queued = queuedDatasets.get(dsid);
+                    if (queued != null) {
+                        fsm.queue(queued, DeferredOp.WRITE);
+                        continue;
+                    }
                     Dataset ds = null;
                     try {
                         ds = (Dataset) reader.get("Dataset ds INCLUDE ds.investigation.facility", dsid);
                         DsInfo dsInfo = new DsInfoImpl(ds);
+                        dsInfoCache.put(dsInfo);
                         fsm.queue(dsInfo, DeferredOp.WRITE);
                         logger.info("Queued dataset with id " + dsid + " " + dsInfo
                                 + " to be written as it was not written out previously by IDS");
@@ -2144,6 +2657,11 @@ public class IdsBean {
                     }
                 } else if (storageUnit == StorageUnit.DATAFILE) {
                     long dfid = Long.parseLong(file.toPath().getFileName().toString());
+                    DfInfoImpl queued = queuedDatafiles.get(dfid);
+                    if (queued != null) {
+                        fsm.queue(queued, DeferredOp.WRITE);
+                        continue;
+                    }
                     Datafile df = null;
                     try {
                         df = (Datafile) reader.get("Datafile ds INCLUDE ds.dataset", dfid);
@@ -2217,7 +2735,7 @@ public class IdsBean {
 
     private boolean restoreIfOffline(DfInfoImpl dfInfo) throws InternalException {
         boolean maybeOffline = false;
-        if (fsm.getDfMaybeOffline().contains(dfInfo)) {
+        if (fsm.isMaybeOffline(dfInfo)) {
             maybeOffline = true;
         } else if (!mainStorage.exists(dfInfo.getDfLocation())) {
             fsm.queue(dfInfo, DeferredOp.RESTORE);
@@ -2228,7 +2746,7 @@ public class IdsBean {
 
     private boolean restoreIfOffline(DsInfo dsInfo, Set<Long> emptyDatasets) throws InternalException {
         boolean maybeOffline = false;
-        if (fsm.getDsMaybeOffline().contains(dsInfo)) {
+        if (fsm.isMaybeOffline(dsInfo)) {
             maybeOffline = true;
         } else if (!emptyDatasets.contains(dsInfo.getDsId()) && !mainStorage.exists(dsInfo)) {
             fsm.queue(dsInfo, DeferredOp.RESTORE);
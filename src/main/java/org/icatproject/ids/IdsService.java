@@ -4,8 +4,6 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.annotation.PreDestroy;
@@ -49,8 +47,6 @@ public class IdsService {
     @EJB
     private IdsBean idsBean;
 
-    private Pattern rangeRe;
-
     /**
      * Archive data specified by the investigationIds, datasetIds and
      * datafileIds specified along with a sessionId. If two level storage is not
@@ -151,8 +147,16 @@ public class IdsService {
      * @param outname          The file name to put in the returned header
      *                         "ContentDisposition". If it does not end in .zip but it is a
      *                         zip file then a ".zip" will be appended.
-     * @param range            A range header which must match "bytes=(\\d+)-" to specify an
-     *                         offset i.e. to skip a number of bytes.
+     * @param range            A range header of the form "bytes=a-b", "bytes=a-" or
+     *                         "bytes=-n" or a comma separated list of these as
+     *                         described in RFC 7233. Where the length of the data is
+     *                         known (i.e. a single file which is not zipped or a zip
+     *                         file without compression of datafiles whose sizes and
+     *                         checksums are recorded in ICAT) a 206
+     *                         response with a Content-Range header is returned, or a
+     *                         multipart/byteranges response if several ranges are
+     *                         requested. Otherwise only a single range with a start
+     *                         position is honoured.
      * @return a stream of json data.
      * @throws BadRequestException
      * @throws NotFoundException
@@ -160,6 +164,8 @@ public class IdsService {
      * @throws InsufficientPrivilegesException
      * @throws DataNotOnlineException
      * @statuscode 200 To indicate success
+     * @statuscode 206 To indicate that only the requested ranges are being sent
+     * @statuscode 416 To indicate that none of the requested ranges can be satisfied
      */
     @GET
     @Path("getData")
@@ -172,22 +178,17 @@ public class IdsService {
             NotFoundException, InternalException, InsufficientPrivilegesException, DataNotOnlineException {
         Response response = null;
 
-        long offset = 0;
+        HttpRange httpRange = null;
         if (range != null) {
-
-            Matcher m = rangeRe.matcher(range);
-            if (!m.matches()) {
-                throw new BadRequestException("The range must match " + rangeRe.pattern());
-            }
-            offset = Long.parseLong(m.group(1));
-            logger.debug("Range " + range + " -> offset " + offset);
+            httpRange = HttpRange.parse(range);
+            logger.debug("Range " + range + " -> " + httpRange);
         }
 
         if (preparedId != null) {
-            response = idsBean.getData(preparedId, outname, offset, request.getRemoteAddr());
+            response = idsBean.getData(preparedId, outname, httpRange, request.getRemoteAddr());
         } else {
             response = idsBean.getData(sessionId, investigationIds, datasetIds, datafileIds, compress, zip, outname,
-                    offset, request.getRemoteAddr());
+                    httpRange, request.getRemoteAddr());
         }
         return response;
     }
@@ -367,7 +368,6 @@ public class IdsService {
     @PostConstruct
     private void init() {
         logger.info("creating IdsService");
-        rangeRe = Pattern.compile("bytes=(\\d+)-");
         logger.info("created IdsService");
     }
 
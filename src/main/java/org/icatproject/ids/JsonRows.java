@@ -0,0 +1,121 @@
+package org.icatproject.ids;
+
+import java.io.StringReader;
+import java.util.Arrays;
+
+import jakarta.json.Json;
+import jakarta.json.JsonException;
+import jakarta.json.stream.JsonParser;
+import jakarta.json.stream.JsonParser.Event;
+
+/**
+ * A cursor over the result of an ICAT REST search for several fields, which
+ * is a JSON array with one array of values per row. The text is parsed one
+ * row at a time as next is called so that, unlike reading it into a
+ * JsonArray, no tree of the whole result is built; the values of the current
+ * row are held in arrays which are reused for every row.
+ * <p>
+ * Numbers must be integral and are read with getLong; strings are read with
+ * getString.
+ */
+class JsonRows implements AutoCloseable {
+
+    private final JsonParser parser;
+    private long[] longs = new long[8];
+    private String[] strings = new String[8];
+    private boolean[] nulls = new boolean[8];
+    private int columns;
+    private int count;
+    private boolean done;
+
+    JsonRows(String json) {
+        parser = Json.createParser(new StringReader(json));
+        if (parser.next() != Event.START_ARRAY) {
+            throw new JsonException("Search result is not an array");
+        }
+    }
+
+    /**
+     * Move to the next row returning false if there are no more.
+     */
+    boolean next() {
+        if (done) {
+            return false;
+        }
+        Event event = parser.next();
+        if (event == Event.END_ARRAY) {
+            done = true;
+            return false;
+        }
+        if (event != Event.START_ARRAY) {
+            throw new JsonException("Search result row " + count + " is not an array");
+        }
+        columns = 0;
+        while ((event = parser.next()) != Event.END_ARRAY) {
+            if (columns == longs.length) {
+                longs = Arrays.copyOf(longs, columns * 2);
+                strings = Arrays.copyOf(strings, columns * 2);
+                nulls = Arrays.copyOf(nulls, columns * 2);
+            }
+            nulls[columns] = event == Event.VALUE_NULL;
+            strings[columns] = null;
+            if (event == Event.VALUE_NUMBER) {
+                longs[columns] = parser.getLong();
+            } else if (event == Event.VALUE_STRING) {
+                strings[columns] = parser.getString();
+            } else if (event != Event.VALUE_NULL) {
+                throw new JsonException("Unexpected " + event + " in search result row " + count);
+            }
+            columns++;
+        }
+        count++;
+        return true;
+    }
+
+    /**
+     * Return the number of rows read so far.
+     */
+    int getCount() {
+        return count;
+    }
+
+    boolean isNull(int column) {
+        check(column);
+        return nulls[column];
+    }
+
+    long getLong(int column) {
+        check(column);
+        if (nulls[column]) {
+            throw new JsonException("Column " + column + " of search result row " + (count - 1) + " is null");
+        }
+        return longs[column];
+    }
+
+    /**
+     * Return the number or null.
+     */
+    Long getLongOrNull(int column) {
+        return isNull(column) ? null : getLong(column);
+    }
+
+    /**
+     * Return the string, which is null if the value is null.
+     */
+    String getString(int column) {
+        check(column);
+        return strings[column];
+    }
+
+    private void check(int column) {
+        if (column >= columns) {
+            throw new JsonException("Search result row " + (count - 1) + " has only " + columns + " columns");
+        }
+    }
+
+    @Override
+    public void close() {
+        parser.close();
+    }
+
+}
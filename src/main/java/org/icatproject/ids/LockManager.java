@@ -4,7 +4,9 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import jakarta.annotation.PostConstruct;
 import jakarta.ejb.Singleton;
@@ -65,6 +67,9 @@ public class LockManager {
                         logger.error("Error while closing lock on {} in the storage plugin: {}.", id, e.getMessage());
                     }
                 }
+                for (Runnable listener : releaseListeners) {
+                    listener.run();
+                }
             }
         }
     }
@@ -122,6 +127,7 @@ public class LockManager {
     private PropertyHandler propertyHandler;
     private MainStorageInterface mainStorage;
     private Map<Long, LockEntry> lockMap = new HashMap<>();
+    private List<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
 
     @PostConstruct
     private void init() {
@@ -130,6 +136,15 @@ public class LockManager {
         logger.debug("LockManager initialized.");
     }
 
+    /**
+     * Register a listener to be run whenever the last lock on a dataset is
+     * released. It is run while holding the monitor of the lock map so must
+     * be quick and must not acquire locks.
+     */
+    public void addReleaseListener(Runnable listener) {
+        releaseListeners.add(listener);
+    }
+
     public Lock lock(DsInfo ds, LockType type) throws AlreadyLockedException, IOException {
         Long id = ds.getDsId();
         assert id != null;
@@ -0,0 +1,314 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * A replacement for ZipOutputStream, writing deflated entries, which
+ * compresses the data of each entry in fixed size blocks on a shared pool of
+ * worker threads. Each block is compressed independently, primed with the
+ * last 32 KiB of the previous block so that the compression ratio is close to
+ * that of a single deflater, and ends with a sync flush so that the
+ * compressed blocks can simply be concatenated. The blocks are written in
+ * order and the CRC-32 and sizes of each entry follow its data in a data
+ * descriptor, so the output is written sequentially as ZipOutputStream would.
+ * <p>
+ * Instances are not thread safe; the pool may be shared by many instances.
+ */
+public class ParallelZipOutputStream extends OutputStream {
+
+    /**
+     * A pool of threads to compress blocks shared by all downloads.
+     */
+    public static class Pool {
+
+        private final ExecutorService executor;
+        private final int threads;
+
+        /**
+         * @param threads the number of compression threads
+         */
+        public Pool(int threads) {
+            this.threads = threads;
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "Deflate");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+    }
+
+    /*
+     * What must be remembered of an entry to write its central directory
+     * header.
+     */
+    private static class Entry {
+        private final byte[] name;
+        private final long offset;
+        private long crc;
+        private long compressedSize;
+        private long size;
+
+        private Entry(byte[] name, long offset) {
+            this.name = name;
+            this.offset = offset;
+        }
+    }
+
+    static final int BLOCK_SIZE = 1024 * 1024;
+
+    private static final int DICTIONARY_SIZE = 32 * 1024;
+
+    /* An empty final block of fixed Huffman codes which terminates the deflate stream */
+    private static final byte[] FINAL_BLOCK = {3, 0};
+
+    private final OutputStream out;
+    private final Pool pool;
+    private final int level;
+    private final int maxPending;
+    private final short dosTime;
+    private final short dosDate;
+
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final List<Entry> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final CRC32 crc = new CRC32();
+
+    private long written;
+    private Entry entry;
+    private byte[] block;
+    private int blockLength;
+    private byte[] dictionary;
+    private boolean closed;
+
+    /**
+     * @param out   the stream to write the zip file to
+     * @param pool  the threads to compress with
+     * @param level the compression level as for Deflater
+     */
+    public ParallelZipOutputStream(OutputStream out, Pool pool, int level) {
+        this.out = out;
+        this.pool = pool;
+        this.level = level;
+        /* Enough blocks in flight to keep every thread busy while the oldest is written */
+        maxPending = 2 * pool.threads;
+        LocalDateTime now = LocalDateTime.now();
+        dosTime = ZipLayout.dosTime(now);
+        dosDate = ZipLayout.dosDate(now);
+    }
+
+    /**
+     * Begin a new entry, closing the current one if any.
+     *
+     * @throws ZipException if an entry of the same name has already been
+     *                      written
+     */
+    public void putNextEntry(ZipEntry ze) throws IOException {
+        ensureOpen();
+        if (entry != null) {
+            closeEntry();
+        }
+        if (!names.add(ze.getName())) {
+            throw new ZipException("duplicate entry: " + ze.getName());
+        }
+        byte[] name = ze.getName().getBytes(StandardCharsets.UTF_8);
+        entry = new Entry(name, written);
+        ByteBuffer b = ZipLayout.buffer(30 + name.length);
+        b.putInt(ZipLayout.LOC_SIG).putShort((short) 20)
+                .putShort((short) (ZipLayout.FLAG_UTF8 | ZipLayout.FLAG_DATA_DESCRIPTOR))
+                .putShort(ZipLayout.METHOD_DEFLATED).putShort(dosTime).putShort(dosDate).putInt(0).putInt(0).putInt(0)
+                .putShort((short) name.length).putShort((short) 0).put(name);
+        writeOut(b.array());
+        crc.reset();
+        dictionary = null;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (entry == null) {
+            throw new ZipException("no current entry");
+        }
+        crc.update(b, off, len);
+        entry.size += len;
+        while (len > 0) {
+            if (block == null) {
+                block = new byte[BLOCK_SIZE];
+            }
+            int n = Math.min(len, BLOCK_SIZE - blockLength);
+            System.arraycopy(b, off, block, blockLength, n);
+            blockLength += n;
+            off += n;
+            len -= n;
+            if (blockLength == BLOCK_SIZE) {
+                submit();
+            }
+        }
+    }
+
+    /**
+     * Finish the current entry, waiting for its blocks to be compressed, and
+     * write its data descriptor.
+     */
+    public void closeEntry() throws IOException {
+        ensureOpen();
+        if (entry == null) {
+            return;
+        }
+        if (blockLength > 0) {
+            submit();
+        }
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        writeOut(FINAL_BLOCK);
+        entry.compressedSize += FINAL_BLOCK.length;
+        entry.crc = crc.getValue();
+
+        boolean zip64 = entry.compressedSize >= ZipLayout.ZIP64_MAGIC || entry.size >= ZipLayout.ZIP64_MAGIC;
+        ByteBuffer b = ZipLayout.buffer(zip64 ? 24 : 16);
+        b.putInt(ZipLayout.EXT_SIG).putInt((int) entry.crc);
+        if (zip64) {
+            b.putLong(entry.compressedSize).putLong(entry.size);
+        } else {
+            b.putInt((int) entry.compressedSize).putInt((int) entry.size);
+        }
+        writeOut(b.array());
+        entries.add(entry);
+        entry = null;
+        dictionary = null;
+    }
+
+    /**
+     * Finish the current entry if any and write the central directory
+     * without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        ensureOpen();
+        closeEntry();
+        long centralDirectoryOffset = written;
+        for (Entry e : entries) {
+            writeOut(ZipLayout.centralHeader(e.name, (short) (ZipLayout.FLAG_UTF8 | ZipLayout.FLAG_DATA_DESCRIPTOR),
+                    ZipLayout.METHOD_DEFLATED, dosTime, dosDate, e.crc, e.compressedSize, e.size, e.offset));
+        }
+        writeOut(ZipLayout.end(entries.size(), centralDirectoryOffset, written - centralDirectoryOffset));
+        closed = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Finish the zip file and close the underlying stream. If finishing fails
+     * any compression still in progress is abandoned.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (!closed) {
+                finish();
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(false);
+            }
+            pending.clear();
+            closed = true;
+            out.close();
+        }
+    }
+
+    private void submit() throws IOException {
+        byte[] data = block;
+        int length = blockLength;
+        byte[] dict = dictionary;
+        pending.add(pool.executor.submit(() -> deflate(data, length, dict, level)));
+        int d = Math.min(length, DICTIONARY_SIZE);
+        dictionary = Arrays.copyOfRange(data, length - d, length);
+        block = null;
+        blockLength = 0;
+        while (pending.size() >= maxPending) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        Future<byte[]> future = pending.poll();
+        try {
+            byte[] compressed = future.get();
+            writeOut(compressed);
+            entry.compressedSize += compressed.length;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw new IOException(cause.getClass() + " " + cause.getMessage(), cause);
+        }
+    }
+
+    private void writeOut(byte[] bytes) throws IOException {
+        out.write(bytes);
+        written += bytes.length;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    /*
+     * Compress a block as non-final deflate blocks ending on a byte boundary.
+     */
+    static byte[] deflate(byte[] data, int length, byte[] dictionary, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            byte[] buffer = new byte[length + (length >> 8) + 64];
+            int n = 0;
+            while (true) {
+                n += deflater.deflate(buffer, n, buffer.length - n, Deflater.SYNC_FLUSH);
+                if (n < buffer.length) {
+                    return Arrays.copyOf(buffer, n);
+                }
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+}
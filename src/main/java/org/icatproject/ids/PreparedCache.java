@@ -0,0 +1,75 @@
+package org.icatproject.ids;
+
+import jakarta.json.stream.JsonGenerator;
+
+/**
+ * A cache of the contents of prepared files keyed by preparedId so that
+ * clients polling isPrepared, getStatus or getData do not cause the file to
+ * be read and decoded each time. The size is bounded by the total number of
+ * datafiles held and entries are dropped, least recently used first, when
+ * the bound is exceeded or when they reach the maximum age. A selection with
+ * more datafiles than the bound is never cached.
+ * <p>
+ * The cached Prepared objects are shared and must not be modified.
+ */
+public class PreparedCache {
+
+    private final BoundedCache<String, Prepared> cache;
+
+    /**
+     * @param maxDatafiles the maximum number of datafiles summed over all
+     *                     cached selections. If zero nothing is cached.
+     * @param maxAgeMillis the time after which an entry is dropped
+     */
+    public PreparedCache(long maxDatafiles, long maxAgeMillis) {
+        cache = new BoundedCache<>(maxDatafiles, maxAgeMillis);
+    }
+
+    /**
+     * Return whether a selection with the specified number of datafiles
+     * would be cached.
+     */
+    boolean accepts(long datafileCount) {
+        return cache.accepts(weight(datafileCount));
+    }
+
+    /**
+     * Return the cached contents of the prepared file or null if not cached.
+     */
+    Prepared get(String preparedId) {
+        return cache.get(preparedId);
+    }
+
+    void put(String preparedId, Prepared prepared) {
+        cache.put(preparedId, prepared, weight(prepared.dfInfos.size()));
+    }
+
+    /**
+     * Forget the prepared file, normally because it has been deleted.
+     */
+    public void invalidate(String preparedId) {
+        cache.remove(preparedId);
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Write the statistics as a JSON object with the specified name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("entries", cache.size()).write("datafiles", cache.getWeight())
+                .write("hits", cache.getHits()).write("misses", cache.getMisses()).writeEnd();
+    }
+
+    /* Count an entry with no datafiles as one so that the number of entries is bounded */
+    static long weight(long datafileCount) {
+        return Math.max(1L, datafileCount);
+    }
+
+}
@@ -0,0 +1,373 @@
+package org.icatproject.ids;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import jakarta.json.Json;
+import jakarta.json.JsonNumber;
+import jakarta.json.JsonObject;
+import jakarta.json.JsonReader;
+import jakarta.json.JsonValue;
+
+import org.icatproject.ids.exceptions.InternalException;
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * Reads and writes the files in the prepared directory which record what was
+ * requested by prepareData.
+ * <p>
+ * Files are written in a compact binary format: a magic number and version
+ * followed by the flags, the datasets, the empty datasets and
+ * finally the datafiles in order of id. Numbers are written as variable
+ * length integers, datafile ids as the difference from the previous id and
+ * the createId and modId strings, which rarely vary, as references to their
+ * first occurrence. As the datafiles come last they can be read one at a time
+ * with {@link #nextDfInfo()} once the file has been opened, so that callers
+ * which only iterate over them need not hold them all in memory.
+ * <p>
+ * Files written by earlier versions as JSON are still read but are loaded
+ * completely when opened. A PreparedFile may also wrap contents already held
+ * in memory by the PreparedCache.
+ */
+class PreparedFile implements Closeable {
+
+    private static final int MAGIC = 0x49445350; // "IDSP"
+
+    static final int VERSION = 1;
+
+    private static final int ZIP = 1;
+    private static final int COMPRESS = 2;
+
+    private final DataInputStream in;
+    private final boolean zip;
+    private final boolean compress;
+    private final SortedMap<Long, DsInfo> dsInfos;
+    private final Set<Long> emptyDatasets;
+    private final long datafileCount;
+    private final List<String> strings = new ArrayList<>();
+
+    /* Only set when the datafiles have already been read */
+    private final Iterator<DfInfoImpl> readDfInfos;
+
+    private long remaining;
+    private long lastDfId;
+
+    /**
+     * Write a prepared file in the current format. The stream is not closed.
+     */
+    static void write(OutputStream stream, boolean zip, boolean compress, Map<Long, DsInfo> dsInfos,
+                      Collection<DfInfoImpl> dfInfos, Set<Long> emptyDatasets) throws IOException {
+        DataOutputStream out = new DataOutputStream(stream);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte((zip ? ZIP : 0) | (compress ? COMPRESS : 0));
+
+        writeVarLong(out, dsInfos.size());
+        for (DsInfo dsInfo : new TreeMap<>(dsInfos).values()) {
+            writeVarLong(out, dsInfo.getDsId());
+            writeString(out, dsInfo.getDsName());
+            writeString(out, dsInfo.getDsLocation());
+            writeVarLong(out, dsInfo.getInvId());
+            writeString(out, dsInfo.getInvName());
+            writeString(out, dsInfo.getVisitId());
+            writeVarLong(out, dsInfo.getFacilityId());
+            writeString(out, dsInfo.getFacilityName());
+        }
+
+        writeVarLong(out, emptyDatasets.size());
+        for (Long emptyDs : emptyDatasets) {
+            writeVarLong(out, emptyDs);
+        }
+
+        SortedSet<DfInfoImpl> sorted = dfInfos instanceof SortedSet ? (SortedSet<DfInfoImpl>) dfInfos
+                : new TreeSet<>(dfInfos);
+        Map<String, Integer> table = new HashMap<>();
+        writeVarLong(out, sorted.size());
+        long lastDfId = 0;
+        for (DfInfoImpl dfInfo : sorted) {
+            writeVarLong(out, dfInfo.getDfId() - lastDfId);
+            lastDfId = dfInfo.getDfId();
+            writeVarLong(out, dfInfo.getDsId());
+            writeString(out, dfInfo.getDfName());
+            writeString(out, dfInfo.getDfLocation());
+            writeTableString(out, table, dfInfo.getCreateId());
+            writeTableString(out, table, dfInfo.getModId());
+            writeVarLong(out, dfInfo.getFileSize() == null ? 0 : dfInfo.getFileSize() + 1);
+            writeString(out, dfInfo.getChecksum());
+        }
+        out.flush();
+    }
+
+    /**
+     * Open a prepared file, reading everything but the datafiles. The stream
+     * is closed when the PreparedFile is closed.
+     *
+     * @throws InternalException if the file is not a prepared file or has an
+     *                           unsupported version
+     */
+    static PreparedFile open(InputStream stream) throws IOException, InternalException {
+        BufferedInputStream bis = new BufferedInputStream(stream);
+        bis.mark(4);
+        DataInputStream in = new DataInputStream(bis);
+        int magic;
+        try {
+            magic = in.readInt();
+        } catch (EOFException e) {
+            throw new InternalException("Prepared file is truncated");
+        }
+        if (magic != MAGIC) {
+            bis.reset();
+            return new PreparedFile(in, readJson(bis));
+        }
+        return new PreparedFile(in);
+    }
+
+    /**
+     * Return a PreparedFile which reads from contents already in memory.
+     */
+    static PreparedFile of(Prepared prepared) {
+        return new PreparedFile(null, prepared);
+    }
+
+    private PreparedFile(DataInputStream in) throws IOException, InternalException {
+        this.in = in;
+        readDfInfos = null;
+        dsInfos = new TreeMap<>();
+        emptyDatasets = new HashSet<>();
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new InternalException("Prepared file has unsupported version " + version);
+        }
+        int flags = in.readUnsignedByte();
+        zip = (flags & ZIP) != 0;
+        compress = (flags & COMPRESS) != 0;
+
+        long n = readVarLong(in);
+        for (long i = 0; i < n; i++) {
+            long dsId = readVarLong(in);
+            dsInfos.put(dsId, new DsInfoImpl(dsId, readString(in), readString(in), readVarLong(in), readString(in),
+                    readString(in), readVarLong(in), readString(in)));
+        }
+        n = readVarLong(in);
+        for (long i = 0; i < n; i++) {
+            emptyDatasets.add(readVarLong(in));
+        }
+        remaining = readVarLong(in);
+        datafileCount = remaining;
+    }
+
+    private PreparedFile(DataInputStream in, Prepared prepared) {
+        this.in = in;
+        zip = prepared.zip;
+        compress = prepared.compress;
+        dsInfos = prepared.dsInfos;
+        emptyDatasets = prepared.emptyDatasets;
+        datafileCount = prepared.dfInfos.size();
+        readDfInfos = prepared.dfInfos.iterator();
+    }
+
+    boolean isZip() {
+        return zip;
+    }
+
+    boolean isCompress() {
+        return compress;
+    }
+
+    SortedMap<Long, DsInfo> getDsInfos() {
+        return dsInfos;
+    }
+
+    Set<Long> getEmptyDatasets() {
+        return emptyDatasets;
+    }
+
+    /**
+     * Return the total number of datafiles, including any already read.
+     */
+    long getDatafileCount() {
+        return datafileCount;
+    }
+
+    /**
+     * Return the next datafile in order of id or null if there are no more.
+     */
+    DfInfoImpl nextDfInfo() throws IOException {
+        if (readDfInfos != null) {
+            return readDfInfos.hasNext() ? readDfInfos.next() : null;
+        }
+        if (remaining == 0) {
+            return null;
+        }
+        remaining--;
+        lastDfId += readVarLong(in);
+        long dsId = readVarLong(in);
+        String dfName = readString(in);
+        String dfLocation = readString(in);
+        String createId = readTableString(in);
+        String modId = readTableString(in);
+        long fileSize = readVarLong(in);
+        String checksum = readString(in);
+        return new DfInfoImpl(lastDfId, dfName, dfLocation, createId, modId, dsId,
+                fileSize == 0 ? null : fileSize - 1, checksum);
+    }
+
+    /**
+     * Read the remaining datafiles and return the whole contents.
+     */
+    Prepared readAll() throws IOException {
+        Prepared prepared = new Prepared();
+        prepared.zip = zip;
+        prepared.compress = compress;
+        prepared.dsInfos = dsInfos;
+        prepared.emptyDatasets = emptyDatasets;
+        DfInfoSet.Builder dfInfos = new DfInfoSet.Builder();
+        DfInfoImpl dfInfo;
+        while ((dfInfo = nextDfInfo()) != null) {
+            dfInfos.add(dfInfo);
+        }
+        prepared.dfInfos = dfInfos.build();
+        return prepared;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    private static Prepared readJson(InputStream stream) {
+        Prepared prepared = new Prepared();
+        JsonObject pd;
+        JsonReader jsonReader = Json.createReader(stream);
+        pd = jsonReader.readObject();
+        prepared.zip = pd.getBoolean("zip");
+        prepared.compress = pd.getBoolean("compress");
+        SortedMap<Long, DsInfo> dsInfos = new TreeMap<>();
+        DfInfoSet.Builder dfInfos = new DfInfoSet.Builder();
+        Set<Long> emptyDatasets = new HashSet<>();
+
+        for (JsonValue itemV : pd.getJsonArray("dfInfo")) {
+            JsonObject item = (JsonObject) itemV;
+            String dfLocation = item.isNull("dfLocation") ? null : item.getString("dfLocation");
+            Long fileSize = item.containsKey("fileSize") ? item.getJsonNumber("fileSize").longValueExact() : null;
+            dfInfos.add(new DfInfoImpl(item.getJsonNumber("dfId").longValueExact(), item.getString("dfName"),
+                    dfLocation, item.getString("createId"), item.getString("modId"),
+                    item.getJsonNumber("dsId").longValueExact(), fileSize, item.getString("checksum", null)));
+        }
+        prepared.dfInfos = dfInfos.build();
+
+        for (JsonValue itemV : pd.getJsonArray("dsInfo")) {
+            JsonObject item = (JsonObject) itemV;
+            long dsId = item.getJsonNumber("dsId").longValueExact();
+            String dsLocation = item.isNull("dsLocation") ? null : item.getString("dsLocation");
+            dsInfos.put(dsId, new DsInfoImpl(dsId, item.getString("dsName"), dsLocation,
+                    item.getJsonNumber("invId").longValueExact(), item.getString("invName"), item.getString("visitId"),
+                    item.getJsonNumber("facilityId").longValueExact(), item.getString("facilityName")));
+        }
+        prepared.dsInfos = dsInfos;
+
+        for (JsonValue itemV : pd.getJsonArray("emptyDs")) {
+            emptyDatasets.add(((JsonNumber) itemV).longValueExact());
+        }
+        prepared.emptyDatasets = emptyDatasets;
+
+        return prepared;
+    }
+
+    /* Unsigned LEB128 */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length integer");
+    }
+
+    /* A null string is written as 0 and any other as its length in bytes plus one */
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            writeVarLong(out, 0);
+        } else {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(out, bytes.length + 1L);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        long n = readVarLong(in);
+        if (n == 0) {
+            return null;
+        }
+        byte[] bytes = new byte[Math.toIntExact(n - 1)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /*
+     * A string seen before is written as its index in the table plus one and
+     * a new one as 0 followed by the string.
+     */
+    private static void writeTableString(DataOutputStream out, Map<String, Integer> table, String s)
+            throws IOException {
+        Integer index = s == null ? null : table.get(s);
+        if (index != null) {
+            writeVarLong(out, index + 1L);
+        } else {
+            writeVarLong(out, 0);
+            writeString(out, s);
+            if (s != null) {
+                table.put(s, table.size());
+            }
+        }
+    }
+
+    private String readTableString(DataInputStream in) throws IOException {
+        long index = readVarLong(in);
+        if (index != 0) {
+            if (index > strings.size()) {
+                throw new IOException("Bad string reference in prepared file");
+            }
+            return strings.get((int) (index - 1));
+        }
+        String s = readString(in);
+        if (s != null) {
+            strings.add(s);
+        }
+        return s;
+    }
+
+}
@@ -9,8 +9,10 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
@@ -22,6 +24,7 @@ import org.slf4j.LoggerFactory;
 
 import org.icatproject.ICAT;
 import org.icatproject.IcatException_Exception;
+import org.icatproject.ids.FiniteStateMachine.Priority;
 import org.icatproject.ids.IdsBean.CallType;
 import org.icatproject.ids.plugin.ArchiveStorageInterface;
 import org.icatproject.ids.plugin.MainStorageInterface;
@@ -82,6 +85,25 @@ public class PropertyHandler {
     private Set<CallType> logSet = new HashSet<>();
     private org.icatproject.icat.client.ICAT restIcat;
     private boolean useReaderForPerformance;
+    private int readAheadCount;
+    private long readAheadMaxBytes;
+    private int readAheadThreads;
+    private int compressionThreads;
+    private Map<DeferredOp, Integer> fsmThreads = new EnumMap<>(DeferredOp.class);
+    private Map<Priority, Integer> fsmMaxInProgress = new EnumMap<>(Priority.class);
+    private int fsmPriorityAgeSeconds;
+    private RestoreLocality restoreLocality = RestoreLocality.LOCATION;
+    private int restoreWindowSeconds;
+    private int restoreMaxBatchDatafiles;
+    private long restoreMaxBatchBytes;
+    private BufferPool bufferPool;
+    private PreparedCache preparedCache;
+    private DsInfoCache dsInfoCache;
+    private SelectionCache selectionCache;
+    private QueryFanOut.Pool queryPool;
+    private SelectionStrategy selectionStrategy = SelectionStrategy.BISECT;
+    private boolean streamSelection;
+    private boolean crc32Checksums;
 
     @SuppressWarnings("unchecked")
     private PropertyHandler() {
@@ -243,6 +265,121 @@ public class PropertyHandler {
 
             useReaderForPerformance = props.getBoolean("useReaderForPerformance", false);
 
+            crc32Checksums = props.getBoolean("crc32Checksums", false);
+
+            if (props.has("readAhead.count")) {
+                readAheadCount = props.getNonNegativeInt("readAhead.count");
+            }
+            if (readAheadCount > 0) {
+                readAheadMaxBytes = props.getPositiveLong("readAhead.maxBytes");
+                readAheadThreads = props.has("readAhead.threads") ? props.getPositiveInt("readAhead.threads")
+                        : readAheadCount;
+            }
+            if (props.has("compressionThreads")) {
+                compressionThreads = props.getNonNegativeInt("compressionThreads");
+            }
+            for (DeferredOp op : DeferredOp.values()) {
+                String key = "fsmThreads." + op.name().toLowerCase();
+                fsmThreads.put(op, props.has(key) ? props.getPositiveInt(key) : 4);
+            }
+            for (Priority priority : Priority.values()) {
+                String key = "fsmMaxInProgress." + priority.name().toLowerCase();
+                fsmMaxInProgress.put(priority, props.has(key) ? props.getNonNegativeInt(key) : 0);
+            }
+            fsmPriorityAgeSeconds = 600;
+            if (props.has("fsmPriorityAgeSeconds")) {
+                fsmPriorityAgeSeconds = props.getPositiveInt("fsmPriorityAgeSeconds");
+            }
+            if (props.has("restore.locality")) {
+                try {
+                    restoreLocality = RestoreLocality.valueOf(props.getString("restore.locality").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    List<String> vs = new ArrayList<>();
+                    for (RestoreLocality s : RestoreLocality.values()) {
+                        vs.add(s.name());
+                    }
+                    abort("restore.locality value " + props.getString("restore.locality") + " must be taken from "
+                            + vs);
+                }
+            }
+            if (props.has("restore.windowSeconds")) {
+                restoreWindowSeconds = props.getNonNegativeInt("restore.windowSeconds");
+            }
+            if (props.has("restore.maxBatchDatafiles")) {
+                restoreMaxBatchDatafiles = props.getNonNegativeInt("restore.maxBatchDatafiles");
+            }
+            if (props.has("restore.maxBatchBytes")) {
+                restoreMaxBatchBytes = props.getNonNegativeLong("restore.maxBatchBytes");
+            }
+            int bufferSize = 65536;
+            if (props.has("buffer.size")) {
+                bufferSize = props.getPositiveInt("buffer.size");
+            }
+            int maxPooledBuffers = 32;
+            if (props.has("buffer.maxPooled")) {
+                maxPooledBuffers = props.getNonNegativeInt("buffer.maxPooled");
+            }
+            bufferPool = new BufferPool(bufferSize, maxPooledBuffers);
+            logger.info("Copying data with buffers of " + bufferSize + " bytes keeping up to " + maxPooledBuffers
+                    + " idle");
+
+            long preparedCacheMaxDatafiles = 100000;
+            if (props.has("preparedCache.maxDatafiles")) {
+                preparedCacheMaxDatafiles = props.getNonNegativeLong("preparedCache.maxDatafiles");
+            }
+            long preparedCacheMaxAgeMillis = 600000;
+            if (props.has("preparedCache.maxAgeSeconds")) {
+                preparedCacheMaxAgeMillis = props.getPositiveLong("preparedCache.maxAgeSeconds") * 1000L;
+            }
+            preparedCache = new PreparedCache(preparedCacheMaxDatafiles, preparedCacheMaxAgeMillis);
+
+            int dsInfoCacheMaxEntries = 10000;
+            if (props.has("dsInfoCache.maxEntries")) {
+                dsInfoCacheMaxEntries = props.getNonNegativeInt("dsInfoCache.maxEntries");
+            }
+            long dsInfoCacheMaxAgeMillis = 300000;
+            if (props.has("dsInfoCache.maxAgeSeconds")) {
+                dsInfoCacheMaxAgeMillis = props.getPositiveLong("dsInfoCache.maxAgeSeconds") * 1000L;
+            }
+            dsInfoCache = new DsInfoCache(dsInfoCacheMaxEntries, dsInfoCacheMaxAgeMillis);
+
+            long selectionCacheMaxDatafiles = 100000;
+            if (props.has("selectionCache.maxDatafiles")) {
+                selectionCacheMaxDatafiles = props.getNonNegativeLong("selectionCache.maxDatafiles");
+            }
+            long selectionCacheMaxAgeMillis = 30000;
+            if (props.has("selectionCache.maxAgeSeconds")) {
+                selectionCacheMaxAgeMillis = props.getPositiveLong("selectionCache.maxAgeSeconds") * 1000L;
+            }
+            selectionCache = new SelectionCache(selectionCacheMaxDatafiles, selectionCacheMaxAgeMillis);
+
+            if (props.has("queryThreads")) {
+                int queryThreads = props.getNonNegativeInt("queryThreads");
+                if (queryThreads > 0) {
+                    int queryThreadsPerRequest = 4;
+                    if (props.has("queryThreadsPerRequest")) {
+                        queryThreadsPerRequest = props.getPositiveInt("queryThreadsPerRequest");
+                    }
+                    queryPool = new QueryFanOut.Pool(queryThreads, queryThreadsPerRequest);
+                    logger.info("Resolving data selections with " + queryPool.getThreads()
+                            + " ICAT query threads, up to " + queryPool.getMaxPerRequest() + " per request");
+                }
+            }
+
+            streamSelection = props.getBoolean("streamSelection", false);
+            if (props.has("selectionStrategy")) {
+                try {
+                    selectionStrategy = SelectionStrategy.valueOf(props.getString("selectionStrategy").toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    List<String> vs = new ArrayList<>();
+                    for (SelectionStrategy s : SelectionStrategy.values()) {
+                        vs.add(s.name());
+                    }
+                    abort("selectionStrategy value " + props.getString("selectionStrategy") + " must be taken from "
+                            + vs);
+                }
+            }
+
         } catch (CheckedPropertyException e) {
             abort(e.getMessage());
         }
@@ -419,4 +556,88 @@ public class PropertyHandler {
     public boolean getUseReaderForPerformance() {
         return useReaderForPerformance;
     }
+
+    public int getReadAheadCount() {
+        return readAheadCount;
+    }
+
+    public long getReadAheadMaxBytes() {
+        return readAheadMaxBytes;
+    }
+
+    public int getReadAheadThreads() {
+        return readAheadThreads;
+    }
+
+    public int getCompressionThreads() {
+        return compressionThreads;
+    }
+
+    /**
+     * Return the maximum number of threads which carry out queued operations
+     * of the specified type at the same time.
+     */
+    public int getFsmThreads(DeferredOp op) {
+        return fsmThreads.get(op);
+    }
+
+    public int getFsmMaxInProgress(Priority priority) {
+        return fsmMaxInProgress.get(priority);
+    }
+
+    public int getFsmPriorityAgeSeconds() {
+        return fsmPriorityAgeSeconds;
+    }
+
+    RestoreLocality getRestoreLocality() {
+        return restoreLocality;
+    }
+
+    public int getRestoreWindowSeconds() {
+        return restoreWindowSeconds;
+    }
+
+    public int getRestoreMaxBatchDatafiles() {
+        return restoreMaxBatchDatafiles;
+    }
+
+    public long getRestoreMaxBatchBytes() {
+        return restoreMaxBatchBytes;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public PreparedCache getPreparedCache() {
+        return preparedCache;
+    }
+
+    public DsInfoCache getDsInfoCache() {
+        return dsInfoCache;
+    }
+
+    public SelectionCache getSelectionCache() {
+        return selectionCache;
+    }
+
+    public boolean getStreamSelection() {
+        return streamSelection;
+    }
+
+    public boolean getCrc32Checksums() {
+        return crc32Checksums;
+    }
+
+    SelectionStrategy getSelectionStrategy() {
+        return selectionStrategy;
+    }
+
+    /**
+     * Return the threads used to run the queries resolving a DataSelection
+     * or null if they are to be run on the request thread.
+     */
+    public QueryFanOut.Pool getQueryPool() {
+        return queryPool;
+    }
 }
@@ -0,0 +1,142 @@
+package org.icatproject.ids;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the independent ICAT queries made while resolving one DataSelection
+ * on a pool of threads shared by all requests. At most maxPerRequest tasks
+ * submitted to one QueryFanOut run at the same time so that a single large
+ * selection cannot occupy the whole pool, whose size bounds the total. Tasks
+ * may submit further tasks. Without a pool each task is run on the calling
+ * thread as it is submitted.
+ * <p>
+ * Once a task has failed no more tasks are started and await throws the
+ * first failure.
+ */
+public class QueryFanOut {
+
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * The threads shared by all instances of QueryFanOut.
+     */
+    public static class Pool {
+
+        private final ExecutorService executor;
+        private final int threads;
+        private final int maxPerRequest;
+
+        /**
+         * @param threads       the number of query threads
+         * @param maxPerRequest the maximum number of those threads used by one
+         *                      request
+         */
+        public Pool(int threads, int maxPerRequest) {
+            this.threads = threads;
+            this.maxPerRequest = Math.min(threads, maxPerRequest);
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "IcatQuery");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+
+        public int getThreads() {
+            return threads;
+        }
+
+        public int getMaxPerRequest() {
+            return maxPerRequest;
+        }
+    }
+
+    private final ExecutorService executor;
+    private final int maxParallel;
+    private final ArrayDeque<Task> pending = new ArrayDeque<>();
+    private int active;
+    private Throwable failure;
+
+    /**
+     * @param pool the shared pool or null to run tasks on the calling thread
+     */
+    public QueryFanOut(Pool pool) {
+        if (pool == null) {
+            executor = null;
+            maxParallel = 1;
+        } else {
+            executor = pool.executor;
+            maxParallel = pool.maxPerRequest;
+        }
+    }
+
+    public void submit(Task task) {
+        if (executor == null) {
+            if (failure == null) {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    failure = e;
+                }
+            }
+            return;
+        }
+        synchronized (this) {
+            if (failure == null) {
+                pending.add(task);
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * Wait for all the tasks, including those submitted by other tasks, to
+     * finish.
+     */
+    public void await() throws Exception {
+        synchronized (this) {
+            while (active > 0) {
+                wait();
+            }
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw (Exception) failure;
+        }
+    }
+
+    /* Must be called holding the lock */
+    private void dispatch() {
+        while (active < maxParallel && !pending.isEmpty()) {
+            Task task = pending.poll();
+            active++;
+            executor.execute(() -> run(task));
+        }
+    }
+
+    private void run(Task task) {
+        Throwable thrown = null;
+        try {
+            task.run();
+        } catch (Throwable t) {
+            thrown = t;
+        } finally {
+            synchronized (this) {
+                active--;
+                if (thrown != null && failure == null) {
+                    failure = thrown;
+                    pending.clear();
+                }
+                dispatch();
+                if (active == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+}
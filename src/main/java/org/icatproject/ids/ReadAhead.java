@@ -0,0 +1,346 @@
+package org.icatproject.ids;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Opens datafiles, and buffers their first bytes, on worker threads ahead of
+ * the time they are needed so that the latency of opening a file on main
+ * storage is hidden while the previous file is being sent. Each session
+ * returns the streams in the order of its datafiles and keeps at most count
+ * datafiles open ahead of the consumer. The worker threads, of which there
+ * are a fixed number, are shared by all sessions; a consumer which finds that
+ * its next datafile has not been taken by a worker opens it itself rather than
+ * wait behind other sessions. The memory used for buffers is also shared and
+ * limited to maxBytes; when it is exhausted up to one file per thread is still
+ * opened ahead but not buffered and any others are left to be opened by the
+ * consumer. The buffers are borrowed from the BufferPool and each is returned
+ * as soon as it has been consumed.
+ */
+public class ReadAhead {
+
+    /**
+     * Opens the stream for a datafile.
+     */
+    public interface Opener {
+        InputStream open(DfInfoImpl dfInfo) throws IOException;
+    }
+
+    /**
+     * The read ahead for one download. It must be closed to release any
+     * streams which have not been consumed.
+     */
+    public class Session implements AutoCloseable {
+
+        private final Iterator<DfInfoImpl> dfInfos;
+        private final Opener opener;
+        private final Deque<FutureTask<Prefetched>> pending = new ArrayDeque<>();
+        private final Deque<DfInfoImpl> queued = new ArrayDeque<>();
+        private final Set<Prefetched> unconsumed = new HashSet<>();
+        private boolean closed;
+
+        private Session(Iterator<DfInfoImpl> dfInfos, Opener opener) {
+            this.dfInfos = dfInfos;
+            this.opener = opener;
+            fill();
+        }
+
+        private void fill() {
+            while (pending.size() < count && dfInfos.hasNext()) {
+                DfInfoImpl dfInfo = dfInfos.next();
+                queued.add(dfInfo);
+                FutureTask<Prefetched> task = new FutureTask<>(() -> prefetch(dfInfo));
+                pending.add(task);
+                executor.execute(task);
+            }
+        }
+
+        private Prefetched prefetch(DfInfoImpl dfInfo) throws IOException {
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+            }
+            Prefetched prefetched = ReadAhead.this.prefetch(dfInfo, opener);
+            if (prefetched == null) {
+                return null;
+            }
+            synchronized (this) {
+                if (closed) {
+                    prefetched.close();
+                    return null;
+                }
+                unconsumed.add(prefetched);
+            }
+            return prefetched;
+        }
+
+        /**
+         * Return whether there is another datafile.
+         */
+        public boolean hasNext() {
+            return !pending.isEmpty();
+        }
+
+        /**
+         * Return the datafile whose stream will be returned by next, so that
+         * the datafiles need only be iterated once.
+         */
+        public DfInfoImpl peek() {
+            return queued.peek();
+        }
+
+        /**
+         * Return the stream for the next datafile. The caller must close it.
+         *
+         * @throws IOException if the datafile could not be opened or read
+         */
+        public InputStream next() throws IOException {
+            FutureTask<Prefetched> future = pending.poll();
+            if (future == null) {
+                throw new NoSuchElementException();
+            }
+            DfInfoImpl dfInfo = queued.poll();
+            fill();
+            /* Does nothing if a worker has already taken the task */
+            future.run();
+            try {
+                Prefetched prefetched = future.get();
+                if (prefetched == null) {
+                    return opener.open(dfInfo);
+                }
+                synchronized (this) {
+                    unconsumed.remove(prefetched);
+                }
+                return prefetched;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException(e.getMessage());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException(cause.getClass() + " " + cause.getMessage(), cause);
+            }
+        }
+
+        @Override
+        public void close() {
+            List<Prefetched> toClose;
+            synchronized (this) {
+                closed = true;
+                toClose = new ArrayList<>(unconsumed);
+                unconsumed.clear();
+            }
+            for (Prefetched prefetched : toClose) {
+                prefetched.close();
+            }
+        }
+    }
+
+    /*
+     * The buffered start of a datafile followed by the rest of its stream. All
+     * chunks are full apart from the last which holds lastLength bytes.
+     */
+    private class Prefetched extends InputStream {
+
+        private final List<byte[]> chunks;
+        private final int lastLength;
+        private final boolean unbuffered;
+        private InputStream rest;
+        private int chunk;
+        private int pos;
+        private boolean released;
+
+        private Prefetched(List<byte[]> chunks, int lastLength, InputStream rest, boolean unbuffered) {
+            this.chunks = chunks;
+            this.lastLength = lastLength;
+            this.unbuffered = unbuffered;
+            this.rest = rest;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (chunk < chunks.size()) {
+                int length = chunk == chunks.size() - 1 ? lastLength : chunkSize;
+                if (pos < length) {
+                    int n = Math.min(len, length - pos);
+                    System.arraycopy(chunks.get(chunk), pos, b, off, n);
+                    pos += n;
+                    return n;
+                }
+                releaseChunk(chunk++);
+                pos = 0;
+            }
+            return rest == null ? -1 : rest.read(b, off, len);
+        }
+
+        /* Return a chunk to the pool along with its share of the memory */
+        private synchronized void releaseChunk(int i) {
+            byte[] bytes = chunks.set(i, null);
+            if (bytes != null) {
+                bufferPool.release(bytes);
+                memory.release();
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!released) {
+                released = true;
+                for (int i = chunk; i < chunks.size(); i++) {
+                    releaseChunk(i);
+                }
+                if (unbuffered) {
+                    unbufferedOpen.release();
+                }
+                if (rest != null) {
+                    try {
+                        rest.close();
+                    } catch (IOException e) {
+                        logger.debug("Failed to close read ahead stream " + e.getMessage());
+                    }
+                    rest = null;
+                }
+            }
+        }
+    }
+
+    private final static Logger logger = LoggerFactory.getLogger(ReadAhead.class);
+
+    /* The most bytes of one datafile to buffer */
+    private static final int MAX_BYTES_PER_FILE = 1024 * 1024;
+
+    private final int count;
+
+    private final BufferPool bufferPool;
+
+    private final int chunkSize;
+
+    private final int maxChunksPerFile;
+
+    private final Semaphore memory;
+
+    /* Streams opened ahead for which there was no memory to buffer */
+    private final Semaphore unbufferedOpen;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param count    the number of datafiles to open ahead of the one being
+     *                 consumed in each session
+     * @param threads  the number of worker threads shared by all sessions,
+     *                 which is also the number of datafiles which may be open
+     *                 ahead without being buffered
+     * @param maxBytes   the maximum number of bytes held in read ahead buffers
+     *                   summed over all sessions
+     * @param bufferPool the pool from which the buffers are borrowed
+     */
+    public ReadAhead(int count, int threads, long maxBytes, BufferPool bufferPool) {
+        this.count = count;
+        this.bufferPool = bufferPool;
+        chunkSize = bufferPool.getBufferSize();
+        maxChunksPerFile = Math.max(1, MAX_BYTES_PER_FILE / chunkSize);
+        memory = new Semaphore((int) Math.min(Integer.MAX_VALUE, maxBytes / chunkSize));
+        unbufferedOpen = new Semaphore(threads);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "ReadAhead");
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+    }
+
+    /**
+     * Start reading ahead the specified datafiles in order.
+     */
+    public Session start(Iterator<DfInfoImpl> dfInfos, Opener opener) {
+        return new Session(dfInfos, opener);
+    }
+
+    /**
+     * Return the number of bytes of the memory cap which are not in use.
+     */
+    public long getAvailableBytes() {
+        return (long) memory.availablePermits() * chunkSize;
+    }
+
+    /*
+     * Open the datafile and buffer its start, or return null, leaving it to be
+     * opened by the consumer, if there is no memory for a buffer and as many
+     * files as allowed are already open ahead without one.
+     */
+    private Prefetched prefetch(DfInfoImpl dfInfo, Opener opener) throws IOException {
+        boolean unbuffered = !memory.tryAcquire();
+        if (unbuffered && !unbufferedOpen.tryAcquire()) {
+            return null;
+        }
+        InputStream stream;
+        try {
+            stream = opener.open(dfInfo);
+        } catch (IOException e) {
+            if (unbuffered) {
+                unbufferedOpen.release();
+            } else {
+                memory.release();
+            }
+            throw e;
+        }
+        if (unbuffered) {
+            return new Prefetched(new ArrayList<>(), 0, stream, true);
+        }
+        List<byte[]> chunks = new ArrayList<>();
+        try {
+            /* One chunk for each permit held, the first acquired above */
+            do {
+                byte[] bytes = bufferPool.acquire();
+                chunks.add(bytes);
+                int n = stream.readNBytes(bytes, 0, chunkSize);
+                if (n < chunkSize) {
+                    stream.close();
+                    return new Prefetched(chunks, n, null, false);
+                }
+            } while (chunks.size() < maxChunksPerFile && memory.tryAcquire());
+        } catch (IOException e) {
+            for (byte[] bytes : chunks) {
+                bufferPool.release(bytes);
+            }
+            memory.release(chunks.size());
+            stream.close();
+            throw e;
+        }
+        return new Prefetched(chunks, chunkSize, stream, false);
+    }
+
+}
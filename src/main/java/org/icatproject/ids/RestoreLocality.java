@@ -0,0 +1,12 @@
+package org.icatproject.ids;
+
+/**
+ * How RestorePlanner groups the restores it passes to the archive storage
+ * plugin together. DATASET and INVESTIGATION group by the dataset or
+ * investigation of each item and LOCATION by the location of each item up to
+ * its last "/". Within a group items are sorted by location. NONE keeps the
+ * order in which the items are taken from the queue.
+ */
+enum RestoreLocality {
+    NONE, DATASET, INVESTIGATION, LOCATION
+}
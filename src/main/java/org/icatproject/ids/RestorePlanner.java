@@ -0,0 +1,148 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * Decides which of the restores the FSM could start are started together and
+ * in what order, so that an archive on tape recalls neighbouring items one
+ * after the other rather than in the order in which they happened to be
+ * queued.
+ * <p>
+ * Restores are held back until the oldest has waited for the window, or
+ * there are enough for a full batch, so that more of them may be grouped.
+ * The restores are then grouped by locality, the groups taken in the order
+ * in which the FSM offered their first items, which is in order of priority,
+ * and the items of a group sorted by location. With a storage unit of
+ * datafile the result is cut into batches, each passed to one call of the
+ * archive storage plugin, of at most the configured number of datafiles and
+ * bytes; with a storage unit of dataset it is the order in which the datasets
+ * are restored.
+ */
+class RestorePlanner {
+
+    private final RestoreLocality locality;
+    private final long windowMillis;
+    private final int maxBatchDatafiles;
+    private final long maxBatchBytes;
+
+    /**
+     * @param propertyHandler provides the locality, the window and the limits
+     *                        on the size of a batch, where 0 means no limit
+     */
+    RestorePlanner(PropertyHandler propertyHandler) {
+        locality = propertyHandler.getRestoreLocality();
+        windowMillis = propertyHandler.getRestoreWindowSeconds() * 1000L;
+        maxBatchDatafiles = propertyHandler.getRestoreMaxBatchDatafiles();
+        maxBatchBytes = propertyHandler.getRestoreMaxBatchBytes();
+    }
+
+    /**
+     * Return the time at which restores should be started given the number
+     * that could be started and the time at which the oldest was requested.
+     */
+    long getDue(int count, long oldest) {
+        if (windowMillis == 0 || (maxBatchDatafiles > 0 && count >= maxBatchDatafiles)) {
+            return oldest;
+        }
+        return oldest + windowMillis;
+    }
+
+    /**
+     * Return up to maxBatches batches of the datafiles, which are listed in
+     * order of priority. The DsInfo of each dataset, if known, is used to find
+     * its investigation. Datafiles left out should be offered again later.
+     */
+    List<List<DfInfoImpl>> planDatafiles(List<DfInfoImpl> dfInfos, Map<Long, DsInfo> dsInfos, int maxBatches) {
+        Function<DfInfoImpl, Object> group;
+        if (locality == RestoreLocality.DATASET) {
+            group = DfInfoImpl::getDsId;
+        } else if (locality == RestoreLocality.INVESTIGATION) {
+            group = dfInfo -> {
+                DsInfo dsInfo = dsInfos.get(dfInfo.getDsId());
+                return dsInfo == null ? "ds" + dfInfo.getDsId() : "inv" + dsInfo.getInvId();
+            };
+        } else if (locality == RestoreLocality.LOCATION) {
+            group = dfInfo -> prefix(dfInfo.getDfLocation());
+        } else {
+            group = item -> item;
+        }
+        List<DfInfoImpl> ordered = order(dfInfos, group, DfInfoImpl::getDfLocation);
+        return batch(ordered, dfInfo -> dfInfo.getFileSize() == null ? 0 : dfInfo.getFileSize(), maxBatches);
+    }
+
+    /**
+     * Return the datasets, which are listed in order of priority, in the
+     * order in which they should be restored.
+     */
+    List<DsInfo> orderDatasets(List<DsInfo> dsInfos) {
+        Function<DsInfo, Object> group;
+        if (locality == RestoreLocality.INVESTIGATION) {
+            group = DsInfo::getInvId;
+        } else if (locality == RestoreLocality.LOCATION) {
+            group = dsInfo -> prefix(dsInfo.getDsLocation());
+        } else {
+            group = item -> item;
+        }
+        return order(dsInfos, group, DsInfo::getDsLocation);
+    }
+
+    private <T> List<T> order(List<T> items, Function<T, Object> group, Function<T, String> location) {
+        if (locality == RestoreLocality.NONE) {
+            return new ArrayList<>(items);
+        }
+        Map<Object, List<T>> groups = new LinkedHashMap<>();
+        for (T item : items) {
+            groups.computeIfAbsent(group.apply(item), k -> new ArrayList<>()).add(item);
+        }
+        Comparator<T> byLocation = Comparator.comparing(item -> {
+            String l = location.apply(item);
+            return l == null ? "" : l;
+        });
+        List<T> result = new ArrayList<>(items.size());
+        for (List<T> members : groups.values()) {
+            members.sort(byLocation);
+            result.addAll(members);
+        }
+        return result;
+    }
+
+    private List<List<DfInfoImpl>> batch(List<DfInfoImpl> ordered, ToLongFunction<DfInfoImpl> size,
+            int maxBatches) {
+        List<List<DfInfoImpl>> batches = new ArrayList<>();
+        List<DfInfoImpl> current = null;
+        long bytes = 0;
+        for (DfInfoImpl item : ordered) {
+            long s = size.applyAsLong(item);
+            if (current == null || (maxBatchDatafiles > 0 && current.size() >= maxBatchDatafiles)
+                    || (maxBatchBytes > 0 && !current.isEmpty() && bytes + s > maxBatchBytes)) {
+                if (batches.size() == maxBatches) {
+                    break;
+                }
+                current = new ArrayList<>();
+                batches.add(current);
+                bytes = 0;
+            }
+            current.add(item);
+            bytes += s;
+        }
+        return batches;
+    }
+
+    /* The location up to its last "/" */
+    private static String prefix(String location) {
+        if (location == null) {
+            return "";
+        }
+        int i = location.lastIndexOf('/');
+        return i < 0 ? "" : location.substring(0, i);
+    }
+
+}
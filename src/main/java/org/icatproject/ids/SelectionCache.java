@@ -0,0 +1,120 @@
+package org.icatproject.ids;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import jakarta.json.stream.JsonGenerator;
+
+import org.icatproject.ids.DataSelection.Returns;
+import org.icatproject.ids.exceptions.BadRequestException;
+
+/**
+ * A short lived cache of resolved DataSelections keyed by sessionId and the
+ * requested ids so that a client polling getStatus, getSize and getData for
+ * the same selection does not have ICAT check its permissions and find the
+ * datafiles each time. A selection which returns datasets and datafiles
+ * serves requests for either. The size is bounded by the total number of
+ * datafiles held, as for the PreparedCache, and entries are dropped, least
+ * recently used first, when the bound is exceeded or when they reach the
+ * maximum age, which is how long a change of permissions in ICAT may go
+ * unnoticed.
+ * <p>
+ * The cached DataSelections are shared and must not be modified.
+ */
+public class SelectionCache {
+
+    private static class Entry {
+        private final DataSelection dataSelection;
+        private final Set<Long> dsIds;
+
+        private Entry(DataSelection dataSelection, Set<Long> dsIds) {
+            this.dataSelection = dataSelection;
+            this.dsIds = dsIds;
+        }
+    }
+
+    private final BoundedCache<String, Entry> cache;
+
+    /**
+     * @param maxDatafiles the maximum number of datafiles summed over all
+     *                     cached selections. If zero nothing is cached.
+     * @param maxAgeMillis the time after which an entry is dropped
+     */
+    public SelectionCache(long maxDatafiles, long maxAgeMillis) {
+        cache = new BoundedCache<>(maxDatafiles, maxAgeMillis);
+    }
+
+    /**
+     * Return the key for the selection. Each list of ids is sorted with
+     * duplicates removed so that the order in which ids are given does not
+     * matter.
+     */
+    static String key(String sessionId, String investigationIds, String datasetIds, String datafileIds)
+            throws BadRequestException {
+        StringBuilder sb = new StringBuilder().append(sessionId);
+        appendIds(sb.append('/'), DataSelection.getValidIds("investigationIds", investigationIds));
+        appendIds(sb.append('/'), DataSelection.getValidIds("datasetIds", datasetIds));
+        appendIds(sb.append('/'), DataSelection.getValidIds("datafileIds", datafileIds));
+        return sb.toString();
+    }
+
+    private static void appendIds(StringBuilder sb, List<Long> ids) {
+        boolean first = true;
+        for (Long id : new TreeSet<>(ids)) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(id);
+            first = false;
+        }
+    }
+
+    /**
+     * Return the cached selection if it provides what is wanted, otherwise
+     * null.
+     */
+    DataSelection get(String key, Returns returns) {
+        Entry entry = cache.get(key, e -> e.dataSelection.provides(returns));
+        return entry == null ? null : entry.dataSelection;
+    }
+
+    /**
+     * Cache the selection, remembering its datasets, including any with no
+     * datafiles, so that it is forgotten when any of them change.
+     */
+    void put(String key, DataSelection dataSelection) {
+        Set<DfInfoImpl> dfInfos = dataSelection.getDfInfo();
+        long weight = PreparedCache.weight(dfInfos == null ? 0 : dfInfos.size());
+        if (cache.accepts(weight)) {
+            cache.put(key, new Entry(dataSelection, dataSelection.getDsIds()), weight);
+        }
+    }
+
+    /**
+     * Forget every selection which includes any of the datasets, normally
+     * because datafiles have been added to or deleted from them.
+     */
+    public void invalidateDatasets(Collection<Long> dsIds) {
+        cache.removeIf(entry -> !Collections.disjoint(entry.dsIds, dsIds));
+    }
+
+    public long getHits() {
+        return cache.getHits();
+    }
+
+    public long getMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Write the statistics as a JSON object with the specified name.
+     */
+    public void writeStatus(JsonGenerator gen, String name) {
+        gen.writeStartObject(name).write("entries", cache.size()).write("datafiles", cache.getWeight())
+                .write("hits", cache.getHits()).write("misses", cache.getMisses()).writeEnd();
+    }
+
+}
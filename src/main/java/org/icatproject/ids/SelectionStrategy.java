@@ -0,0 +1,12 @@
+package org.icatproject.ids;
+
+/**
+ * How DataSelection finds the datasets of an investigation and the datafiles
+ * of a dataset when there may be more than maxEntities of them. BISECT splits
+ * the range of ids in two, counting each half, until no range holds more than
+ * maxEntities. KEYSET reads pages of maxEntities ordered by id, each starting
+ * after the last id of the previous page.
+ */
+enum SelectionStrategy {
+    BISECT, KEYSET
+}
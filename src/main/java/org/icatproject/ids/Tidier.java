@@ -24,6 +24,7 @@ import org.slf4j.LoggerFactory;
 import org.icatproject.Datafile;
 import org.icatproject.Dataset;
 import org.icatproject.IcatException_Exception;
+import org.icatproject.ids.FiniteStateMachine.Priority;
 import org.icatproject.ids.exceptions.InsufficientPrivilegesException;
 import org.icatproject.ids.exceptions.InternalException;
 import org.icatproject.ids.plugin.DfInfo;
@@ -42,7 +43,7 @@ public class Tidier {
             // tasks
             Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
             try {
-                cleanPreparedDir(preparedDir, preparedCount);
+                cleanPreparedDir(preparedDir, preparedCount, preparedCache);
 
                 if (linkLifetimeMillis > 0) {
                     long deleteMillis = System.currentTimeMillis() - linkLifetimeMillis;
@@ -93,7 +94,7 @@ public class Tidier {
                                         DsInfoImpl dsInfoImpl = new DsInfoImpl((Dataset) o);
                                         logger.debug(
                                                 "Requesting archive of " + dsInfoImpl + " to recover main storage");
-                                        fsm.queue(dsInfoImpl, DeferredOp.ARCHIVE);
+                                        fsm.queue(dsInfoImpl, DeferredOp.ARCHIVE, Priority.BACKGROUND);
                                     }
                                     if (os.size() < tidyBlockSize) {
                                         break;
@@ -150,7 +151,7 @@ public class Tidier {
 
                                         logger.debug(
                                                 "Requesting archive of " + dfInfoImpl + " to recover main storage");
-                                        fsm.queue(dfInfoImpl, DeferredOp.ARCHIVE);
+                                        fsm.queue(dfInfoImpl, DeferredOp.ARCHIVE, Priority.BACKGROUND);
                                     }
                                     if (os.size() < tidyBlockSize) {
                                         break;
@@ -202,10 +203,28 @@ public class Tidier {
     }
 
     static void cleanPreparedDir(Path preparedDir, int preparedCount) throws IOException {
+        cleanPreparedDir(preparedDir, preparedCount, null);
+    }
+
+    static void cleanPreparedDir(Path preparedDir, int preparedCount, PreparedCache preparedCache)
+            throws IOException {
 
         Map<Long, Path> dateMap = new HashMap<>();
-        File[] files = preparedDir.toFile().listFiles();
-        int ndel = files.length - preparedCount;
+        List<File> files = new ArrayList<>();
+        for (File file : preparedDir.toFile().listFiles()) {
+            String name = file.getName();
+            if (name.endsWith(ZipLayout.OFFSETS_SUFFIX)) {
+                /* Remove any entry offset table which has lost its prepared file */
+                String preparedId = name.substring(0, name.length() - ZipLayout.OFFSETS_SUFFIX.length());
+                if (!Files.exists(preparedDir.resolve(preparedId))) {
+                    Files.deleteIfExists(file.toPath());
+                    logger.debug("Deleted " + file);
+                }
+            } else {
+                files.add(file);
+            }
+        }
+        int ndel = files.size() - preparedCount;
         if (ndel > 0) {
             for (File file : files) {
                 Path path = file.toPath();
@@ -216,6 +235,10 @@ public class Tidier {
             for (Long adate : dates) {
                 Path path = dateMap.get(adate);
                 Files.delete(path);
+                Files.deleteIfExists(preparedDir.resolve(path.getFileName() + ZipLayout.OFFSETS_SUFFIX));
+                if (preparedCache != null) {
+                    preparedCache.invalidate(path.getFileName().toString());
+                }
                 ndel--;
                 logger.debug("Deleted " + path);
                 if (ndel == 0) {
@@ -233,6 +256,7 @@ public class Tidier {
     private MainStorageInterface mainStorage;
 
     private Path preparedDir;
+    private PreparedCache preparedCache;
 
     @EJB
     IcatReader reader;
@@ -264,6 +288,7 @@ public class Tidier {
             preparedCount = propertyHandler.getPreparedCount();
             preparedDir = propertyHandler.getCacheDir().resolve("prepared");
             Files.createDirectories(preparedDir);
+            preparedCache = propertyHandler.getPreparedCache();
             linkDir = propertyHandler.getCacheDir().resolve("link");
             Files.createDirectories(linkDir);
             linkLifetimeMillis = propertyHandler.getLinkLifetimeMillis();
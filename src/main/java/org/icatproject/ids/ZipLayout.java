@@ -0,0 +1,547 @@
+package org.icatproject.ids;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.icatproject.ids.plugin.DsInfo;
+import org.icatproject.ids.plugin.ZipMapperInterface;
+
+/**
+ * The layout of a zip file in which every entry is stored (i.e. not
+ * compressed). As the size and CRC-32 of every datafile is known in advance,
+ * the offset of every byte of the zip file can be computed without reading
+ * any data. This allows any range of the zip file to be written by opening
+ * only those datafiles which overlap the range. As the sizes come from ICAT,
+ * write fails if a datafile does not end where expected; callers which can
+ * check the sizes on main storage should do so before sending any headers.
+ * <p>
+ * The layout is deterministic: entries are ordered by datafile id, duplicate
+ * entry names are dropped (keeping the first) and every entry has the
+ * timestamp given to create, which is saved with the layout. ZIP64
+ * extensions are used where needed.
+ */
+public class ZipLayout {
+
+    /**
+     * Writes part of the contents of a datafile.
+     */
+    public interface DataWriter {
+
+        /**
+         * Write count bytes of the datafile starting at position to the output
+         * stream, or fewer if the datafile ends first, and return the number
+         * of bytes written.
+         */
+        long write(DfInfoImpl dfInfo, long position, long count, OutputStream out) throws IOException;
+    }
+
+    /**
+     * An entry of the zip file.
+     */
+    public static class Entry {
+
+        private final DfInfoImpl dfInfo;
+        private final byte[] name;
+        private final long size;
+        private final long crc;
+        private final long offset;
+
+        Entry(DfInfoImpl dfInfo, byte[] name, long size, long crc, long offset) {
+            this.dfInfo = dfInfo;
+            this.name = name;
+            this.size = size;
+            this.crc = crc;
+            this.offset = offset;
+        }
+
+        public DfInfoImpl getDfInfo() {
+            return dfInfo;
+        }
+
+        /**
+         * Return the offset of the local file header in the zip file.
+         */
+        public long getOffset() {
+            return offset;
+        }
+
+        /**
+         * Return the offset of the first byte of data in the zip file.
+         */
+        public long getDataOffset() {
+            return offset + localHeaderLength();
+        }
+
+        /**
+         * Return the offset of the byte following the data.
+         */
+        public long getEnd() {
+            return getDataOffset() + size;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        private boolean zip64Size() {
+            return size >= ZIP64_MAGIC;
+        }
+
+        private int localHeaderLength() {
+            return LOC_LENGTH + name.length + (zip64Size() ? 20 : 0);
+        }
+
+        private byte[] localHeader(short time, short date) {
+            boolean zip64 = zip64Size();
+            ByteBuffer b = buffer(localHeaderLength());
+            b.putInt(LOC_SIG).putShort(zip64 ? VERSION_ZIP64 : VERSION_STORED).putShort(FLAG_UTF8)
+                    .putShort(METHOD_STORED).putShort(time).putShort(date).putInt((int) crc);
+            b.putInt(zip64 ? (int) ZIP64_MAGIC : (int) size).putInt(zip64 ? (int) ZIP64_MAGIC : (int) size);
+            b.putShort((short) name.length).putShort((short) (zip64 ? 20 : 0)).put(name);
+            if (zip64) {
+                b.putShort(ZIP64_EXTRA_ID).putShort((short) 16).putLong(size).putLong(size);
+            }
+            return b.array();
+        }
+
+        private int centralHeaderLength() {
+            return ZipLayout.centralHeaderLength(name.length, size, size, offset);
+        }
+
+        private byte[] centralHeader(short time, short date) {
+            return ZipLayout.centralHeader(name, FLAG_UTF8, METHOD_STORED, time, date, crc, size, size, offset);
+        }
+    }
+
+    /**
+     * The suffix added to a preparedId to name the file holding the saved
+     * layout.
+     */
+    public static final String OFFSETS_SUFFIX = ".offsets";
+
+    private final static Logger logger = LoggerFactory.getLogger(ZipLayout.class);
+
+    private static final int OFFSETS_MAGIC = 0x49445a4c;
+    private static final int OFFSETS_VERSION = 2;
+
+    static final int LOC_SIG = 0x04034b50;
+    static final int EXT_SIG = 0x08074b50;
+    private static final int CEN_SIG = 0x02014b50;
+    private static final int END_SIG = 0x06054b50;
+    private static final int ZIP64_END_SIG = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int LOC_LENGTH = 30;
+    private static final int CEN_LENGTH = 46;
+    private static final int END_LENGTH = 22;
+    private static final int ZIP64_END_LENGTH = 56;
+    private static final int ZIP64_LOCATOR_LENGTH = 20;
+
+    private static final short VERSION_STORED = 10;
+    private static final short VERSION_DEFLATED = 20;
+    private static final short VERSION_ZIP64 = 45;
+    static final short FLAG_UTF8 = 0x0800;
+    static final short FLAG_DATA_DESCRIPTOR = 0x0008;
+    static final short METHOD_STORED = 0;
+    static final short METHOD_DEFLATED = 8;
+    private static final short ZIP64_EXTRA_ID = 0x0001;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+
+    private final List<Entry> entries;
+    private final short dosTime;
+    private final short dosDate;
+    private final long centralDirectoryOffset;
+    private final long centralDirectoryLength;
+    private final long length;
+
+    private ZipLayout(List<Entry> entries, short dosTime, short dosDate) {
+        this.entries = entries;
+        this.dosTime = dosTime;
+        this.dosDate = dosDate;
+        long offset = entries.isEmpty() ? 0L : entries.get(entries.size() - 1).getEnd();
+        centralDirectoryOffset = offset;
+        long cdLength = 0;
+        for (Entry entry : entries) {
+            cdLength += entry.centralHeaderLength();
+        }
+        centralDirectoryLength = cdLength;
+        length = centralDirectoryOffset + centralDirectoryLength
+                + endLength(entries.size(), centralDirectoryOffset, centralDirectoryLength);
+    }
+
+    /**
+     * Compute the layout of the zip file for the specified datafiles.
+     *
+     * @param time the modification time, in milliseconds since the epoch, to
+     *             give every entry. It must be the same each time the zip
+     *             file is written, such as the time it was prepared.
+     *
+     * @return the layout or null if the size or CRC-32 checksum of some
+     * datafile is not known.
+     */
+    public static ZipLayout create(Map<Long, DsInfo> dsInfos, Collection<DfInfoImpl> dfInfos,
+                                   ZipMapperInterface zipMapper, long time) {
+        List<Entry> entries = new ArrayList<>(dfInfos.size());
+        Set<String> names = new HashSet<>();
+        long offset = 0;
+        for (DfInfoImpl dfInfo : new TreeSet<>(dfInfos)) {
+            Long size = dfInfo.getFileSize();
+            Long crc = getCrc(dfInfo.getChecksum());
+            if (size == null || size < 0 || crc == null) {
+                logger.debug("Size or checksum of " + dfInfo + " unknown so zip layout cannot be computed");
+                return null;
+            }
+            String entryName = zipMapper.getFullEntryName(dsInfos.get(dfInfo.getDsId()), dfInfo);
+            if (!names.add(entryName)) {
+                logger.debug("Skipped duplicate " + entryName);
+                continue;
+            }
+            byte[] name = entryName.getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xFFFF) {
+                return null;
+            }
+            Entry entry = new Entry(dfInfo, name, size, crc, offset);
+            entries.add(entry);
+            offset = entry.getEnd();
+        }
+        LocalDateTime local = LocalDateTime.ofInstant(Instant.ofEpochMilli(time), ZoneId.systemDefault());
+        return new ZipLayout(Collections.unmodifiableList(entries), dosTime(local), dosDate(local));
+    }
+
+    /*
+     * The time and date fields of a zip header, shared with
+     * ParallelZipOutputStream. The time is held to two seconds.
+     */
+    static short dosTime(LocalDateTime time) {
+        return (short) (time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1);
+    }
+
+    static short dosDate(LocalDateTime time) {
+        return (short) ((time.getYear() - 1980) << 9 | time.getMonthValue() << 5 | time.getDayOfMonth());
+    }
+
+    /**
+     * Save the entry offset table so that the layout can be restored by load
+     * without calling the zip mapper.
+     */
+    public void save(OutputStream stream) throws IOException {
+        DataOutputStream dos = new DataOutputStream(stream);
+        dos.writeInt(OFFSETS_MAGIC);
+        dos.writeInt(OFFSETS_VERSION);
+        dos.writeInt(entries.size());
+        dos.writeLong(length);
+        dos.writeShort(dosTime);
+        dos.writeShort(dosDate);
+        for (Entry entry : entries) {
+            dos.writeLong(entry.dfInfo.getDfId());
+            dos.writeLong(entry.offset);
+            dos.writeLong(entry.size);
+            dos.writeInt((int) entry.crc);
+            dos.writeShort(entry.name.length);
+            dos.write(entry.name);
+        }
+        dos.flush();
+    }
+
+    /**
+     * Restore a layout saved by save.
+     *
+     * @param stream  the stream to read
+     * @param dfInfos the datafiles of the zip file
+     *
+     * @return the layout or null if the saved table is not valid for the
+     * datafiles.
+     */
+    public static ZipLayout load(InputStream stream, Collection<DfInfoImpl> dfInfos) throws IOException {
+        DataInputStream dis = new DataInputStream(stream);
+        if (dis.readInt() != OFFSETS_MAGIC || dis.readInt() != OFFSETS_VERSION) {
+            return null;
+        }
+        Map<Long, DfInfoImpl> byId = new HashMap<>();
+        for (DfInfoImpl dfInfo : dfInfos) {
+            byId.put(dfInfo.getDfId(), dfInfo);
+        }
+        int count = dis.readInt();
+        long length = dis.readLong();
+        short dosTime = dis.readShort();
+        short dosDate = dis.readShort();
+        List<Entry> entries = new ArrayList<>(count);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            DfInfoImpl dfInfo = byId.get(dis.readLong());
+            long entryOffset = dis.readLong();
+            long size = dis.readLong();
+            long crc = dis.readInt() & ZIP64_MAGIC;
+            byte[] name = new byte[dis.readUnsignedShort()];
+            dis.readFully(name);
+            if (dfInfo == null || entryOffset != offset || !Long.valueOf(size).equals(dfInfo.getFileSize())) {
+                return null;
+            }
+            Entry entry = new Entry(dfInfo, name, size, crc, entryOffset);
+            entries.add(entry);
+            offset = entry.getEnd();
+        }
+        ZipLayout layout = new ZipLayout(Collections.unmodifiableList(entries), dosTime, dosDate);
+        return layout.getLength() == length ? layout : null;
+    }
+
+    /**
+     * Interpret an ICAT checksum as a CRC-32 as is done by the IDS when data
+     * are stored with put.
+     */
+    static Long getCrc(String checksum) {
+        if (checksum == null || checksum.isEmpty() || checksum.length() > 8) {
+            return null;
+        }
+        try {
+            return Long.parseLong(checksum, 16);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Return the entries whose data overlap the range, in the order in which
+     * write will request them.
+     */
+    public List<Entry> getEntries(long first, Long count) {
+        long last = count == null ? length : Math.min(length, first + count);
+        List<Entry> result = new ArrayList<>();
+        for (int i = findEntry(first); i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.getOffset() >= last) {
+                break;
+            }
+            if (Math.max(first, entry.getDataOffset()) < Math.min(last, entry.getEnd())) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the length of the zip file in bytes.
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /*
+     * The central directory header of an entry, shared with
+     * ParallelZipOutputStream. ZIP64 extras are added when the sizes or offset
+     * do not fit in 32 bits.
+     */
+    static int centralHeaderLength(int nameLength, long compressedSize, long size, long offset) {
+        int extra = centralExtraLength(compressedSize, size, offset);
+        return CEN_LENGTH + nameLength + (extra == 0 ? 0 : 4 + extra);
+    }
+
+    static byte[] centralHeader(byte[] name, short flags, short method, short time, short date, long crc,
+                                long compressedSize, long size, long offset) {
+        boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        boolean zip64Offset = offset >= ZIP64_MAGIC;
+        int extra = centralExtraLength(compressedSize, size, offset);
+        short version = extra != 0 ? VERSION_ZIP64 : method == METHOD_STORED ? VERSION_STORED : VERSION_DEFLATED;
+        ByteBuffer b = buffer(centralHeaderLength(name.length, compressedSize, size, offset));
+        b.putInt(CEN_SIG).putShort(version).putShort(version).putShort(flags).putShort(method).putShort(time)
+                .putShort(date).putInt((int) crc);
+        b.putInt(zip64 ? (int) ZIP64_MAGIC : (int) compressedSize).putInt(zip64 ? (int) ZIP64_MAGIC : (int) size);
+        b.putShort((short) name.length).putShort((short) (extra == 0 ? 0 : 4 + extra)).putShort((short) 0);
+        b.putShort((short) 0).putShort((short) 0).putInt(0);
+        b.putInt(zip64Offset ? (int) ZIP64_MAGIC : (int) offset).put(name);
+        if (extra != 0) {
+            b.putShort(ZIP64_EXTRA_ID).putShort((short) extra);
+            if (zip64) {
+                b.putLong(size).putLong(compressedSize);
+            }
+            if (zip64Offset) {
+                b.putLong(offset);
+            }
+        }
+        return b.array();
+    }
+
+    private static int centralExtraLength(long compressedSize, long size, long offset) {
+        return (compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC ? 16 : 0) + (offset >= ZIP64_MAGIC ? 8 : 0);
+    }
+
+    /*
+     * The end of central directory record, preceded by the ZIP64 end record
+     * and locator when needed.
+     */
+    static int endLength(long count, long centralDirectoryOffset, long centralDirectoryLength) {
+        return END_LENGTH + (zip64End(count, centralDirectoryOffset, centralDirectoryLength)
+                ? ZIP64_END_LENGTH + ZIP64_LOCATOR_LENGTH : 0);
+    }
+
+    static byte[] end(long count, long centralDirectoryOffset, long centralDirectoryLength) {
+        boolean zip64 = zip64End(count, centralDirectoryOffset, centralDirectoryLength);
+        ByteBuffer b = buffer(endLength(count, centralDirectoryOffset, centralDirectoryLength));
+        long endOffset = centralDirectoryOffset + centralDirectoryLength;
+        if (zip64) {
+            b.putInt(ZIP64_END_SIG).putLong(ZIP64_END_LENGTH - 12).putShort(VERSION_ZIP64).putShort(VERSION_ZIP64)
+                    .putInt(0).putInt(0).putLong(count).putLong(count)
+                    .putLong(centralDirectoryLength).putLong(centralDirectoryOffset);
+            b.putInt(ZIP64_LOCATOR_SIG).putInt(0).putLong(endOffset).putInt(1);
+        }
+        short n = (short) (zip64 ? ZIP64_MAGIC_COUNT : count);
+        b.putInt(END_SIG).putShort((short) 0).putShort((short) 0).putShort(n).putShort(n);
+        b.putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectoryLength);
+        b.putInt(zip64 ? (int) ZIP64_MAGIC : (int) centralDirectoryOffset).putShort((short) 0);
+        return b.array();
+    }
+
+    private static boolean zip64End(long count, long centralDirectoryOffset, long centralDirectoryLength) {
+        return count >= ZIP64_MAGIC_COUNT || centralDirectoryOffset >= ZIP64_MAGIC
+                || centralDirectoryLength >= ZIP64_MAGIC;
+    }
+
+    /**
+     * Write part of the zip file.
+     *
+     * @param out    the stream to write to
+     * @param first  the offset of the first byte to write
+     * @param count  the number of bytes to write or null to write to the end
+     * @param writer used to write the data of the datafiles
+     *
+     * @throws IOException if the writer fails or if a datafile does not have
+     *                     the expected length.
+     */
+    public void write(OutputStream out, long first, Long count, DataWriter writer) throws IOException {
+        long last = count == null ? length : Math.min(length, first + count);
+        if (first >= last) {
+            return;
+        }
+        int i = findEntry(first);
+        for (; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            if (entry.getOffset() >= last) {
+                return;
+            }
+            writeSlice(out, entry.localHeader(dosTime, dosDate), entry.getOffset(), first, last);
+            long from = Math.max(first, entry.getDataOffset());
+            long to = Math.min(last, entry.getEnd());
+            if (from < to) {
+                /* Ask for one byte more at the end of the data to check that the datafile ends there */
+                long extra = to == entry.getEnd() ? 1 : 0;
+                long n = writer.write(entry.getDfInfo(), from - entry.getDataOffset(), to - from + extra,
+                        new LimitedOutputStream(out, to - from));
+                if (n < to - from) {
+                    throw new IOException("Datafile " + entry.getDfInfo() + " is shorter than its recorded size "
+                            + entry.getSize());
+                } else if (n > to - from) {
+                    throw new IOException("Datafile " + entry.getDfInfo() + " is longer than its recorded size "
+                            + entry.getSize());
+                }
+            }
+        }
+
+        long offset = centralDirectoryOffset;
+        for (Entry entry : entries) {
+            if (offset >= last) {
+                return;
+            }
+            int cenLength = entry.centralHeaderLength();
+            if (offset + cenLength > first) {
+                writeSlice(out, entry.centralHeader(dosTime, dosDate), offset, first, last);
+            }
+            offset += cenLength;
+        }
+        writeSlice(out, end(entries.size(), centralDirectoryOffset, centralDirectoryLength), offset, first, last);
+    }
+
+    /*
+     * Return the index of the entry containing the offset, or the number of
+     * entries if it lies beyond the data.
+     */
+    private int findEntry(long offset) {
+        int low = 0;
+        int high = entries.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            Entry entry = entries.get(mid);
+            if (entry.getEnd() <= offset) {
+                low = mid + 1;
+            } else if (entry.getOffset() > offset) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return low;
+    }
+
+    private static void writeSlice(OutputStream out, byte[] bytes, long offset, long first, long last)
+            throws IOException {
+        long from = Math.max(first, offset);
+        long to = Math.min(last, offset + bytes.length);
+        if (from < to) {
+            out.write(bytes, (int) (from - offset), (int) (to - from));
+        }
+    }
+
+    /* Passes on at most limit bytes and discards the rest */
+    private static class LimitedOutputStream extends FilterOutputStream {
+
+        private long remaining;
+
+        private LimitedOutputStream(OutputStream out, long limit) {
+            super(out);
+            remaining = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (remaining > 0) {
+                out.write(b);
+                remaining--;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            int n = (int) Math.min(len, remaining);
+            if (n > 0) {
+                out.write(b, off, n);
+                remaining -= n;
+            }
+        }
+
+        @Override
+        public void close() {
+            // The underlying stream is not closed
+        }
+    }
+
+    static ByteBuffer buffer(int length) {
+        return ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+}
@@ -14,6 +14,7 @@ import org.slf4j.LoggerFactory;
 
 import org.icatproject.Datafile;
 import org.icatproject.Dataset;
+import org.icatproject.ids.BufferPool;
 import org.icatproject.ids.DfInfoImpl;
 import org.icatproject.ids.FiniteStateMachine;
 import org.icatproject.ids.IcatReader;
@@ -31,7 +32,6 @@ import org.icatproject.ids.plugin.ZipMapperInterface;
 public class DsWriter implements Runnable {
 
     private final static Logger logger = LoggerFactory.getLogger(DsWriter.class);
-    private static final int BUFSIZ = 1024;
     private DsInfo dsInfo;
 
     private FiniteStateMachine fsm;
@@ -42,6 +42,7 @@ public class DsWriter implements Runnable {
     private IcatReader reader;
     private ZipMapperInterface zipMapper;
     private Lock lock;
+    private BufferPool bufferPool;
 
     public DsWriter(DsInfo dsInfo, PropertyHandler propertyHandler, FiniteStateMachine fsm, IcatReader reader, Lock lock) {
         this.dsInfo = dsInfo;
@@ -49,6 +50,7 @@ public class DsWriter implements Runnable {
         this.zipMapper = propertyHandler.getZipMapper();
         mainStorageInterface = propertyHandler.getMainStorage();
         archiveStorageInterface = propertyHandler.getArchiveStorage();
+        bufferPool = propertyHandler.getBufferPool();
         datasetCache = propertyHandler.getCacheDir().resolve("dataset");
         markerDir = propertyHandler.getCacheDir().resolve("marker");
         this.reader = reader;
@@ -69,29 +71,33 @@ public class DsWriter implements Runnable {
 
                 ZipOutputStream zos = new ZipOutputStream(
                         Files.newOutputStream(datasetCachePath, StandardOpenOption.CREATE));
-                for (Datafile datafile : datafiles) {
-                    if (datafile.getLocation() == null) {
-                        continue;
-                    }
-                    String location = IdsBean.getLocation(datafile.getId(), datafile.getLocation());
-                    InputStream is = null;
-                    try {
-                        zos.putNextEntry(new ZipEntry(
-                                zipMapper.getFullEntryName(dsInfo, new DfInfoImpl(datafile.getId(), datafile.getName(),
-                                        location, datafile.getCreateId(), datafile.getModId(), 0L))));
-                        is = mainStorageInterface.get(location, datafile.getCreateId(), datafile.getModId());
-                        int bytesRead = 0;
-                        byte[] buffer = new byte[BUFSIZ];
-                        while ((bytesRead = is.read(buffer)) > 0) {
-                            zos.write(buffer, 0, bytesRead);
+                byte[] buffer = bufferPool.acquire();
+                try {
+                    for (Datafile datafile : datafiles) {
+                        if (datafile.getLocation() == null) {
+                            continue;
+                        }
+                        String location = IdsBean.getLocation(datafile.getId(), datafile.getLocation());
+                        InputStream is = null;
+                        try {
+                            zos.putNextEntry(new ZipEntry(zipMapper.getFullEntryName(dsInfo,
+                                    new DfInfoImpl(datafile.getId(), datafile.getName(), location,
+                                            datafile.getCreateId(), datafile.getModId(), 0L))));
+                            is = mainStorageInterface.get(location, datafile.getCreateId(), datafile.getModId());
+                            int bytesRead = 0;
+                            while ((bytesRead = is.read(buffer)) > 0) {
+                                zos.write(buffer, 0, bytesRead);
+                            }
+                        } catch (ZipException e) {
+                            logger.debug("Skipping duplicate location " + location);
+                        }
+                        zos.closeEntry();
+                        if (is != null) {
+                            is.close();
                         }
-                    } catch (ZipException e) {
-                        logger.debug("Skipping duplicate location " + location);
-                    }
-                    zos.closeEntry();
-                    if (is != null) {
-                        is.close();
                     }
+                } finally {
+                    bufferPool.release(buffer);
                 }
                 zos.close();
 
@@ -0,0 +1,94 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.stream.JsonGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+        byte[] a = pool.acquire();
+        byte[] b = pool.acquire();
+        byte[] c = pool.acquire();
+        assertEquals(1024, a.length);
+        assertEquals(3, pool.getMisses());
+        assertEquals(3, pool.getOutstanding());
+
+        pool.release(a);
+        pool.release(b);
+        pool.release(c); // Not kept as two are idle
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(2, pool.getPooled());
+
+        assertSame(b, pool.acquire());
+        assertSame(a, pool.acquire());
+        assertNotSame(c, pool.acquire());
+        assertEquals(2, pool.getHits());
+        assertEquals(4, pool.getMisses());
+
+        /* A buffer of the wrong size is not pooled */
+        pool.release(new byte[10]);
+        assertEquals(0, pool.getPooled());
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        BufferPool pool = new BufferPool(64, 4);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    byte[] buffer = pool.acquire();
+                    buffer[0]++;
+                    pool.release(buffer);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        assertEquals(0, pool.getOutstanding());
+        assertEquals(80000, pool.getHits() + pool.getMisses());
+        assertTrue(pool.getPooled() <= 4);
+    }
+
+    @Test
+    public void testStatus() throws Exception {
+        BufferPool pool = new BufferPool(1024, 2);
+        pool.release(pool.acquire());
+        pool.acquire();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+            pool.writeStatus(gen, "buffers");
+            gen.writeEnd();
+        }
+        JsonObject status = Json.createReader(new StringReader(baos.toString())).readObject()
+                .getJsonObject("buffers");
+        assertEquals(1024, status.getInt("bufferSize"));
+        assertEquals(1, status.getInt("hits"));
+        assertEquals(1, status.getInt("misses"));
+        assertEquals(1, status.getInt("outstanding"));
+        assertEquals(0, status.getInt("pooled"));
+    }
+
+}
@@ -0,0 +1,64 @@
+package org.icatproject.ids;
+
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Reports the relative cost of the stream copy and of FileChannel.transferTo
+ * for a larger file. It is not run with the unit tests but by mvn test
+ * -Pbenchmark.
+ */
+public class DataCopierBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        Path big = Files.createTempFile(null, null);
+        try {
+            byte[] block = new byte[1024 * 1024];
+            new Random(1).nextBytes(block);
+            try (OutputStream os = Files.newOutputStream(big)) {
+                for (int i = 0; i < 64; i++) {
+                    os.write(block);
+                }
+            }
+            Path out = Files.createTempFile(null, null);
+            try {
+                for (int i = 0; i < 3; i++) {
+                    start = System.currentTimeMillis();
+                    try (OutputStream os = Files.newOutputStream(out)) {
+                        DataCopier.copy(Files.newInputStream(big), os, new byte[2048]);
+                    }
+                    ts("copy 64MiB with a 2048 byte buffer");
+                    try (OutputStream os = new FileOutputStream(out.toFile())) {
+                        DataCopier.transfer(big, os);
+                    }
+                    ts("copy 64MiB with transferTo to a file channel");
+                    try (OutputStream os = Files.newOutputStream(out)) {
+                        DataCopier.transfer(big, os);
+                    }
+                    ts("copy 64MiB with transferTo to a stream");
+                }
+                assertEquals(Files.size(big), Files.size(out));
+            } finally {
+                Files.delete(out);
+            }
+        } finally {
+            Files.delete(big);
+        }
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
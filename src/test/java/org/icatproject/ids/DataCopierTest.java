@@ -0,0 +1,80 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ids.plugin.MainStorageInterface;
+
+public class DataCopierTest {
+
+    private static Path file;
+    private static byte[] contents;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        contents = new byte[100_003];
+        new Random(42).nextBytes(contents);
+        file = Files.createTempFile(null, null);
+        Files.write(file, contents);
+    }
+
+    @AfterClass
+    public static void afterClass() throws Exception {
+        Files.delete(file);
+    }
+
+    @Test
+    public void testTransfer() throws Exception {
+        MainStorageInterface mainStorage = mock(MainStorageInterface.class);
+        when(mainStorage.getPath("loc", "c", "m")).thenReturn(file);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertEquals(contents.length, DataCopier.copy(mainStorage, "loc", "c", "m", baos, new byte[2048]));
+        assertArrayEquals(contents, baos.toByteArray());
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        MainStorageInterface mainStorage = mock(MainStorageInterface.class);
+        when(mainStorage.getPath("loc", "c", "m")).thenThrow(new IOException("getPath not supported"));
+        when(mainStorage.get("loc", "c", "m")).thenReturn(Files.newInputStream(file));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        assertEquals(contents.length, DataCopier.copy(mainStorage, "loc", "c", "m", baos, new byte[2048]));
+        assertArrayEquals(contents, baos.toByteArray());
+    }
+
+    @Test
+    public void testRange() throws Exception {
+        MainStorageInterface mainStorage = mock(MainStorageInterface.class);
+        when(mainStorage.getPath("loc", "c", "m")).thenReturn(file);
+        when(mainStorage.getPath("stream", "c", "m")).thenReturn(null);
+        when(mainStorage.get("stream", "c", "m")).thenAnswer(i -> Files.newInputStream(file));
+
+        for (String location : new String[]{"loc", "stream"}) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            assertEquals(1000, DataCopier.copy(mainStorage, location, "c", "m", baos, new byte[2048], 99_000L, 1000L));
+            assertArrayEquals(Arrays.copyOfRange(contents, 99_000, 100_000), baos.toByteArray());
+
+            baos = new ByteArrayOutputStream();
+            assertEquals(3, DataCopier.copy(mainStorage, location, "c", "m", baos, new byte[2048], 100_000L, null));
+            assertArrayEquals(Arrays.copyOfRange(contents, 100_000, 100_003), baos.toByteArray());
+
+            baos = new ByteArrayOutputStream();
+            assertEquals(0, DataCopier.copy(mainStorage, location, "c", "m", baos, new byte[2048], 200_000L, 10L));
+        }
+    }
+
+}
@@ -0,0 +1,68 @@
+package org.icatproject.ids;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ids.DataSelection.Returns;
+
+/**
+ * Reports the time to resolve an investigation with 2000 datasets, using the
+ * fake ICAT of DataSelectionTest with a millisecond per query, with the
+ * queries run one after another and on query threads, the number of queries
+ * made by each SelectionStrategy and the time to the first datafile of a
+ * streamed selection. It is not run with the unit tests but by mvn test
+ * -Pbenchmark.
+ */
+public class DataSelectionBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        DataSelectionTest icat = new DataSelectionTest();
+        icat.setup();
+        icat.populate(2000);
+        icat.latencyMillis = 1;
+        PropertyHandler propertyHandler = icat.propertyHandler;
+        List<String> queries = icat.queries;
+        when(propertyHandler.getMaxEntities()).thenReturn(100);
+        start = System.currentTimeMillis();
+        DataSelection serial = new DataSelection(propertyHandler, null, "sessionId", "1", null, null,
+                Returns.DATASETS_AND_DATAFILES);
+        ts("resolve investigation with " + queries.size() + " queries on the request thread");
+        queries.clear();
+
+        when(propertyHandler.getQueryPool()).thenReturn(new QueryFanOut.Pool(16, 8));
+        DataSelection parallel = new DataSelection(propertyHandler, null, "sessionId", "1", null, null,
+                Returns.DATASETS_AND_DATAFILES);
+        ts("resolve investigation with " + queries.size() + " queries on 8 threads");
+        assertEquals(serial.getDfInfo().size(), parallel.getDfInfo().size());
+        assertEquals(serial.getDsInfo().keySet(), parallel.getDsInfo().keySet());
+        assertEquals(serial.getEmptyDatasets(), parallel.getEmptyDatasets());
+        queries.clear();
+
+        when(propertyHandler.getQueryPool()).thenReturn(null);
+        when(propertyHandler.getSelectionStrategy()).thenReturn(SelectionStrategy.KEYSET);
+        DataSelection keyset = new DataSelection(propertyHandler, null, "sessionId", "1", null, null,
+                Returns.DATASETS_AND_DATAFILES);
+        ts("resolve investigation with " + queries.size() + " keyset queries on the request thread");
+        assertEquals(serial.getDfInfo(), keyset.getDfInfo());
+        assertEquals(serial.getEmptyDatasets(), keyset.getEmptyDatasets());
+        queries.clear();
+
+        DataSelection streamed = new DataSelection(propertyHandler, null, "sessionId", "1", null, null,
+                Returns.DATASETS_AND_DATAFILES, true);
+        streamed.openStream().next();
+        ts("get first datafile of streamed selection after " + queries.size() + " queries");
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
@@ -0,0 +1,283 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.Dataset;
+import org.icatproject.Facility;
+import org.icatproject.ICAT;
+import org.icatproject.Investigation;
+import org.icatproject.icat.client.Session;
+import org.icatproject.ids.DataSelection.Returns;
+import org.icatproject.ids.exceptions.NotFoundException;
+
+/**
+ * Checks the queries made to resolve a DataSelection using a fake ICAT. For
+ * explicit datafile ids it knows about datafiles 1 to 5 in dataset 10 and
+ * datafile 6 in dataset 11 which the user is not allowed to read. For
+ * investigation ids it knows about investigation 1 with datasets as set up by
+ * populate.
+ */
+public class DataSelectionTest {
+
+    private ICAT icat;
+    private Session session;
+    PropertyHandler propertyHandler;
+    List<String> queries = Collections.synchronizedList(new ArrayList<>());
+    long latencyMillis;
+
+    /* The datafile ids of each dataset of investigation 1 */
+    private TreeMap<Long, TreeSet<Long>> datasets = new TreeMap<>();
+
+    private static final Pattern RANGE = Pattern.compile("\\.id = (\\d+)(?:.* BETWEEN (\\d+) AND (\\d+))?");
+    private static final Pattern PAGE = Pattern.compile("(?:\\.id > (\\d+) .*)?LIMIT 0, (\\d+)$");
+
+    @Before
+    public void setup() throws Exception {
+        icat = mock(ICAT.class);
+        session = mock(Session.class);
+        org.icatproject.icat.client.ICAT restIcat = mock(org.icatproject.icat.client.ICAT.class);
+        when(restIcat.getSession("sessionId")).thenReturn(session);
+        propertyHandler = mock(PropertyHandler.class);
+        when(propertyHandler.getIcatService()).thenReturn(icat);
+        when(propertyHandler.getRestIcat()).thenReturn(restIcat);
+        when(propertyHandler.getMaxEntities()).thenReturn(1000);
+        when(propertyHandler.getMaxIdsInQuery()).thenReturn(2);
+        when(propertyHandler.getDsInfoCache()).thenReturn(new DsInfoCache(100000, 60000));
+        when(session.search(anyString())).thenAnswer(invocation -> search(invocation.getArgument(0)));
+        when(icat.get(eq("sessionId"), eq("Dataset ds INCLUDE ds.investigation.facility"), anyLong()))
+                .thenAnswer(invocation -> dataset(invocation.getArgument(2)));
+    }
+
+    void populate(int n) {
+        for (long i = 0; i < n; i++) {
+            long dsid = 1000 + 7 * i;
+            /* Every tenth dataset is empty and one is larger than maxEntities */
+            int dfs = i % 10 == 0 ? 0 : i == 1 ? 250 : 3;
+            TreeSet<Long> dfids = new TreeSet<>();
+            for (long k = 0; k < dfs; k++) {
+                dfids.add(dsid * 1000 + 2 * k);
+            }
+            datasets.put(dsid, dfids);
+        }
+    }
+
+    private Dataset dataset(long dsid) {
+        Facility facility = new Facility();
+        facility.setId(30L);
+        facility.setName("facility");
+        Investigation investigation = new Investigation();
+        investigation.setId(1L);
+        investigation.setName("inv");
+        investigation.setVisitId("visit");
+        investigation.setFacility(facility);
+        Dataset dataset = new Dataset();
+        dataset.setId(dsid);
+        dataset.setName("ds" + dsid);
+        dataset.setInvestigation(investigation);
+        return dataset;
+    }
+
+    private String search(String query) throws InterruptedException {
+        queries.add(query);
+        if (latencyMillis > 0) {
+            Thread.sleep(latencyMillis);
+        }
+        if (!query.contains(" IN (")) {
+            return searchInvestigation(query);
+        }
+        String ids = query.substring(query.indexOf(" IN (") + 5, query.lastIndexOf(')'));
+        StringBuilder sb = new StringBuilder("[");
+        for (String id : ids.split(",")) {
+            long n = Long.parseLong(id);
+            String row = null;
+            if (query.startsWith("SELECT df.id") && n >= 1 && n <= 6) {
+                row = "[" + n + ",\"df" + n + "\",\"loc" + n + "\",\"creator\",\"modifier\"," + n * 100 + ",null,"
+                        + (n == 6 ? 11 : 10) + "]";
+            } else if (query.startsWith("SELECT ds.id") && n == 10) {
+                row = "[10,\"ds10\",null,20,\"inv\",\"visit\",30,\"facility\"]";
+            }
+            if (row != null) {
+                sb.append(sb.length() == 1 ? "" : ",").append(row);
+            }
+        }
+        return sb.append("]").toString();
+    }
+
+    private String searchInvestigation(String query) {
+        if (query.startsWith("SELECT inv.name")) {
+            return "[[\"inv\",\"visit\",30,\"facility\"]]";
+        }
+        Matcher m = RANGE.matcher(query);
+        assertTrue(query, m.find());
+        long id = Long.parseLong(m.group(1));
+        long from = m.group(2) == null ? Long.MIN_VALUE : Long.parseLong(m.group(2));
+        long to = m.group(3) == null ? Long.MAX_VALUE : Long.parseLong(m.group(3));
+        boolean df = query.contains("FROM Datafile");
+        assertTrue(query, df ? datasets.containsKey(id) : id == 1);
+        NavigableSet<Long> ids = new TreeSet<>(df ? datasets.get(id) : datasets.keySet()).subSet(from, true, to, true);
+        m = PAGE.matcher(query);
+        if (m.find()) {
+            if (m.group(1) != null) {
+                ids = ids.tailSet(Long.parseLong(m.group(1)), false);
+            }
+            ids = ids.stream().limit(Long.parseLong(m.group(2))).collect(Collectors.toCollection(TreeSet::new));
+        }
+        StringBuilder sb = new StringBuilder("[");
+        if (query.startsWith("SELECT min")) {
+            sb.append(ids.isEmpty() ? "[null,null,0]" : "[" + ids.first() + "," + ids.last() + "," + ids.size() + "]");
+        } else {
+            for (long n : ids) {
+                sb.append(sb.length() == 1 ? "" : ",");
+                if (df) {
+                    sb.append("[" + n + ",\"df" + n + "\",\"loc" + n + "\",\"creator\",\"modifier\",1,null]");
+                } else {
+                    sb.append("[" + n + ",\"ds" + n + "\",null]");
+                }
+            }
+        }
+        return sb.append("]").toString();
+    }
+
+    @Test
+    public void testChunks() throws Exception {
+        DataSelection dataSelection = new DataSelection(propertyHandler, null, "sessionId", null, null, "1,2,3",
+                Returns.DATASETS_AND_DATAFILES);
+        assertEquals(4, queries.size());
+        assertEquals(Set.of(10L), dataSelection.getDsInfo().keySet());
+        assertEquals("inv", dataSelection.getDsInfo().get(10L).getInvName());
+        assertEquals(3, dataSelection.getDfInfo().size());
+        for (DfInfoImpl dfInfo : dataSelection.getDfInfo()) {
+            assertEquals(10L, dfInfo.getDsId());
+            assertEquals("df" + dfInfo.getDfId(), dfInfo.getDfName());
+            assertEquals((Long) (dfInfo.getDfId() * 100), dfInfo.getFileSize());
+        }
+
+        dataSelection = new DataSelection(propertyHandler, null, "sessionId", null, null, "4",
+                Returns.DATASETS_AND_DATAFILES);
+        assertEquals(400L, dataSelection.getFileLength().getAsLong());
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        try {
+            new DataSelection(propertyHandler, null, "sessionId", null, null, "1,2,99,3", Returns.DATAFILES);
+            fail();
+        } catch (NotFoundException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("Datafile 99"));
+        }
+        verify(icat).get("sessionId", "Datafile", 99L);
+    }
+
+    @Test
+    public void testDatasetNotReadable() throws Exception {
+        try {
+            new DataSelection(propertyHandler, null, "sessionId", null, null, "5,6", Returns.DATASETS);
+            fail();
+        } catch (NotFoundException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("Datafile 6"));
+        }
+        verify(icat).get("sessionId", "Datafile", 6L);
+    }
+
+    @Test
+    public void testInvestigation() throws Exception {
+        populate(300);
+        when(propertyHandler.getMaxEntities()).thenReturn(100);
+        when(propertyHandler.getQueryPool()).thenReturn(new QueryFanOut.Pool(4, 3));
+        for (SelectionStrategy strategy : SelectionStrategy.values()) {
+            when(propertyHandler.getSelectionStrategy()).thenReturn(strategy);
+            DataSelection dataSelection = new DataSelection(propertyHandler, null, "sessionId", "1", null, null,
+                    Returns.DATASETS_AND_DATAFILES);
+            assertEquals(datasets.keySet(), dataSelection.getDsInfo().keySet());
+            assertEquals(30, dataSelection.getEmptyDatasets().size());
+            assertEquals(270 * 3 - 3 + 250, dataSelection.getDfInfo().size());
+            for (DfInfoImpl dfInfo : dataSelection.getDfInfo()) {
+                assertTrue(datasets.get(dfInfo.getDsId()).contains(dfInfo.getDfId()));
+            }
+            assertEquals("visit", dataSelection.getDsInfo().get(1007L).getVisitId());
+
+            dataSelection = new DataSelection(propertyHandler, null, "sessionId", "1", "1000,1007", null,
+                    Returns.DATASETS);
+            assertEquals(datasets.keySet(), dataSelection.getDsInfo().keySet());
+            assertEquals(30, dataSelection.getEmptyDatasets().size());
+
+            /* The datasets, empty ones included, are known even when only datafiles are wanted */
+            dataSelection = new DataSelection(propertyHandler, null, "sessionId", "1", null, null,
+                    Returns.DATAFILES);
+            assertNull(dataSelection.getDsInfo());
+            assertEquals(datasets.keySet(), dataSelection.getDsIds());
+        }
+    }
+
+    @Test
+    public void testStreamed() throws Exception {
+        populate(50);
+        when(propertyHandler.getMaxEntities()).thenReturn(7);
+        DataSelection dataSelection = new DataSelection(propertyHandler, null, "sessionId", "1", "1007", "2,1",
+                Returns.DATASETS_AND_DATAFILES, true);
+        assertEquals(Set.of(10L, 1007L), dataSelection.getDsInfo().keySet());
+        assertEquals(2, dataSelection.getDfInfo().size());
+
+        List<Long> dsOrder = new ArrayList<>();
+        List<Long> dfIds = new ArrayList<>();
+        DataSelection.DfStream stream = dataSelection.openStream();
+        assertEquals(List.of(10L, 1007L), stream.getExplicitDsIds());
+        while (stream.hasNext()) {
+            DfInfoImpl dfInfo = stream.next();
+            assertTrue(dataSelection.getDsInfo().containsKey(dfInfo.getDsId()));
+            if (dsOrder.isEmpty() || dsOrder.get(dsOrder.size() - 1) != dfInfo.getDsId()) {
+                dsOrder.add(dfInfo.getDsId());
+            }
+            dfIds.add(dfInfo.getDfId());
+        }
+        List<Long> expected = new ArrayList<>(List.of(10L, 1007L));
+        List<Long> expectedDfIds = new ArrayList<>(List.of(1L, 2L));
+        expectedDfIds.addAll(datasets.get(1007L));
+        for (long dsid : datasets.keySet()) {
+            if (dsid != 1007L && !datasets.get(dsid).isEmpty()) {
+                expected.add(dsid);
+                expectedDfIds.addAll(datasets.get(dsid));
+            }
+        }
+        assertEquals(expected, dsOrder);
+        assertEquals(expectedDfIds, dfIds);
+        assertEquals(datasets.keySet(), new TreeSet<>(dataSelection.getDsInfo().keySet()).tailSet(1000L));
+    }
+
+    @Test
+    public void testStreamedOnce() throws Exception {
+        /* The explicit datafiles are also in the explicit dataset */
+        datasets.put(10L, new TreeSet<>(List.of(1L, 2L, 3L)));
+        DataSelection dataSelection = new DataSelection(propertyHandler, null, "sessionId", null, "10", "2,1",
+                Returns.DATASETS_AND_DATAFILES, true);
+        List<Long> dfIds = new ArrayList<>();
+        DataSelection.DfStream stream = dataSelection.openStream();
+        while (stream.hasNext()) {
+            dfIds.add(stream.next().getDfId());
+        }
+        assertEquals(List.of(1L, 2L, 3L), dfIds);
+    }
+
+}
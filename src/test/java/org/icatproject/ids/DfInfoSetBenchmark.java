@@ -0,0 +1,82 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Reports the heap used by a million datafiles held in a HashSet, a TreeSet
+ * and a DfInfoSet. It is not run with the unit tests but by mvn test
+ * -Pbenchmark.
+ */
+public class DfInfoSetBenchmark {
+
+    @Test
+    public void memory() throws Exception {
+        int n = 1_000_000;
+        List<DfInfoImpl> dfInfos = new ArrayList<>(n);
+        for (long dfId = 0; dfId < n; dfId++) {
+            dfInfos.add(DfInfoSetTest.dfInfo(dfId));
+        }
+        Collections.shuffle(dfInfos, new Random(1));
+
+        /* Measure each set with only its own copies of the datafiles live */
+        long before = used();
+        Set<DfInfoImpl> hashSet = new HashSet<>();
+        for (DfInfoImpl dfInfo : dfInfos) {
+            hashSet.add(copy(dfInfo));
+        }
+        report("HashSet", used() - before, hashSet.size());
+        hashSet = null;
+
+        before = used();
+        Set<DfInfoImpl> treeSet = new TreeSet<>();
+        for (DfInfoImpl dfInfo : dfInfos) {
+            treeSet.add(copy(dfInfo));
+        }
+        report("TreeSet", used() - before, treeSet.size());
+        treeSet = null;
+
+        before = used();
+        DfInfoSet.Builder builder = new DfInfoSet.Builder();
+        for (DfInfoImpl dfInfo : dfInfos) {
+            builder.add(dfInfo);
+        }
+        DfInfoSet dfInfoSet = builder.build();
+        builder = null;
+        report("DfInfoSet", used() - before, dfInfoSet.size());
+        System.out.println("DfInfoSet estimate: " + dfInfoSet.memory() / n + " bytes per datafile");
+        assertEquals(n, dfInfoSet.size());
+        /* Keep the originals live until the end so that they are not counted as freed */
+        assertEquals(n, dfInfos.size());
+    }
+
+    /* The strings of a datafile read from ICAT are not shared with others */
+    private static DfInfoImpl copy(DfInfoImpl d) {
+        return new DfInfoImpl(d.getDfId(), new String(d.getDfName()), new String(d.getDfLocation()),
+                new String(d.getCreateId()), new String(d.getModId()), d.getDsId(), d.getFileSize(),
+                d.getChecksum() == null ? null : new String(d.getChecksum()));
+    }
+
+    private static long used() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void report(String what, long bytes, int n) {
+        System.out.println(what + " of " + n + " datafiles: " + bytes / (1024 * 1024) + " MB, " + bytes / n
+                + " bytes per datafile");
+    }
+
+}
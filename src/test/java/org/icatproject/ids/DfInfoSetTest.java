@@ -0,0 +1,90 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class DfInfoSetTest {
+
+    /* Datafiles much as ICAT holds them: 100 to a dataset with similar names */
+    static DfInfoImpl dfInfo(long dfId) {
+        long dsId = dfId / 100;
+        return new DfInfoImpl(dfId, "file_" + dfId % 100 + ".nxs", "inst/cycle/ds" + dsId + "/file_" + dfId % 100
+                + ".nxs", "db/reader", "db/reader", dsId, 1000 + dfId, dfId % 3 == 0 ? null : "cs" + dfId);
+    }
+
+    @Test
+    public void testContents() {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        for (long dfId = 0; dfId < 1000; dfId += 2) {
+            dfInfos.add(dfInfo(dfId));
+        }
+        dfInfos.add(new DfInfoImpl(1001L, "odd", null, "a", "b", 7L, null, null));
+        Collections.shuffle(dfInfos, new Random(1));
+        dfInfos.add(dfInfo(10));
+
+        DfInfoSet set = DfInfoSet.of(dfInfos);
+        TreeSet<DfInfoImpl> expected = new TreeSet<>(dfInfos);
+        assertEquals(expected, set);
+        assertEquals(501, set.size());
+
+        Iterator<DfInfoImpl> iter = set.iterator();
+        for (DfInfoImpl e : expected) {
+            DfInfoImpl a = iter.next();
+            assertEquals(e.getDfId(), a.getDfId());
+            assertEquals(e.getDfName(), a.getDfName());
+            assertEquals(e.getDfLocation(), a.getDfLocation());
+            assertEquals(e.getCreateId(), a.getCreateId());
+            assertEquals(e.getModId(), a.getModId());
+            assertEquals(e.getDsId(), a.getDsId());
+            assertEquals(e.getFileSize(), a.getFileSize());
+            assertEquals(e.getChecksum(), a.getChecksum());
+        }
+        assertFalse(iter.hasNext());
+
+        DfInfoImpl odd = set.last();
+        assertNull(odd.getDfLocation());
+        assertNull(odd.getFileSize());
+        assertNull(odd.getChecksum());
+
+        assertTrue(set.contains(dfInfo(500)));
+        assertFalse(set.contains(dfInfo(501)));
+        assertFalse(set.contains("500"));
+    }
+
+    @Test
+    public void testViews() {
+        DfInfoSet.Builder builder = new DfInfoSet.Builder();
+        for (long dfId = 10; dfId <= 100; dfId += 10) {
+            builder.add(dfInfo(dfId));
+        }
+        DfInfoSet set = builder.build();
+
+        SortedSet<DfInfoImpl> tail = set.tailSet(dfInfo(35));
+        assertEquals(7, tail.size());
+        assertEquals(40L, (long) tail.first().getDfId());
+        assertEquals(new TreeSet<>(set).tailSet(dfInfo(35)), tail);
+        assertFalse(tail.contains(dfInfo(30)));
+
+        SortedSet<DfInfoImpl> head = set.headSet(dfInfo(40));
+        assertEquals(3, head.size());
+        assertEquals(30L, (long) head.last().getDfId());
+
+        SortedSet<DfInfoImpl> sub = tail.headSet(dfInfo(70));
+        assertEquals(3, sub.size());
+        assertEquals(sub, set.subSet(dfInfo(40), dfInfo(70)));
+        assertTrue(set.subSet(dfInfo(70), dfInfo(40)).isEmpty());
+        assertTrue(DfInfoSet.empty().isEmpty());
+    }
+
+}
@@ -0,0 +1,58 @@
+package org.icatproject.ids;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+public class DsInfoCacheTest {
+
+    private static DsInfo dsInfo(long dsId) {
+        return new DsInfoImpl(dsId, "ds" + dsId, null, 1L, "inv", "visit", 2L, "facility");
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() throws Exception {
+        DsInfoCache cache = new DsInfoCache(2, 60000);
+        DsInfo a = dsInfo(1);
+        cache.putAll(Arrays.asList(a, dsInfo(2)));
+        assertSame(a, cache.get(1));
+
+        /* 2 is least recently used so is dropped to make room */
+        cache.put(dsInfo(3));
+        assertNull(cache.get(2));
+        assertSame(a, cache.get(1));
+        assertTrue(cache.contains(3));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        cache.invalidate(1);
+        assertFalse(cache.contains(1));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testAge() throws Exception {
+        DsInfoCache cache = new DsInfoCache(10, 100);
+        cache.put(dsInfo(1));
+        Thread.sleep(200);
+        assertNull(cache.get(1));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        DsInfoCache cache = new DsInfoCache(0, 60000);
+        cache.put(dsInfo(1));
+        cache.putAll(Arrays.asList(dsInfo(2)));
+        assertNull(cache.get(1));
+        assertNull(cache.get(2));
+    }
+
+}
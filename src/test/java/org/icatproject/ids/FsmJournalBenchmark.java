@@ -0,0 +1,59 @@
+package org.icatproject.ids;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import org.icatproject.ids.FiniteStateMachine.RequestedState;
+
+/**
+ * Reports the time to compact, append to and replay a large journal. It is
+ * not run with the unit tests but by mvn test -Pbenchmark.
+ */
+public class FsmJournalBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        Path file = Files.createTempDirectory("FsmJournalBenchmark").resolve("benchmark");
+        int n = 500000;
+        List<FsmJournal.Entry> entries = new ArrayList<>(n);
+        for (long id = 0; id < n; id++) {
+            entries.add(new FsmJournal.Entry(FsmJournalTest.dsInfo(id), RequestedState.RESTORE_REQUESTED));
+        }
+
+        FsmJournal journal = new FsmJournal(file);
+        start = System.currentTimeMillis();
+        journal.compact(entries);
+        ts("compact a journal of " + n + " restores");
+
+        int appends = 100000;
+        for (long id = 0; id < appends; id++) {
+            if (id % 2 == 0) {
+                journal.put(FsmJournalTest.dsInfo(n + id), RequestedState.WRITE_REQUESTED);
+            } else {
+                journal.remove(id);
+            }
+        }
+        ts("append " + appends + " records");
+        journal.close();
+        System.out.println("Journal is " + Files.size(file) / 1024 + "kB");
+
+        Map<Long, FsmJournal.Entry> replayed = new FsmJournal(file).replay();
+        ts("replay the journal");
+        assertEquals(n, replayed.size());
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
@@ -0,0 +1,142 @@
+package org.icatproject.ids;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import org.icatproject.ids.FiniteStateMachine.RequestedState;
+import org.icatproject.ids.plugin.DsInfo;
+
+public class FsmJournalTest {
+
+    private static Path dir;
+
+    @BeforeClass
+    public static void beforeClass() throws Exception {
+        dir = Files.createTempDirectory("FsmJournalTest");
+    }
+
+    static DsInfo dsInfo(long id) {
+        return new DsInfoImpl(id, "ds" + id, id % 2 == 0 ? null : "loc" + id, 10L, "inv", null, 20L, "facility");
+    }
+
+    private static DfInfoImpl dfInfo(long id) {
+        return new DfInfoImpl(id, "df" + id, "dir/df" + id, "db/root", null, 7L, id % 3 == 0 ? null : id * 100,
+                id % 2 == 0 ? null : Long.toHexString(id));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        Path file = dir.resolve("replay");
+        FsmJournal journal = new FsmJournal(file);
+        assertTrue(journal.replay().isEmpty());
+        journal.compact(new ArrayList<>());
+
+        journal.put(dsInfo(1), RequestedState.WRITE_REQUESTED);
+        journal.put(dsInfo(2), RequestedState.RESTORE_REQUESTED);
+        journal.put(dsInfo(3), RequestedState.ARCHIVE_REQUESTED);
+        journal.put(dsInfo(1), RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
+        journal.remove(2);
+        journal.put(dfInfo(4), RequestedState.DELETE_REQUESTED);
+        assertEquals(6, journal.getAppended());
+        journal.close();
+
+        journal = new FsmJournal(file);
+        Map<Long, FsmJournal.Entry> entries = journal.replay();
+        assertEquals(Arrays.asList(1L, 3L, 4L), new ArrayList<>(entries.keySet()));
+        assertEquals(RequestedState.WRITE_THEN_ARCHIVE_REQUESTED, entries.get(1L).state);
+        assertEquals(RequestedState.ARCHIVE_REQUESTED, entries.get(3L).state);
+
+        DsInfo ds = entries.get(3L).dsInfo;
+        assertEquals(dsInfo(3), ds);
+        assertEquals("ds3", ds.getDsName());
+        assertEquals("loc3", ds.getDsLocation());
+        assertNull(entries.get(1L).dsInfo.getVisitId());
+        assertEquals(20L, (long) ds.getFacilityId());
+        assertEquals("facility", ds.getFacilityName());
+
+        DfInfoImpl df = entries.get(4L).dfInfo;
+        assertNull(entries.get(4L).dsInfo);
+        assertEquals(RequestedState.DELETE_REQUESTED, entries.get(4L).state);
+        assertEquals("dir/df4", df.getDfLocation());
+        assertEquals(7L, df.getDsId());
+        assertEquals(400L, (long) df.getFileSize());
+        assertNull(df.getChecksum());
+        assertNull(df.getModId());
+
+        journal.compact(entries.values());
+        assertEquals(0, journal.getAppended());
+        journal.remove(3);
+        journal.close();
+        entries = new FsmJournal(file).replay();
+        assertEquals(Arrays.asList(1L, 4L), new ArrayList<>(entries.keySet()));
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        Path file = dir.resolve("closed");
+        FsmJournal journal = new FsmJournal(file);
+        journal.compact(new ArrayList<>());
+        journal.put(dsInfo(1), RequestedState.RESTORE_REQUESTED);
+        journal.put(dsInfo(2), RequestedState.ARCHIVE_REQUESTED);
+        journal.close();
+
+        /* Operations finishing after the FSM has stopped leave their entries */
+        journal.remove(1);
+        journal.put(dsInfo(2), RequestedState.WRITE_REQUESTED);
+        journal.compact(new ArrayList<>());
+        Map<Long, FsmJournal.Entry> entries = new FsmJournal(file).replay();
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(entries.keySet()));
+        assertEquals(RequestedState.ARCHIVE_REQUESTED, entries.get(2L).state);
+    }
+
+    @Test
+    public void testDamaged() throws Exception {
+        Path file = dir.resolve("damaged");
+        FsmJournal journal = new FsmJournal(file);
+        journal.compact(new ArrayList<>());
+        for (long id = 1; id <= 10; id++) {
+            journal.put(dfInfo(id), RequestedState.RESTORE_REQUESTED);
+        }
+        journal.close();
+        long size = Files.size(file);
+
+        /* A record cut short by a crash */
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(size - 3);
+        }
+        assertEquals(9, new FsmJournal(file).replay().size());
+
+        /* A corrupt byte in the fifth record, found from a journal of the first four */
+        Path four = dir.resolve("four");
+        journal = new FsmJournal(four);
+        journal.compact(new ArrayList<>());
+        for (long id = 1; id <= 4; id++) {
+            journal.put(dfInfo(id), RequestedState.RESTORE_REQUESTED);
+        }
+        journal.close();
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[(int) Files.size(four) + 6] ^= 1;
+        Files.write(file, bytes);
+        journal = new FsmJournal(file);
+        Map<Long, FsmJournal.Entry> entries = journal.replay();
+        assertEquals(Arrays.asList(1L, 2L, 3L, 4L), new ArrayList<>(entries.keySet()));
+
+        /* Compaction drops the damage so that appends are read again */
+        journal.compact(entries.values());
+        journal.put(dfInfo(11), RequestedState.ARCHIVE_REQUESTED);
+        journal.close();
+        assertEquals(5, new FsmJournal(file).replay().size());
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.Arrays;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.stream.JsonGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ids.FiniteStateMachine.Priority;
+
+public class FsmPrioritiesTest {
+
+    private static FsmPriorities<Long> priorities(int maxBackground) {
+        PropertyHandler propertyHandler = mock(PropertyHandler.class);
+        when(propertyHandler.getFsmMaxInProgress(Priority.INTERACTIVE)).thenReturn(0);
+        when(propertyHandler.getFsmMaxInProgress(Priority.EXPLICIT)).thenReturn(0);
+        when(propertyHandler.getFsmMaxInProgress(Priority.BACKGROUND)).thenReturn(maxBackground);
+        when(propertyHandler.getFsmPriorityAgeSeconds()).thenReturn(60);
+        return new FsmPriorities<>(propertyHandler);
+    }
+
+    @Test
+    public void testOrder() throws Exception {
+        FsmPriorities<Long> priorities = priorities(0);
+        long now = 1000000L;
+        /* Tidier archives queued first */
+        for (long id = 1; id <= 3; id++) {
+            priorities.queued(id, Priority.BACKGROUND, now, false);
+        }
+        priorities.queued(4L, Priority.EXPLICIT, now, false);
+        priorities.queued(5L, Priority.INTERACTIVE, now, false);
+        assertEquals(Arrays.asList(5L, 4L, 1L, 2L, 3L), priorities.order(Arrays.asList(1L, 2L, 3L, 4L, 5L), now));
+
+        /* A second request raises an item but does not lower it */
+        priorities.queued(3L, Priority.INTERACTIVE, now, false);
+        priorities.queued(5L, Priority.BACKGROUND, now, false);
+        assertEquals(Arrays.asList(3L, 5L, 4L, 1L, 2L), priorities.order(Arrays.asList(1L, 2L, 3L, 4L, 5L), now));
+
+        /* A request which replaces the operation sets the priority and goes to the back */
+        priorities.queued(3L, Priority.BACKGROUND, now, true);
+        assertEquals(Arrays.asList(5L, 4L, 1L, 2L, 3L), priorities.order(Arrays.asList(1L, 2L, 3L, 4L, 5L), now));
+        assertEquals(3, priorities.getQueued(Priority.BACKGROUND));
+        assertEquals(1, priorities.getQueued(Priority.INTERACTIVE));
+
+        priorities.dequeued(4L);
+        assertNull(priorities.getPriority(4L));
+        assertEquals(0, priorities.getQueued(Priority.EXPLICIT));
+    }
+
+    @Test
+    public void testAgeing() throws Exception {
+        FsmPriorities<Long> priorities = priorities(0);
+        long now = 1000000L;
+        priorities.queued(1L, Priority.BACKGROUND, now, false);
+        priorities.queued(2L, Priority.EXPLICIT, now + 20000, false);
+        priorities.queued(3L, Priority.INTERACTIVE, now + 40000, false);
+        assertEquals(Arrays.asList(3L, 2L, 1L), priorities.order(Arrays.asList(1L, 2L, 3L), now + 50000));
+
+        /* The archive has been raised once so comes before the later explicit request */
+        assertEquals(Arrays.asList(3L, 1L, 2L), priorities.order(Arrays.asList(1L, 2L, 3L), now + 70000));
+
+        /* Everything has been raised to the top so is taken in the order requested */
+        assertEquals(Arrays.asList(1L, 2L, 3L), priorities.order(Arrays.asList(1L, 2L, 3L), now + 130000));
+        assertEquals(Priority.BACKGROUND, priorities.getPriority(1L));
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        FsmPriorities<Long> priorities = priorities(2);
+        long now = 1000000L;
+        for (long id = 1; id <= 3; id++) {
+            priorities.queued(id, Priority.BACKGROUND, now, false);
+        }
+        priorities.queued(4L, Priority.INTERACTIVE, now, false);
+        priorities.started(1L);
+        priorities.started(2L);
+        assertFalse(priorities.canStart(3L));
+        assertTrue(priorities.canStart(4L));
+        assertEquals(2, priorities.getInProgress(Priority.BACKGROUND));
+
+        priorities.finished(1L);
+        priorities.finished(1L);
+        assertTrue(priorities.canStart(3L));
+        assertEquals(1, priorities.getInProgress(Priority.BACKGROUND));
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+            priorities.writeStatus(gen, "priorities");
+            gen.writeEnd();
+        }
+        JsonObject status = Json.createReader(new StringReader(baos.toString())).readObject()
+                .getJsonObject("priorities");
+        JsonObject background = status.getJsonObject("background");
+        assertEquals(1, background.getInt("queued"));
+        assertEquals(1, background.getInt("inProgress"));
+        assertEquals(2, background.getInt("maxInProgress"));
+        assertEquals(1, status.getJsonObject("interactive").getInt("queued"));
+    }
+
+}
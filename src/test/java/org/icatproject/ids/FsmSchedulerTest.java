@@ -0,0 +1,121 @@
+package org.icatproject.ids;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class FsmSchedulerTest {
+
+    @Test
+    public void testIdle() throws Exception {
+        BlockingQueue<Long> runs = new ArrayBlockingQueue<>(100);
+        FsmScheduler scheduler = new FsmScheduler("test", () -> {
+            runs.add(System.currentTimeMillis());
+            return Long.MAX_VALUE;
+        }, 50);
+        scheduler.start();
+        try {
+            assertNull(runs.poll(300, TimeUnit.MILLISECONDS));
+            assertEquals(0, scheduler.getPasses());
+
+            scheduler.wake();
+            assertNotNull(runs.poll(1, TimeUnit.SECONDS));
+            assertNull(runs.poll(300, TimeUnit.MILLISECONDS));
+            assertEquals(1, scheduler.getPasses());
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void testWakeAt() throws Exception {
+        BlockingQueue<Long> runs = new ArrayBlockingQueue<>(100);
+        FsmScheduler scheduler = new FsmScheduler("test", () -> {
+            runs.add(System.currentTimeMillis());
+            return Long.MAX_VALUE;
+        }, 50);
+        scheduler.start();
+        try {
+            long start = System.currentTimeMillis();
+            scheduler.wakeAt(start + 10000);
+            scheduler.wakeAt(start + 200);
+            scheduler.wakeAt(start + 5000);
+            /* The earliest time is used, long before the others */
+            Long run = runs.poll(2, TimeUnit.SECONDS);
+            assertNotNull(run);
+            assertTrue(run - start >= 200);
+            assertEquals(1, scheduler.getPasses());
+            /* The later times were dropped by the pass */
+            assertNull(runs.poll(400, TimeUnit.MILLISECONDS));
+            assertEquals(1, scheduler.getPasses());
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void testNextAndRetry() throws Exception {
+        BlockingQueue<Long> runs = new ArrayBlockingQueue<>(100);
+        AtomicLong count = new AtomicLong();
+        FsmScheduler scheduler = new FsmScheduler("test", () -> {
+            runs.add(System.currentTimeMillis());
+            long n = count.incrementAndGet();
+            if (n == 1) {
+                /* Due again shortly */
+                return System.currentTimeMillis() + 100;
+            } else if (n == 2) {
+                throw new IllegalStateException("Testing");
+            }
+            return Long.MAX_VALUE;
+        }, 100);
+        scheduler.start();
+        try {
+            scheduler.wake();
+            long first = runs.poll(1, TimeUnit.SECONDS);
+            long second = runs.poll(1, TimeUnit.SECONDS);
+            long third = runs.poll(1, TimeUnit.SECONDS);
+            assertTrue(second - first >= 100);
+            assertTrue(third - second >= 100);
+            assertNull(runs.poll(300, TimeUnit.MILLISECONDS));
+            assertEquals(3, scheduler.getPasses());
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        BlockingQueue<Long> runs = new ArrayBlockingQueue<>(1000);
+        FsmScheduler scheduler = new FsmScheduler("test", () -> {
+            runs.add(System.currentTimeMillis());
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+            return Long.MAX_VALUE;
+        }, 50);
+        scheduler.start();
+        try {
+            scheduler.wake();
+            assertNotNull(runs.poll(1, TimeUnit.SECONDS));
+            /* Wakes while the pass runs result in one more pass */
+            for (int i = 0; i < 100; i++) {
+                scheduler.wake();
+            }
+            assertNotNull(runs.poll(1, TimeUnit.SECONDS));
+            assertNull(runs.poll(300, TimeUnit.MILLISECONDS));
+            assertEquals(2, scheduler.getPasses());
+        } finally {
+            scheduler.stop();
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+import org.icatproject.ids.FiniteStateMachine.RequestedState;
+import org.icatproject.ids.plugin.DfInfo;
+
+/**
+ * Reports the time for status checks against a large FSM queue, by copying
+ * and filtering the queue as the FSM used to and with the FsmStateIndex. It
+ * is not run with the unit tests but by mvn test -Pbenchmark.
+ */
+public class FsmStateIndexBenchmark {
+
+    private static long start;
+
+    /* As the FSM found the datafiles which may be offline before the index */
+    private static Set<DfInfo> copyAndFilter(Map<DfInfo, RequestedState> changing,
+            Map<DfInfoImpl, RequestedState> queue) {
+        Map<DfInfo, RequestedState> union = new HashMap<>(changing);
+        union.putAll(queue);
+        Set<DfInfo> result = new HashSet<>();
+        for (Entry<DfInfo, RequestedState> entry : union.entrySet()) {
+            if (entry.getValue() != RequestedState.WRITE_REQUESTED) {
+                result.add(entry.getKey());
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        int queued = 1000000;
+        int selected = 100000;
+        RequestedState[] states = RequestedState.values();
+        Map<DfInfoImpl, RequestedState> queue = new HashMap<>();
+        Map<DfInfo, RequestedState> changing = new HashMap<>();
+        FsmStateIndex index = new FsmStateIndex();
+        for (long id = 0; id < queued; id++) {
+            DfInfoImpl dfInfo = new DfInfoImpl(id, "df", "loc", null, null, id / 100);
+            RequestedState state = states[(int) (id % states.length)];
+            if (id % 10 == 0) {
+                changing.put(dfInfo, state);
+            } else {
+                queue.put(dfInfo, state);
+            }
+            index.set(id, state);
+        }
+        List<DfInfoImpl> selection = new ArrayList<>();
+        for (long id = 0; id < selected; id++) {
+            /* Half of the selection is queued */
+            long dfId = id % 2 == 0 ? id * 7 : queued + id;
+            selection.add(new DfInfoImpl(dfId, "df", "loc", null, null, 0));
+        }
+
+        int rounds = 5;
+        int expected = 0;
+        start = System.currentTimeMillis();
+        for (int i = 0; i < rounds; i++) {
+            Set<DfInfo> maybeOffline = copyAndFilter(changing, queue);
+            int n = 0;
+            for (DfInfoImpl dfInfo : selection) {
+                if (maybeOffline.contains(dfInfo)) {
+                    n++;
+                }
+            }
+            expected = n;
+        }
+        ts(rounds + " status checks of " + selected + " datafiles against " + queued
+                + " queued by copying the queue");
+
+        int found = 0;
+        for (int i = 0; i < rounds; i++) {
+            int n = 0;
+            for (DfInfoImpl dfInfo : selection) {
+                if (index.isMaybeOffline(dfInfo.getDfId())) {
+                    n++;
+                }
+            }
+            found = n;
+        }
+        ts(rounds + " status checks of " + selected + " datafiles against " + queued
+                + " queued with the index");
+        assertEquals(expected, found);
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
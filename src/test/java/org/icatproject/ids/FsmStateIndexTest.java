@@ -0,0 +1,54 @@
+package org.icatproject.ids;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.icatproject.ids.FiniteStateMachine.RequestedState;
+
+public class FsmStateIndexTest {
+
+    @Test
+    public void testStates() throws Exception {
+        FsmStateIndex index = new FsmStateIndex();
+        assertFalse(index.isMaybeOffline(1));
+        assertFalse(index.isRestoring(1));
+
+        index.set(1, RequestedState.WRITE_REQUESTED);
+        assertFalse(index.isMaybeOffline(1));
+        index.set(1, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
+        assertTrue(index.isMaybeOffline(1));
+        assertFalse(index.isRestoring(1));
+        index.set(1, RequestedState.RESTORE_REQUESTED);
+        assertTrue(index.isMaybeOffline(1));
+        assertTrue(index.isRestoring(1));
+        index.set(1, null);
+        assertFalse(index.isMaybeOffline(1));
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void testPending() throws Exception {
+        FsmStateIndex index = new FsmStateIndex();
+        FsmStateIndex.Pending write = index.requested(2, DeferredOp.WRITE);
+        assertFalse(index.isMaybeOffline(2));
+        index.set(2, RequestedState.WRITE_REQUESTED);
+        index.merged(2, write);
+
+        FsmStateIndex.Pending restore = index.requested(2, DeferredOp.RESTORE);
+        assertTrue(index.isMaybeOffline(2));
+        assertTrue(index.isRestoring(2));
+
+        /* A later request is not forgotten when an earlier one is merged */
+        FsmStateIndex.Pending archive = index.requested(2, DeferredOp.ARCHIVE);
+        index.merged(2, restore);
+        assertTrue(index.isMaybeOffline(2));
+        assertFalse(index.isRestoring(2));
+        index.set(2, RequestedState.WRITE_THEN_ARCHIVE_REQUESTED);
+        index.merged(2, archive);
+        assertTrue(index.isMaybeOffline(2));
+        assertFalse(index.isRestoring(2));
+    }
+
+}
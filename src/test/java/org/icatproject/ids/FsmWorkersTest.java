@@ -0,0 +1,85 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.json.Json;
+import jakarta.json.JsonObject;
+import jakarta.json.stream.JsonGenerator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FsmWorkersTest {
+
+    @Test
+    public void testBounded() throws Exception {
+        PropertyHandler propertyHandler = mock(PropertyHandler.class);
+        for (DeferredOp op : DeferredOp.values()) {
+            when(propertyHandler.getFsmThreads(op)).thenReturn(op == DeferredOp.RESTORE ? 3 : 1);
+        }
+        FsmWorkers workers = new FsmWorkers(propertyHandler);
+        try {
+            CountDownLatch release = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(101);
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            for (int i = 0; i < 100; i++) {
+                workers.execute(DeferredOp.RESTORE, () -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                });
+            }
+
+            /* Restores do not hold up writes */
+            CountDownLatch written = new CountDownLatch(1);
+            workers.execute(DeferredOp.WRITE, () -> {
+                written.countDown();
+                done.countDown();
+            });
+            assertTrue(written.await(1, TimeUnit.SECONDS));
+
+            while (workers.getActive(DeferredOp.RESTORE) < 3) {
+                Thread.sleep(10);
+            }
+            assertEquals(97, workers.getQueued(DeferredOp.RESTORE));
+            assertFalse(workers.hasCapacity(DeferredOp.RESTORE));
+            assertTrue(workers.hasCapacity(DeferredOp.ARCHIVE));
+
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+                workers.writeStatus(gen, "workers");
+                gen.writeEnd();
+            }
+            JsonObject restore = Json.createReader(new StringReader(baos.toString())).readObject()
+                    .getJsonObject("workers").getJsonObject("restore");
+            assertEquals(3, restore.getInt("threads"));
+            assertEquals(3, restore.getInt("active"));
+            assertEquals(97, restore.getInt("queued"));
+
+            release.countDown();
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(3, maxRunning.get());
+            assertEquals(0, workers.getQueued(DeferredOp.RESTORE));
+            while (!workers.hasCapacity(DeferredOp.RESTORE)) {
+                Thread.sleep(10);
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+}
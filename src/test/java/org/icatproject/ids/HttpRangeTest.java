@@ -0,0 +1,80 @@
+package org.icatproject.ids;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import org.icatproject.ids.exceptions.BadRequestException;
+
+public class HttpRangeTest {
+
+    @Test
+    public void testSingle() throws Exception {
+        List<HttpRange.Range> ranges = HttpRange.parse("bytes=10-19").resolve(100);
+        assertEquals(1, ranges.size());
+        assertEquals(10L, ranges.get(0).getFirst());
+        assertEquals(10L, (long) ranges.get(0).getCount());
+        assertEquals("bytes 10-19/100", ranges.get(0).getContentRange(100));
+
+        ranges = HttpRange.parse("bytes=90-").resolve(100);
+        assertEquals("bytes 90-99/100", ranges.get(0).getContentRange(100));
+
+        ranges = HttpRange.parse("bytes=90-1000").resolve(100);
+        assertEquals("bytes 90-99/100", ranges.get(0).getContentRange(100));
+    }
+
+    @Test
+    public void testSuffix() throws Exception {
+        List<HttpRange.Range> ranges = HttpRange.parse("bytes=-10").resolve(100);
+        assertEquals("bytes 90-99/100", ranges.get(0).getContentRange(100));
+
+        ranges = HttpRange.parse("bytes=-1000").resolve(100);
+        assertEquals("bytes 0-99/100", ranges.get(0).getContentRange(100));
+
+        assertNull(HttpRange.parse("bytes=-10").getUnboundedRange());
+    }
+
+    @Test
+    public void testMultiple() throws Exception {
+        HttpRange range = HttpRange.parse("bytes=0-0, 5-9,200-300,-1");
+        assertTrue(range.isMultiple());
+        assertNull(range.getUnboundedRange());
+        List<HttpRange.Range> ranges = range.resolve(100);
+        assertEquals(3, ranges.size());
+        assertEquals("bytes 0-0/100", ranges.get(0).getContentRange(100));
+        assertEquals("bytes 5-9/100", ranges.get(1).getContentRange(100));
+        assertEquals("bytes 99-99/100", ranges.get(2).getContentRange(100));
+    }
+
+    @Test
+    public void testUnsatisfiable() throws Exception {
+        assertTrue(HttpRange.parse("bytes=100-").resolve(100).isEmpty());
+        assertTrue(HttpRange.parse("bytes=-0").resolve(100).isEmpty());
+        assertTrue(HttpRange.parse("bytes=0-").resolve(0).isEmpty());
+    }
+
+    @Test
+    public void testUnbounded() throws Exception {
+        HttpRange.Range r = HttpRange.parse("bytes=42-").getUnboundedRange();
+        assertEquals(42L, r.getFirst());
+        assertNull(r.getCount());
+    }
+
+    @Test
+    public void testBad() throws Exception {
+        for (String bad : new String[]{"42-", "bytes=a-b", "bytes=-", "bytes=9-8", "bytes=1-2;3-4",
+                "bytes=99999999999999999999-"}) {
+            try {
+                HttpRange.parse(bad);
+                fail(bad);
+            } catch (BadRequestException e) {
+                // expected
+            }
+        }
+    }
+
+}
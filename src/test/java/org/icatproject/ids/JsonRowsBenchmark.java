@@ -0,0 +1,63 @@
+package org.icatproject.ids;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Reports the time taken and the memory allocated to read pages of search
+ * results as a JsonArray and with JsonRows. It is not run with the unit tests
+ * but by mvn test -Pbenchmark.
+ */
+public class JsonRowsBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        String json = JsonRowsTest.page(10000);
+        List<DfInfoImpl> tree = JsonRowsTest.readTree(json);
+        List<DfInfoImpl> rows = JsonRowsTest.readRows(json);
+        assertEquals(tree.size(), rows.size());
+
+        /* Warm up */
+        for (int i = 0; i < 20; i++) {
+            JsonRowsTest.readTree(json);
+            JsonRowsTest.readRows(json);
+        }
+
+        int pages = 50;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        long id = Thread.currentThread().getId();
+
+        long before = threads.getThreadAllocatedBytes(id);
+        start = System.currentTimeMillis();
+        for (int i = 0; i < pages; i++) {
+            JsonRowsTest.readTree(json);
+        }
+        ts("read " + pages + " pages of 10000 rows as a JsonArray");
+        long treeBytes = (threads.getThreadAllocatedBytes(id) - before) / pages;
+
+        before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < pages; i++) {
+            JsonRowsTest.readRows(json);
+        }
+        ts("read " + pages + " pages of 10000 rows with JsonRows");
+        long rowsBytes = (threads.getThreadAllocatedBytes(id) - before) / pages;
+
+        System.out.println("Allocated per page of " + json.length() + " characters: JsonArray " + treeBytes / 1024
+                + "kB, JsonRows " + rowsBytes / 1024 + "kB");
+        assertTrue(rowsBytes < treeBytes);
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.json.Json;
+import jakarta.json.JsonArray;
+import jakarta.json.JsonException;
+import jakarta.json.JsonValue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class JsonRowsTest {
+
+    @Test
+    public void testRows() throws Exception {
+        try (JsonRows rows = new JsonRows("[[1, \"a\", null], [2, \"b\\\"\", 30, \"extra\"], []]")) {
+            assertTrue(rows.next());
+            assertEquals(1L, rows.getLong(0));
+            assertEquals("a", rows.getString(1));
+            assertTrue(rows.isNull(2));
+            assertNull(rows.getString(2));
+            assertNull(rows.getLongOrNull(2));
+
+            assertTrue(rows.next());
+            assertEquals(2L, rows.getLong(0));
+            assertEquals("b\"", rows.getString(1));
+            assertEquals(30L, (long) rows.getLongOrNull(2));
+            assertEquals("extra", rows.getString(3));
+
+            assertTrue(rows.next());
+            try {
+                rows.getLong(0);
+                fail();
+            } catch (JsonException e) {
+                // Expected
+            }
+            assertFalse(rows.next());
+            assertFalse(rows.next());
+            assertEquals(3, rows.getCount());
+        }
+
+        try (JsonRows rows = new JsonRows("[]")) {
+            assertFalse(rows.next());
+        }
+
+        try (JsonRows rows = new JsonRows("[[{}]]")) {
+            rows.next();
+            fail();
+        } catch (JsonException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testSameAsTree() throws Exception {
+        String json = page(100);
+        List<DfInfoImpl> expected = readTree(json);
+        List<DfInfoImpl> found = readRows(json);
+        assertEquals(expected.size(), found.size());
+        for (int i = 0; i < expected.size(); i++) {
+            DfInfoImpl e = expected.get(i);
+            DfInfoImpl f = found.get(i);
+            assertEquals(e.getDfId(), f.getDfId());
+            assertEquals(e.getDfName(), f.getDfName());
+            assertEquals(e.getDfLocation(), f.getDfLocation());
+            assertEquals(e.getCreateId(), f.getCreateId());
+            assertEquals(e.getModId(), f.getModId());
+            assertEquals(e.getFileSize(), f.getFileSize());
+            assertEquals(e.getChecksum(), f.getChecksum());
+        }
+    }
+
+    /* A page of datafile rows (id, name, location, createId, modId, fileSize, checksum) as returned by ICAT */
+    static String page(int n) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('[').append(1000000 + i).append(",\"file_").append(i).append(".nxs\",\"inst/cycle/run/file_")
+                    .append(i).append(".nxs\",\"db/reader\",\"db/reader\",")
+                    .append(i % 10 == 0 ? "null" : Long.toString(1000L * i)).append(",\"")
+                    .append(Long.toHexString(i * 2654435761L)).append("\"]");
+        }
+        return sb.append(']').toString();
+    }
+
+    /* As DataSelection read each page before JsonRows */
+    static List<DfInfoImpl> readTree(String json) {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        for (JsonValue tupV : Json.createReader(new ByteArrayInputStream(json.getBytes())).readArray()) {
+            JsonArray tup = (JsonArray) tupV;
+            Long fileSize = tup.isNull(5) ? null : tup.getJsonNumber(5).longValueExact();
+            dfInfos.add(new DfInfoImpl(tup.getJsonNumber(0).longValueExact(), tup.getString(1),
+                    tup.getString(2, null), tup.getString(3), tup.getString(4), 7L, fileSize,
+                    tup.getString(6, null)));
+        }
+        return dfInfos;
+    }
+
+    static List<DfInfoImpl> readRows(String json) {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        try (JsonRows rows = new JsonRows(json)) {
+            while (rows.next()) {
+                dfInfos.add(new DfInfoImpl(rows.getLong(0), rows.getString(1), rows.getString(2),
+                        rows.getString(3), rows.getString(4), 7L, rows.getLongOrNull(5), rows.getString(6)));
+            }
+        }
+        return dfInfos;
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+/**
+ * Reports the time to compress 64 MiB with ZipOutputStream and with
+ * different numbers of threads, and the size of each zip file. Each is run
+ * twice and the first run is only to warm up. The speed up is limited by the
+ * number of processors, which is reported too. It is not run with the unit
+ * tests but by mvn test -Pbenchmark.
+ */
+public class ParallelZipOutputStreamBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        byte[] bytes = ParallelZipOutputStreamTest.data(64 * 1024 * 1024, 5);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors available");
+        for (int i = 0; i < 2; i++) {
+            start = System.currentTimeMillis();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try (ZipOutputStream zos = new ZipOutputStream(baos)) {
+                zos.putNextEntry(new ZipEntry("a"));
+                zos.write(bytes);
+            }
+            ts("compress 64MiB with ZipOutputStream to " + baos.size() + " bytes");
+            for (int threads : new int[]{1, 2, 4, 8}) {
+                ParallelZipOutputStream.Pool p = new ParallelZipOutputStream.Pool(threads);
+                baos = new ByteArrayOutputStream();
+                try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, p,
+                        Deflater.DEFAULT_COMPRESSION)) {
+                    zos.putNextEntry(new ZipEntry("a"));
+                    zos.write(bytes);
+                }
+                ts("compress 64MiB with " + threads + " threads to " + baos.size() + " bytes");
+            }
+        }
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
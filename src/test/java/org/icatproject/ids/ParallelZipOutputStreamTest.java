@@ -0,0 +1,143 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ParallelZipOutputStreamTest {
+
+    private static ParallelZipOutputStream.Pool pool = new ParallelZipOutputStream.Pool(4);
+
+    /* Text-like data which compresses well but not trivially */
+    static byte[] data(int n, long seed) {
+        Random random = new Random(seed);
+        String[] words = {"ids ", "icat ", "datafile ", "dataset ", "investigation ", "zip ", "\n"};
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(n);
+        while (baos.size() < n) {
+            byte[] word = words[random.nextInt(words.length)].getBytes();
+            baos.write(word, 0, Math.min(word.length, n - baos.size()));
+        }
+        return baos.toByteArray();
+    }
+
+    private static Map<String, byte[]> contents() {
+        Map<String, byte[]> contents = new LinkedHashMap<>();
+        contents.put("ds1/empty", new byte[0]);
+        contents.put("ds1/small", "A small file".getBytes());
+        contents.put("ds1/déjà", data(ParallelZipOutputStream.BLOCK_SIZE, 1));
+        contents.put("ds2/large", data(5 * ParallelZipOutputStream.BLOCK_SIZE + 12345, 2));
+        byte[] random = new byte[ParallelZipOutputStream.BLOCK_SIZE + 1];
+        new Random(3).nextBytes(random);
+        contents.put("ds2/random", random);
+        return contents;
+    }
+
+    private static byte[] zip(Map<String, byte[]> contents) throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, pool, Deflater.DEFAULT_COMPRESSION)) {
+            for (Map.Entry<String, byte[]> e : contents.entrySet()) {
+                zos.putNextEntry(new ZipEntry(e.getKey()));
+                byte[] bytes = e.getValue();
+                /* Write in odd sized pieces to cross block boundaries */
+                for (int off = 0; off < bytes.length; off += 7777) {
+                    zos.write(bytes, off, Math.min(7777, bytes.length - off));
+                }
+                zos.closeEntry();
+            }
+        }
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testZipInputStream() throws Exception {
+        Map<String, byte[]> contents = contents();
+        byte[] zip = zip(contents);
+        int n = 0;
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                assertArrayEquals(ze.getName(), contents.get(ze.getName()), zis.readAllBytes());
+                n++;
+            }
+        }
+        assertEquals(contents.size(), n);
+    }
+
+    @Test
+    public void testZipFile() throws Exception {
+        Map<String, byte[]> contents = contents();
+        Path file = Files.createTempFile(null, ".zip");
+        try {
+            Files.write(file, zip(contents));
+            try (ZipFile zipFile = new ZipFile(file.toFile())) {
+                assertEquals(contents.size(), zipFile.size());
+                for (Map.Entry<String, byte[]> e : contents.entrySet()) {
+                    ZipEntry ze = zipFile.getEntry(e.getKey());
+                    CRC32 crc = new CRC32();
+                    crc.update(e.getValue());
+                    assertEquals(e.getValue().length, ze.getSize());
+                    assertEquals(crc.getValue(), ze.getCrc());
+                    assertEquals(ZipEntry.DEFLATED, ze.getMethod());
+                    assertArrayEquals(e.getValue(), zipFile.getInputStream(ze).readAllBytes());
+                }
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testDuplicate() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zos = new ParallelZipOutputStream(baos, pool, Deflater.DEFAULT_COMPRESSION)) {
+            zos.putNextEntry(new ZipEntry("a"));
+            zos.write("first".getBytes());
+            try {
+                zos.putNextEntry(new ZipEntry("a"));
+                fail();
+            } catch (ZipException e) {
+                assertEquals("duplicate entry: a", e.getMessage());
+            }
+            zos.closeEntry();
+            zos.putNextEntry(new ZipEntry("b"));
+            zos.write("second".getBytes());
+        }
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(baos.toByteArray()))) {
+            assertEquals("a", zis.getNextEntry().getName());
+            assertArrayEquals("first".getBytes(), zis.readAllBytes());
+            assertEquals("b", zis.getNextEntry().getName());
+            assertArrayEquals("second".getBytes(), zis.readAllBytes());
+        }
+    }
+
+    @Test
+    public void testRatio() throws Exception {
+        /* Priming each block with the previous one keeps the ratio close to a single deflater */
+        byte[] bytes = data(8 * ParallelZipOutputStream.BLOCK_SIZE, 4);
+        ByteArrayOutputStream serial = new ByteArrayOutputStream();
+        try (ZipOutputStream zos = new ZipOutputStream(serial)) {
+            zos.putNextEntry(new ZipEntry("a"));
+            zos.write(bytes);
+        }
+        byte[] parallel = zip(Map.of("a", bytes));
+        assertTrue(parallel.length + " " + serial.size(), parallel.length < serial.size() * 1.01);
+    }
+
+}
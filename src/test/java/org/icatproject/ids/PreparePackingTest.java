@@ -34,7 +34,7 @@ public class PreparePackingTest {
         long dsid2 = 18L;
         long invId = 15L;
         long facilityId = 45L;
-        dfInfos.add(new DfInfoImpl(5L, "dfName", "dfLocation", "createId", "modId", dsid1));
+        dfInfos.add(new DfInfoImpl(5L, "dfName", "dfLocation", "createId", "modId", dsid1, 42L, "1a2b3c"));
 
         dfInfos.add(new DfInfoImpl(51L, "dfName2", null, "createId", "modId", dsid1));
 
@@ -59,9 +59,13 @@ public class PreparePackingTest {
             if (dfInfo.getDfId() == 5L) {
                 assertEquals("dfName", dfInfo.getDfName());
                 assertEquals("dfLocation", dfInfo.getDfLocation());
+                assertEquals((Long) 42L, dfInfo.getFileSize());
+                assertEquals("1a2b3c", dfInfo.getChecksum());
             } else if (dfInfo.getDfId() == 51L) {
                 assertEquals("dfName2", dfInfo.getDfName());
                 assertNull(dfInfo.getDfLocation());
+                assertNull(dfInfo.getFileSize());
+                assertNull(dfInfo.getChecksum());
             } else {
                 fail();
             }
@@ -0,0 +1,92 @@
+package org.icatproject.ids;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class PreparedCacheTest {
+
+    private static Prepared prepared(int datafiles) {
+        Prepared prepared = new Prepared();
+        prepared.dsInfos = new TreeMap<>();
+        prepared.emptyDatasets = new HashSet<>();
+        prepared.dfInfos = new TreeSet<>();
+        for (long i = 0; i < datafiles; i++) {
+            prepared.dfInfos.add(new DfInfoImpl(i, "df" + i, "loc" + i, null, null, 1L));
+        }
+        return prepared;
+    }
+
+    @Test
+    public void testLeastRecentlyUsed() throws Exception {
+        PreparedCache cache = new PreparedCache(10, 60000);
+        Prepared a = prepared(4);
+        Prepared b = prepared(4);
+        cache.put("a", a);
+        cache.put("b", b);
+        assertSame(a, cache.get("a"));
+
+        /* b is least recently used so is dropped to make room */
+        cache.put("c", prepared(4));
+        assertNull(cache.get("b"));
+        assertSame(a, cache.get("a"));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        /* Too big to cache */
+        assertTrue(!cache.accepts(11));
+        cache.put("d", prepared(11));
+        assertNull(cache.get("d"));
+        assertSame(a, cache.get("a"));
+    }
+
+    @Test
+    public void testAge() throws Exception {
+        PreparedCache cache = new PreparedCache(10, 100);
+        cache.put("a", prepared(1));
+        Thread.sleep(200);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        PreparedCache cache = new PreparedCache(0, 60000);
+        assertTrue(!cache.accepts(0));
+        cache.put("a", prepared(0));
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testTidierInvalidates() throws Exception {
+        Path top = Files.createTempDirectory(null);
+        try {
+            PreparedCache cache = new PreparedCache(10, 60000);
+            Path pa = top.resolve("pa");
+            Path pb = top.resolve("pb");
+            Files.write(pa, new byte[10]);
+            Files.write(pb, new byte[10]);
+            pa.toFile().setLastModified(System.currentTimeMillis() - 10000);
+            Prepared b = prepared(1);
+            cache.put("pa", prepared(1));
+            cache.put("pb", b);
+
+            Tidier.cleanPreparedDir(top, 1, cache);
+            assertNull(cache.get("pa"));
+            assertSame(b, cache.get("pb"));
+        } finally {
+            for (Path p : Files.list(top).toArray(Path[]::new)) {
+                Files.delete(p);
+            }
+            Files.delete(top);
+        }
+    }
+
+}
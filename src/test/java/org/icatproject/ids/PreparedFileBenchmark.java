@@ -0,0 +1,85 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import jakarta.json.Json;
+import jakarta.json.stream.JsonGenerator;
+
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+/**
+ * Reports the size of the binary and JSON formats of a prepared file and the
+ * time to read them. It is not run with the unit tests but by mvn test
+ * -Pbenchmark.
+ */
+public class PreparedFileBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        Map<Long, DsInfo> dsInfos = new HashMap<>();
+        Set<DfInfoImpl> dfInfos = new HashSet<>();
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds1", "ds1loc", 2L, "inv", "visit", 3L, "facility"));
+        dsInfos.put(4L, new DsInfoImpl(4L, "ds4", null, 2L, "inv", "visit", 3L, "facility"));
+        for (long i = 0; i < 200_000; i++) {
+            long dfId = 1000 + 3 * i;
+            dfInfos.add(new DfInfoImpl(dfId, "file" + dfId + ".dat", "ds1/file" + dfId + ".dat", "db/creator",
+                    i % 2 == 0 ? "db/creator" : "db/modifier", 1L, i % 5 == 0 ? null : i * 1000,
+                    i % 7 == 0 ? null : Long.toHexString(i * 0x9e3779b9L & 0xffffffffL)));
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        start = System.currentTimeMillis();
+        PreparedFile.write(baos, true, false, dsInfos, dfInfos, Set.of());
+        ts("write 200000 datafiles in binary");
+        byte[] binary = baos.toByteArray();
+
+        baos = new ByteArrayOutputStream();
+        try (JsonGenerator gen = Json.createGenerator(baos).writeStartObject()) {
+            gen.write("zip", true).write("compress", false).writeStartArray("dsInfo");
+            for (DsInfo dsInfo : dsInfos.values()) {
+                gen.writeStartObject().write("dsId", dsInfo.getDsId()).write("dsName", dsInfo.getDsName())
+                        .write("facilityId", dsInfo.getFacilityId()).write("facilityName", dsInfo.getFacilityName())
+                        .write("invId", dsInfo.getInvId()).write("invName", dsInfo.getInvName())
+                        .write("visitId", dsInfo.getVisitId()).writeNull("dsLocation").writeEnd();
+            }
+            gen.writeEnd().writeStartArray("dfInfo");
+            for (DfInfoImpl dfInfo : dfInfos) {
+                gen.writeStartObject().write("dsId", dfInfo.getDsId()).write("dfId", dfInfo.getDfId())
+                        .write("dfName", dfInfo.getDfName()).write("createId", dfInfo.getCreateId())
+                        .write("modId", dfInfo.getModId()).write("dfLocation", dfInfo.getDfLocation()).writeEnd();
+            }
+            gen.writeEnd().writeStartArray("emptyDs").writeEnd().writeEnd();
+        }
+        byte[] json = baos.toByteArray();
+        System.out.println("Binary " + binary.length + " bytes, JSON " + json.length + " bytes");
+
+        start = System.currentTimeMillis();
+        try (PreparedFile prepared = PreparedFile.open(new ByteArrayInputStream(binary))) {
+            while (prepared.nextDfInfo() != null) {
+            }
+        }
+        ts("stream 200000 datafiles from binary");
+        try (PreparedFile prepared = PreparedFile.open(new ByteArrayInputStream(json))) {
+            while (prepared.nextDfInfo() != null) {
+            }
+        }
+        ts("read 200000 datafiles from JSON");
+        assertTrue(binary.length < json.length / 2);
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import org.icatproject.ids.exceptions.InternalException;
+import org.icatproject.ids.plugin.DsInfo;
+
+public class PreparedFileTest {
+
+    private Map<Long, DsInfo> dsInfos = new HashMap<>();
+    private Set<DfInfoImpl> dfInfos = new HashSet<>();
+
+    private void populate(int n) {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds1", "ds1loc", 2L, "inv", "visit", 3L, "facility"));
+        dsInfos.put(4L, new DsInfoImpl(4L, "ds4", null, 2L, "inv", "visit", 3L, "facility"));
+        for (long i = 0; i < n; i++) {
+            long dfId = 1000 + 3 * i;
+            dfInfos.add(new DfInfoImpl(dfId, "file" + dfId + ".dat", "ds1/file" + dfId + ".dat", "db/creator",
+                    i % 2 == 0 ? "db/creator" : "db/modifier", 1L, i % 5 == 0 ? null : i * 1000,
+                    i % 7 == 0 ? null : Long.toHexString(i * 0x9e3779b9L & 0xffffffffL)));
+        }
+    }
+
+    @Test
+    public void testStream() throws Exception {
+        populate(1000);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PreparedFile.write(baos, true, false, dsInfos, dfInfos, Set.of(4L));
+
+        try (PreparedFile prepared = PreparedFile.open(new ByteArrayInputStream(baos.toByteArray()))) {
+            assertTrue(prepared.isZip());
+            assertFalse(prepared.isCompress());
+            assertEquals(dsInfos.keySet(), prepared.getDsInfos().keySet());
+            assertNull(prepared.getDsInfos().get(4L).getDsLocation());
+            assertEquals("ds1loc", prepared.getDsInfos().get(1L).getDsLocation());
+            assertEquals(Set.of(4L), prepared.getEmptyDatasets());
+
+            long last = 0;
+            int n = 0;
+            DfInfoImpl dfInfo;
+            while ((dfInfo = prepared.nextDfInfo()) != null) {
+                assertTrue(dfInfo.getDfId() > last);
+                last = dfInfo.getDfId();
+                n++;
+                long dfId = dfInfo.getDfId();
+                DfInfoImpl expected = dfInfos.stream().filter(d -> d.getDfId() == dfId).findFirst().get();
+                assertEquals(expected.getDfName(), dfInfo.getDfName());
+                assertEquals(expected.getDfLocation(), dfInfo.getDfLocation());
+                assertEquals(expected.getCreateId(), dfInfo.getCreateId());
+                assertEquals(expected.getModId(), dfInfo.getModId());
+                assertEquals(expected.getDsId(), dfInfo.getDsId());
+                assertEquals(expected.getFileSize(), dfInfo.getFileSize());
+                assertEquals(expected.getChecksum(), dfInfo.getChecksum());
+            }
+            assertEquals(1000, n);
+            assertNull(prepared.nextDfInfo());
+        }
+    }
+
+    @Test
+    public void testJson() throws Exception {
+        String json = "{\"zip\":false,\"compress\":true,\"dsInfo\":[{\"dsId\":17,\"dsName\":\"dsName\","
+                + "\"facilityId\":45,\"facilityName\":\"facilityName\",\"invId\":15,\"invName\":\"invName\","
+                + "\"visitId\":\"visitId\",\"dsLocation\":\"dsLocation\"}],\"dfInfo\":[{\"dsId\":17,\"dfId\":51,"
+                + "\"dfName\":\"dfName2\",\"createId\":\"createId\",\"modId\":\"modId\",\"dfLocation\":null},"
+                + "{\"dsId\":17,\"dfId\":5,\"dfName\":\"dfName\",\"createId\":\"createId\",\"modId\":\"modId\","
+                + "\"dfLocation\":\"dfLocation\",\"fileSize\":42,\"checksum\":\"1a2b3c\"}],\"emptyDs\":[]}";
+        try (PreparedFile prepared = PreparedFile.open(new ByteArrayInputStream(json.getBytes()))) {
+            assertFalse(prepared.isZip());
+            assertTrue(prepared.isCompress());
+            assertEquals("dsName", prepared.getDsInfos().get(17L).getDsName());
+            DfInfoImpl dfInfo = prepared.nextDfInfo();
+            assertEquals((Long) 5L, dfInfo.getDfId());
+            assertEquals((Long) 42L, dfInfo.getFileSize());
+            assertEquals("1a2b3c", dfInfo.getChecksum());
+            dfInfo = prepared.nextDfInfo();
+            assertEquals((Long) 51L, dfInfo.getDfId());
+            assertNull(dfInfo.getDfLocation());
+            assertNull(prepared.nextDfInfo());
+        }
+    }
+
+    @Test
+    public void testBadVersion() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        PreparedFile.write(baos, true, false, dsInfos, dfInfos, Set.of());
+        byte[] bytes = baos.toByteArray();
+        bytes[4] = PreparedFile.VERSION + 1;
+        try {
+            PreparedFile.open(new ByteArrayInputStream(bytes));
+            fail();
+        } catch (InternalException e) {
+            assertTrue(e.getMessage(),
+                    e.getMessage().endsWith("Prepared file has unsupported version " + (PreparedFile.VERSION + 1)));
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.icatproject.ids;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class QueryFanOutTest {
+
+    private static QueryFanOut.Pool pool = new QueryFanOut.Pool(8, 3);
+
+    private AtomicInteger done = new AtomicInteger();
+    private AtomicInteger running = new AtomicInteger();
+    private AtomicInteger maxRunning = new AtomicInteger();
+
+    /* Submit a binary tree of tasks of the specified depth */
+    private void tree(QueryFanOut fanOut, int depth) throws InterruptedException {
+        int n = running.incrementAndGet();
+        maxRunning.accumulateAndGet(n, Math::max);
+        Thread.sleep(1);
+        running.decrementAndGet();
+        done.incrementAndGet();
+        if (depth > 0) {
+            fanOut.submit(() -> tree(fanOut, depth - 1));
+            fanOut.submit(() -> tree(fanOut, depth - 1));
+        }
+    }
+
+    @Test
+    public void testBound() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(pool);
+        fanOut.submit(() -> tree(fanOut, 7));
+        fanOut.await();
+        assertEquals(255, done.get());
+        assertTrue("" + maxRunning.get(), maxRunning.get() <= 3);
+    }
+
+    @Test
+    public void testInline() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(null);
+        fanOut.submit(() -> tree(fanOut, 5));
+        fanOut.await();
+        assertEquals(63, done.get());
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        QueryFanOut fanOut = new QueryFanOut(pool);
+        fanOut.submit(() -> tree(fanOut, 3));
+        fanOut.submit(() -> {
+            throw new InterruptedException("Stop");
+        });
+        try {
+            fanOut.await();
+            fail();
+        } catch (InterruptedException e) {
+            assertEquals("Stop", e.getMessage());
+        }
+        fanOut.submit(() -> done.set(-1000));
+        assertTrue(done.get() >= 0);
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Reports the time to read many small files from a simulated store where
+ * each open takes 5ms. It is not run with the unit tests but by mvn test
+ * -Pbenchmark.
+ */
+public class ReadAheadBenchmark {
+
+    private static long start;
+
+    @Test
+    public void benchmark() throws Exception {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        for (long i = 0; i < 200; i++) {
+            dfInfos.add(new DfInfoImpl(i, "df" + i, "loc" + i, null, null, 1L));
+        }
+        ReadAhead.Opener slow = dfInfo -> {
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return new ByteArrayInputStream(new byte[1000]);
+        };
+        byte[] bytes = new byte[2048];
+        start = System.currentTimeMillis();
+        for (DfInfoImpl dfInfo : dfInfos) {
+            try (InputStream stream = slow.open(dfInfo)) {
+                while (stream.read(bytes) >= 0) {
+                }
+            }
+        }
+        ts("read 200 files sequentially");
+        for (int count : new int[]{4, 16}) {
+            ReadAhead readAhead = new ReadAhead(count, count, 16 * 1024 * 1024, new BufferPool(64 * 1024, 32));
+            try (ReadAhead.Session session = readAhead.start(dfInfos.iterator(), slow)) {
+                for (int i = 0; i < dfInfos.size(); i++) {
+                    try (InputStream stream = session.next()) {
+                        while (stream.read(bytes) >= 0) {
+                        }
+                    }
+                }
+            }
+            ts("read 200 files with read ahead of " + count);
+        }
+    }
+
+    private static void ts(String msg) {
+        long end = System.currentTimeMillis();
+        System.out.println("Time to " + msg + ": " + (end - start) + "ms.");
+        start = end;
+    }
+
+}
@@ -0,0 +1,126 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+public class ReadAheadTest {
+
+    private static final int CHUNK = 64 * 1024;
+
+    private final BufferPool bufferPool = new BufferPool(CHUNK, 32);
+
+    private List<DfInfoImpl> dfInfos(int n) {
+        List<DfInfoImpl> dfInfos = new ArrayList<>();
+        for (long i = 0; i < n; i++) {
+            dfInfos.add(new DfInfoImpl(i, "df" + i, "loc" + i, null, null, 1L));
+        }
+        return dfInfos;
+    }
+
+    private static byte[] contents(DfInfoImpl dfInfo) {
+        int n = (int) (dfInfo.getDfId() * 50_000);
+        byte[] bytes = new byte[n];
+        for (int i = 0; i < n; i++) {
+            bytes[i] = (byte) (i + dfInfo.getDfId());
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testOrderAndContents() throws Exception {
+        ReadAhead readAhead = new ReadAhead(4, 4, 1024 * 1024, bufferPool);
+        List<DfInfoImpl> dfInfos = dfInfos(20);
+        try (ReadAhead.Session session = readAhead.start(dfInfos.iterator(),
+                dfInfo -> new ByteArrayInputStream(contents(dfInfo)))) {
+            for (DfInfoImpl dfInfo : dfInfos) {
+                assertTrue(session.hasNext());
+                assertEquals(dfInfo, session.peek());
+                try (InputStream stream = session.next()) {
+                    assertArrayEquals(contents(dfInfo), stream.readAllBytes());
+                }
+                assertTrue(readAhead.getAvailableBytes() >= 0);
+            }
+            assertFalse(session.hasNext());
+        }
+        assertEquals(1024 * 1024, readAhead.getAvailableBytes());
+        assertEquals(0, bufferPool.getOutstanding());
+    }
+
+    @Test
+    public void testCloseReleasesMemory() throws Exception {
+        ReadAhead readAhead = new ReadAhead(8, 8, 10 * CHUNK, bufferPool);
+        List<DfInfoImpl> dfInfos = dfInfos(20);
+        try (ReadAhead.Session session = readAhead.start(dfInfos.iterator(),
+                dfInfo -> new ByteArrayInputStream(contents(dfInfo)))) {
+            session.next().close();
+            InputStream stream = session.next();
+            Thread.sleep(200);
+            assertTrue(readAhead.getAvailableBytes() < 10 * CHUNK);
+            stream.close();
+        }
+        Thread.sleep(200);
+        assertEquals(10 * CHUNK, readAhead.getAvailableBytes());
+        assertEquals(0, bufferPool.getOutstanding());
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        ReadAhead readAhead = new ReadAhead(4, 4, 1024 * 1024, bufferPool);
+        List<DfInfoImpl> dfInfos = dfInfos(10);
+        try (ReadAhead.Session session = readAhead.start(dfInfos.iterator(), dfInfo -> {
+            if (dfInfo.getDfId() == 3L) {
+                throw new IOException("Cannot open " + dfInfo);
+            }
+            return new ByteArrayInputStream(contents(dfInfo));
+        })) {
+            for (int i = 0; i < 3; i++) {
+                session.next().close();
+            }
+            try {
+                session.next();
+                fail();
+            } catch (IOException e) {
+                assertEquals("Cannot open loc3", e.getMessage());
+            }
+        }
+    }
+
+    @Test
+    public void testUnbufferedLimit() throws Exception {
+        /* No memory so nothing is buffered and at most two files are open ahead */
+        ReadAhead readAhead = new ReadAhead(8, 2, 0, bufferPool);
+        AtomicInteger open = new AtomicInteger();
+        List<DfInfoImpl> dfInfos = dfInfos(20);
+        try (ReadAhead.Session session = readAhead.start(dfInfos.iterator(), dfInfo -> {
+            open.incrementAndGet();
+            return new ByteArrayInputStream(contents(dfInfo)) {
+                @Override
+                public void close() {
+                    open.decrementAndGet();
+                }
+            };
+        })) {
+            Thread.sleep(200);
+            assertEquals(2, open.get());
+            for (DfInfoImpl dfInfo : dfInfos) {
+                try (InputStream stream = session.next()) {
+                    assertArrayEquals(contents(dfInfo), stream.readAllBytes());
+                }
+                assertTrue(open.get() <= 2);
+            }
+        }
+        assertEquals(0, open.get());
+    }
+
+}
@@ -0,0 +1,183 @@
+package org.icatproject.ids;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ids.plugin.DsInfo;
+
+public class RestorePlannerTest {
+
+    /*
+     * A tape library to which datasets were archived one after another, each
+     * with its datafiles in order of location, filling one tape after another.
+     * Recalling a datafile which is not the next one on the mounted tape
+     * costs a seek and one on another tape a mount as well.
+     */
+    private static class SimulatedTape {
+        private final Map<String, int[]> positions = new HashMap<>();
+        private int tape = -1;
+        private int position = -1;
+        private int seeks;
+        private int mounts;
+
+        SimulatedTape(List<List<DfInfoImpl>> archived, int datafilesPerTape) {
+            int n = 0;
+            for (List<DfInfoImpl> dataset : archived) {
+                for (DfInfoImpl dfInfo : dataset) {
+                    positions.put(dfInfo.getDfLocation(), new int[] { n / datafilesPerTape, n % datafilesPerTape });
+                    n++;
+                }
+            }
+        }
+
+        void recall(List<DfInfoImpl> batch) {
+            for (DfInfoImpl dfInfo : batch) {
+                int[] p = positions.get(dfInfo.getDfLocation());
+                if (p[0] != tape) {
+                    mounts++;
+                    seeks++;
+                    tape = p[0];
+                } else if (p[1] != position + 1) {
+                    seeks++;
+                }
+                position = p[1];
+            }
+        }
+    }
+
+    private static RestorePlanner planner(RestoreLocality locality, int windowSeconds, int maxBatchDatafiles,
+            long maxBatchBytes) {
+        PropertyHandler propertyHandler = mock(PropertyHandler.class);
+        when(propertyHandler.getRestoreLocality()).thenReturn(locality);
+        when(propertyHandler.getRestoreWindowSeconds()).thenReturn(windowSeconds);
+        when(propertyHandler.getRestoreMaxBatchDatafiles()).thenReturn(maxBatchDatafiles);
+        when(propertyHandler.getRestoreMaxBatchBytes()).thenReturn(maxBatchBytes);
+        return new RestorePlanner(propertyHandler);
+    }
+
+    private static DfInfoImpl dfInfo(long dfId, long dsId, String location, long size) {
+        return new DfInfoImpl(dfId, "df" + dfId, location, null, null, dsId, size, null);
+    }
+
+    private static long ids(List<DfInfoImpl> dfInfos) {
+        long result = 0;
+        for (DfInfoImpl dfInfo : dfInfos) {
+            result = result * 10 + dfInfo.getDfId();
+        }
+        return result;
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        List<DfInfoImpl> queued = Arrays.asList(dfInfo(1, 1, "a/2", 10), dfInfo(2, 2, "b/1", 10),
+                dfInfo(3, 1, "a/1", 10), dfInfo(4, 2, "b/2", 50), dfInfo(5, 1, "a/3", 10));
+
+        /* Grouped by the dataset of the first datafile offered, sorted by location */
+        List<List<DfInfoImpl>> batches = planner(RestoreLocality.LOCATION, 0, 2, 0).planDatafiles(queued,
+                new HashMap<>(), 10);
+        assertEquals(3, batches.size());
+        assertEquals(31, ids(batches.get(0)));
+        assertEquals(52, ids(batches.get(1)));
+        assertEquals(4, ids(batches.get(2)));
+
+        /* Only as many batches as there are threads free */
+        assertEquals(1, planner(RestoreLocality.LOCATION, 0, 2, 0).planDatafiles(queued, new HashMap<>(), 1).size());
+
+        /* At most 40 bytes unless the datafile is bigger */
+        batches = planner(RestoreLocality.DATASET, 0, 0, 40).planDatafiles(queued, new HashMap<>(), 10);
+        assertEquals(2, batches.size());
+        assertEquals(3152, ids(batches.get(0)));
+        assertEquals(4, ids(batches.get(1)));
+
+        batches = planner(RestoreLocality.NONE, 0, 0, 0).planDatafiles(queued, new HashMap<>(), 10);
+        assertEquals(1, batches.size());
+        assertEquals(12345, ids(batches.get(0)));
+    }
+
+    @Test
+    public void testInvestigations() throws Exception {
+        List<DsInfo> queued = Arrays.asList(new DsInfoImpl(1L, "ds1", "x/3", 7L, "inv7", null, 1L, "fac"),
+                new DsInfoImpl(2L, "ds2", "y/1", 8L, "inv8", null, 1L, "fac"),
+                new DsInfoImpl(3L, "ds3", "x/1", 7L, "inv7", null, 1L, "fac"));
+        List<DsInfo> ordered = planner(RestoreLocality.INVESTIGATION, 0, 0, 0).orderDatasets(queued);
+        assertEquals(Arrays.asList(3L, 1L, 2L),
+                Arrays.asList(ordered.get(0).getDsId(), ordered.get(1).getDsId(), ordered.get(2).getDsId()));
+
+        Map<Long, DsInfo> dsInfos = new HashMap<>();
+        for (DsInfo dsInfo : queued) {
+            dsInfos.put(dsInfo.getDsId(), dsInfo);
+        }
+        List<DfInfoImpl> dfInfos = Arrays.asList(dfInfo(1, 1, "x/3/b", 0), dfInfo(2, 2, "y/1/a", 0),
+                dfInfo(3, 3, "x/1/a", 0));
+        assertEquals(312, ids(planner(RestoreLocality.INVESTIGATION, 0, 0, 0).planDatafiles(dfInfos, dsInfos, 1)
+                .get(0)));
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        assertEquals(1000L, planner(RestoreLocality.LOCATION, 0, 10, 0).getDue(1, 1000L));
+        assertEquals(31000L, planner(RestoreLocality.LOCATION, 30, 10, 0).getDue(9, 1000L));
+        /* Enough for a full batch so there is no point waiting */
+        assertEquals(1000L, planner(RestoreLocality.LOCATION, 30, 10, 0).getDue(10, 1000L));
+        assertEquals(31000L, planner(RestoreLocality.LOCATION, 30, 0, 0).getDue(1000, 1000L));
+    }
+
+    @Test
+    public void simulateTape() throws Exception {
+        int datasets = 200;
+        int datafilesPerDataset = 25;
+        Random random = new Random(1);
+        List<List<DfInfoImpl>> archived = new ArrayList<>();
+        long dfId = 0;
+        for (long dsId = 0; dsId < datasets; dsId++) {
+            List<DfInfoImpl> dataset = new ArrayList<>();
+            for (int i = 0; i < datafilesPerDataset; i++) {
+                dataset.add(dfInfo(dfId++, dsId, String.format("inv%d/ds%d/df%03d", dsId / 10, dsId, i), 1000));
+            }
+            archived.add(dataset);
+        }
+        /* Datasets were archived in whatever order they became old */
+        Collections.shuffle(archived, random);
+        SimulatedTape library = new SimulatedTape(archived, 1000);
+
+        /* Users then ask for a fifth of the datasets, which are queued in no useful order */
+        List<List<DfInfoImpl>> wanted = new ArrayList<>(archived);
+        Collections.shuffle(wanted, random);
+        List<DfInfoImpl> queued = new ArrayList<>();
+        for (List<DfInfoImpl> dataset : wanted.subList(0, datasets / 5)) {
+            queued.addAll(dataset);
+        }
+        Collections.shuffle(queued, random);
+
+        for (RestoreLocality locality : Arrays.asList(RestoreLocality.NONE, RestoreLocality.LOCATION)) {
+            SimulatedTape tape = new SimulatedTape(archived, 1000);
+            RestorePlanner planner = planner(locality, 0, 100, 0);
+            List<DfInfoImpl> left = new ArrayList<>(queued);
+            while (!left.isEmpty()) {
+                List<DfInfoImpl> batch = planner.planDatafiles(left, new HashMap<>(), 1).get(0);
+                tape.recall(batch);
+                left.removeAll(batch);
+            }
+            if (locality == RestoreLocality.NONE) {
+                library = tape;
+            } else {
+                /* Every dataset is read in one pass */
+                assertTrue(tape.seeks <= datasets / 5);
+                assertTrue(tape.seeks * 10 < library.seeks);
+                assertTrue(tape.mounts < library.mounts);
+            }
+        }
+    }
+
+}
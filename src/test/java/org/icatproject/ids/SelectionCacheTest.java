@@ -0,0 +1,112 @@
+package org.icatproject.ids;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.icatproject.ids.DataSelection.Returns;
+import org.icatproject.ids.exceptions.BadRequestException;
+import org.icatproject.ids.plugin.DsInfo;
+
+public class SelectionCacheTest {
+
+    /* A selection of datasets dsIds each holding one datafile, except for negative ids which are empty */
+    private static DataSelection selection(Returns returns, long... dsIds) {
+        DataSelection dataSelection = mock(DataSelection.class);
+        Map<Long, DsInfo> dsInfos = new HashMap<>();
+        DfInfoSet.Builder dfInfos = new DfInfoSet.Builder();
+        for (long id : dsIds) {
+            long dsId = Math.abs(id);
+            dsInfos.put(dsId, new DsInfoImpl(dsId, "ds" + dsId, null, 1L, "inv", "visit", 2L, "facility"));
+            if (id > 0) {
+                dfInfos.add(new DfInfoImpl(dsId * 10, "df", "loc", null, null, dsId));
+            }
+        }
+        boolean ds = returns != Returns.DATAFILES;
+        boolean df = returns != Returns.DATASETS;
+        when(dataSelection.getDsInfo()).thenReturn(ds ? dsInfos : null);
+        when(dataSelection.getDsIds()).thenReturn(dsInfos.keySet());
+        when(dataSelection.getDfInfo()).thenReturn(df ? dfInfos.build() : null);
+        for (Returns wanted : Returns.values()) {
+            when(dataSelection.provides(wanted)).thenReturn((ds || wanted == Returns.DATAFILES)
+                    && (df || wanted == Returns.DATASETS));
+        }
+        return dataSelection;
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        assertEquals(SelectionCache.key("s", null, "3, 1,2,1", "7"), SelectionCache.key("s", null, "1,2,3", "7"));
+        assertEquals("s//1,2,3/7", SelectionCache.key("s", null, "3, 1,2,1", "7"));
+        try {
+            SelectionCache.key("s", "x", null, null);
+            fail();
+        } catch (BadRequestException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testReturns() throws Exception {
+        SelectionCache cache = new SelectionCache(10, 60000);
+        DataSelection datasets = selection(Returns.DATASETS, 1, 2);
+        cache.put("a", datasets);
+        assertSame(datasets, cache.get("a", Returns.DATASETS));
+        assertNull(cache.get("a", Returns.DATAFILES));
+
+        DataSelection both = selection(Returns.DATASETS_AND_DATAFILES, 1, 2);
+        cache.put("a", both);
+        assertSame(both, cache.get("a", Returns.DATASETS));
+        assertSame(both, cache.get("a", Returns.DATAFILES));
+        assertSame(both, cache.get("a", Returns.DATASETS_AND_DATAFILES));
+        assertEquals(4, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        SelectionCache cache = new SelectionCache(10, 60000);
+        cache.put("a", selection(Returns.DATASETS, 1, 2));
+        cache.put("b", selection(Returns.DATAFILES, 2, 3));
+        DataSelection c = selection(Returns.DATASETS_AND_DATAFILES, 4);
+        cache.put("c", c);
+
+        cache.invalidateDatasets(Collections.singleton(2L));
+        assertNull(cache.get("a", Returns.DATASETS));
+        assertNull(cache.get("b", Returns.DATAFILES));
+        assertSame(c, cache.get("c", Returns.DATASETS));
+
+        cache.invalidateDatasets(Arrays.asList(5L, 4L));
+        assertNull(cache.get("c", Returns.DATASETS));
+
+        /* Datafiles put into an empty dataset change a selection of only datafiles */
+        cache.put("d", selection(Returns.DATAFILES, 6, -7));
+        cache.invalidateDatasets(Collections.singleton(7L));
+        assertNull(cache.get("d", Returns.DATAFILES));
+    }
+
+    @Test
+    public void testBounds() throws Exception {
+        SelectionCache cache = new SelectionCache(3, 100);
+        cache.put("a", selection(Returns.DATAFILES, 1, 2, 3, 4));
+        assertNull(cache.get("a", Returns.DATAFILES));
+
+        cache.put("b", selection(Returns.DATAFILES, 1, 2));
+        cache.put("c", selection(Returns.DATAFILES, 3));
+        cache.put("d", selection(Returns.DATAFILES, 4));
+        assertNull(cache.get("b", Returns.DATAFILES));
+
+        Thread.sleep(200);
+        assertNull(cache.get("c", Returns.DATAFILES));
+    }
+
+}
@@ -52,7 +52,16 @@ public class TidierTest {
         assertTrue(Files.exists(pe));
         assertTrue(Files.exists(pf));
 
+        Path pbOffsets = top.resolve("pb" + ZipLayout.OFFSETS_SUFFIX);
+        Path pcOffsets = top.resolve("pc" + ZipLayout.OFFSETS_SUFFIX);
+        Path orphan = top.resolve("px" + ZipLayout.OFFSETS_SUFFIX);
+        Files.copy(file, pbOffsets);
+        Files.copy(file, pcOffsets);
+        Files.copy(file, orphan);
+
         Tidier.cleanPreparedDir(top, 8);
+        assertFalse(Files.exists(orphan));
+        assertTrue(Files.exists(pbOffsets));
         assertTrue(Files.exists(pa));
         assertTrue(Files.exists(pb));
         assertTrue(Files.exists(pc));
@@ -62,6 +71,8 @@ public class TidierTest {
         Tidier.cleanPreparedDir(top, 4);
         assertFalse(Files.exists(pa));
         assertFalse(Files.exists(pb));
+        assertFalse(Files.exists(pbOffsets));
+        assertTrue(Files.exists(pcOffsets));
         assertTrue(Files.exists(pc));
         assertTrue(Files.exists(pd));
         assertTrue(Files.exists(pe));
@@ -0,0 +1,267 @@
+package org.icatproject.ids;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import org.icatproject.ids.plugin.DfInfo;
+import org.icatproject.ids.plugin.DsInfo;
+import org.icatproject.ids.plugin.ZipMapperInterface;
+
+public class ZipLayoutTest {
+
+    private static final long TIME = LocalDateTime.of(2024, 5, 6, 7, 8, 10).atZone(ZoneId.systemDefault())
+            .toInstant().toEpochMilli();
+
+    private static ZipMapperInterface zipMapper = new ZipMapperInterface() {
+
+        @Override
+        public String getFullEntryName(DsInfo dsInfo, DfInfo dfInfo) {
+            return dsInfo.getDsName() + "/" + dfInfo.getDfName();
+        }
+
+        @Override
+        public String getFileName(String fullEntryName) {
+            return fullEntryName.substring(fullEntryName.indexOf('/') + 1);
+        }
+    };
+
+    private Map<Long, DsInfo> dsInfos = new HashMap<>();
+    private Map<Long, byte[]> contents = new HashMap<>();
+    private Set<DfInfoImpl> dfInfos = new HashSet<>();
+    private List<Long> opened = new ArrayList<>();
+
+    private void add(long dfId, String name, String data) {
+        byte[] bytes = data.getBytes();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        contents.put(dfId, bytes);
+        dfInfos.add(new DfInfoImpl(dfId, name, "loc" + dfId, null, null, 1L, (long) bytes.length,
+                Long.toHexString(crc.getValue())));
+    }
+
+    private ZipLayout.DataWriter writer = (dfInfo, position, count, out) -> {
+        opened.add(dfInfo.getDfId());
+        byte[] bytes = contents.get(dfInfo.getDfId());
+        int n = (int) Math.min(count, bytes.length - position);
+        out.write(bytes, (int) position, n);
+        return n;
+    };
+
+    private ZipLayout layout() {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds1", null, 2L, "inv", "visit", 3L, "facility"));
+        add(30L, "c", "Third file");
+        add(10L, "a", "First file with some text");
+        add(20L, "b", "");
+        add(25L, "a", "Duplicate name");
+        add(40L, "déjà", "Fourth file with a non-ASCII name");
+        return ZipLayout.create(dsInfos, dfInfos, zipMapper, TIME);
+    }
+
+    @Test
+    public void testWhole() throws Exception {
+        ZipLayout layout = layout();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        layout.write(baos, 0L, null, writer);
+        byte[] zip = baos.toByteArray();
+        assertEquals(layout.getLength(), zip.length);
+
+        List<String> names = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zip))) {
+            ZipEntry ze;
+            while ((ze = zis.getNextEntry()) != null) {
+                names.add(ze.getName());
+                long dfId = ze.getName().equals("ds1/a") ? 10L
+                        : ze.getName().equals("ds1/b") ? 20L : ze.getName().equals("ds1/c") ? 30L : 40L;
+                assertArrayEquals(contents.get(dfId), zis.readAllBytes());
+            }
+        }
+        assertEquals(Arrays.asList("ds1/a", "ds1/b", "ds1/c", "ds1/déjà"), names);
+
+        Path file = Files.createTempFile(null, ".zip");
+        try {
+            Files.write(file, zip);
+            try (ZipFile zipFile = new ZipFile(file.toFile())) {
+                assertEquals(4, zipFile.size());
+                assertEquals(TIME, zipFile.getEntry("ds1/a").getTime());
+                assertArrayEquals(contents.get(30L), zipFile.getInputStream(zipFile.getEntry("ds1/c")).readAllBytes());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testRanges() throws Exception {
+        ZipLayout layout = layout();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        layout.write(baos, 0L, null, writer);
+        byte[] zip = baos.toByteArray();
+
+        for (int first = 0; first <= zip.length; first++) {
+            for (int count : new int[]{1, 7, 100, zip.length}) {
+                baos = new ByteArrayOutputStream();
+                layout.write(baos, first, (long) count, writer);
+                assertArrayEquals(first + " " + count,
+                        Arrays.copyOfRange(zip, first, Math.min(zip.length, first + count)), baos.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testWrongSize() throws Exception {
+        ZipLayout layout = layout();
+        ZipLayout.Entry entry = layout.getEntries().get(2);
+        assertEquals(30L, (long) entry.getDfInfo().getDfId());
+
+        contents.put(30L, "Third file is longer".getBytes());
+        try {
+            layout.write(new ByteArrayOutputStream(), 0L, null, writer);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("longer"));
+        }
+        /* Not detected by a range which stops short of the end of the entry */
+        layout.write(new ByteArrayOutputStream(), 0L, entry.getEnd() - 1, writer);
+
+        contents.put(30L, "Third".getBytes());
+        try {
+            layout.write(new ByteArrayOutputStream(), entry.getDataOffset(), 7L, writer);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("shorter"));
+        }
+    }
+
+    @Test
+    public void testResumeSkipsEntries() throws Exception {
+        ZipLayout layout = layout();
+        ZipLayout.Entry last = layout.getEntries().get(layout.getEntries().size() - 1);
+        assertEquals(40L, (long) last.getDfInfo().getDfId());
+        opened.clear();
+        OutputStream os = new ByteArrayOutputStream();
+        layout.write(os, last.getDataOffset() + 3, null, writer);
+        assertEquals(Arrays.asList(40L), opened);
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        ZipLayout layout = layout();
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        layout.save(baos);
+        byte[] table = baos.toByteArray();
+
+        ZipLayout loaded = ZipLayout.load(new ByteArrayInputStream(table), dfInfos);
+        assertEquals(layout.getLength(), loaded.getLength());
+        assertEquals(layout.getEntries().size(), loaded.getEntries().size());
+        ByteArrayOutputStream a = new ByteArrayOutputStream();
+        layout.write(a, 0L, null, writer);
+        ByteArrayOutputStream b = new ByteArrayOutputStream();
+        loaded.write(b, 0L, null, writer);
+        assertArrayEquals(a.toByteArray(), b.toByteArray());
+
+        /* The table does not match if a datafile has gone */
+        dfInfos.remove(new DfInfoImpl(30L, "c", "loc30", null, null, 1L));
+        assertNull(ZipLayout.load(new ByteArrayInputStream(table), dfInfos));
+
+        /* The layout is deterministic */
+        add(30L, "c", "Third file");
+        baos = new ByteArrayOutputStream();
+        ZipLayout.create(dsInfos, dfInfos, zipMapper, TIME).save(baos);
+        assertArrayEquals(table, baos.toByteArray());
+    }
+
+    @Test
+    public void testUnknown() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds1", null, 2L, "inv", "visit", 3L, "facility"));
+        add(10L, "a", "First");
+        dfInfos.add(new DfInfoImpl(11L, "b", "loc", null, null, 1L, 5L, "0123456789abcdef0123456789abcdef"));
+        assertNull(ZipLayout.create(dsInfos, dfInfos, zipMapper, TIME));
+        dfInfos.remove(new DfInfoImpl(11L, "b", "loc", null, null, 1L));
+        dfInfos.add(new DfInfoImpl(11L, "b", "loc", null, null, 1L, null, "abcd"));
+        assertNull(ZipLayout.create(dsInfos, dfInfos, zipMapper, TIME));
+    }
+
+    @Test
+    public void testZip64Size() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds1", null, 2L, "inv", "visit", 3L, "facility"));
+        add(1L, "small", "small");
+        long big = 5L * 1024 * 1024 * 1024;
+        dfInfos.add(new DfInfoImpl(2L, "big", "loc2", null, null, 1L, big, "0"));
+        add(3L, "after", "after the big one");
+        ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, TIME);
+        ZipLayout.Entry bigEntry = layout.getEntries().get(1);
+        assertTrue(layout.getLength() > big);
+
+        /* Write everything but the data of the big file to a sparse file */
+        Path file = Files.createTempFile(null, ".zip");
+        try {
+            try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                layout.write(baos, 0L, bigEntry.getDataOffset(), writer);
+                raf.write(baos.toByteArray());
+                baos = new ByteArrayOutputStream();
+                layout.write(baos, bigEntry.getEnd(), null, writer);
+                raf.seek(bigEntry.getEnd());
+                raf.write(baos.toByteArray());
+            }
+            assertEquals(layout.getLength(), Files.size(file));
+            try (ZipFile zipFile = new ZipFile(file.toFile())) {
+                assertEquals(3, zipFile.size());
+                assertEquals(big, zipFile.getEntry("ds1/big").getSize());
+                assertArrayEquals(contents.get(3L),
+                        zipFile.getInputStream(zipFile.getEntry("ds1/after")).readAllBytes());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    public void testManyEntries() throws Exception {
+        dsInfos.put(1L, new DsInfoImpl(1L, "ds1", null, 2L, "inv", "visit", 3L, "facility"));
+        for (long i = 0; i < 70000; i++) {
+            add(i, Long.toString(i), i % 1000 == 0 ? "x" : "");
+        }
+        ZipLayout layout = ZipLayout.create(dsInfos, dfInfos, zipMapper, TIME);
+        Path file = Files.createTempFile(null, ".zip");
+        try {
+            try (OutputStream os = Files.newOutputStream(file)) {
+                layout.write(os, 0L, null, writer);
+            }
+            assertEquals(layout.getLength(), Files.size(file));
+            try (ZipFile zipFile = new ZipFile(file.toFile())) {
+                assertEquals(70000, zipFile.size());
+                assertArrayEquals("x".getBytes(), zipFile.getInputStream(zipFile.getEntry("ds1/69000")).readAllBytes());
+            }
+        } finally {
+            Files.delete(file);
+        }
+        assertTrue(layout.getLength() > 70000 * (30 + 46));
+    }
+
+}